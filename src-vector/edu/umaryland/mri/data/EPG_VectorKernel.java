@@ -0,0 +1,94 @@
+package edu.umaryland.mri.data;
+
+import edu.umaryland.mri.data.EPG_MPRAGE.Workspace;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * EPG_Kernel with the Vector API. The orders n=NP+k run up through fx/fy while their mirrors
+ * m=NP-k run down, so the mirrored lanes are loaded and stored reversed. The operations are the
+ * same, in the same order, as the scalar kernel, which makes the results identical.
+ *
+ * Needs --add-modules jdk.incubator.vector to compile and run, see EPG_Kernel.getFastest()
+ */
+class EPG_VectorKernel extends EPG_Kernel {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final int L = SPECIES.length();
+	private static final VectorShuffle<Double> REVERSE = VectorShuffle.fromOp( SPECIES, i -> L-1-i );
+
+	@Override
+	void rotate( Workspace ws, int kMax, double a, double hb, double gb, double ec, double fc, double d ) {
+	    double[] fx = ws.fx;
+	    double[] fy = ws.fy;
+	    double[] pfx = ws.pfx;
+	    double[] pfy = ws.pfy;
+	    double[] pzx = ws.pzx;
+	    double[] pzy = ws.pzy;
+	    double[] zx = ws.zx;
+	    double[] zy = ws.zy;
+	    int NP = ws.np;
+
+	    // k=0 is its own mirror
+	    rotate( ws, 0, 0, a, hb, gb, ec, fc, d );
+
+	    int k=1;
+	    for ( ; k<=kMax-L+1; k+=L ) {
+	    	int n=NP+k;
+	    	int m=NP-k-L+1; // lowest index of the mirrored block
+
+	    	DoubleVector fxn = DoubleVector.fromArray( SPECIES, fx, n );
+	    	DoubleVector fyn = DoubleVector.fromArray( SPECIES, fy, n );
+	    	DoubleVector fxm = DoubleVector.fromArray( SPECIES, fx, m ).rearrange( REVERSE );
+	    	DoubleVector fym = DoubleVector.fromArray( SPECIES, fy, m ).rearrange( REVERSE );
+	    	DoubleVector zxk = DoubleVector.fromArray( SPECIES, zx, k+1 );
+	    	DoubleVector zyk = DoubleVector.fromArray( SPECIES, zy, k+1 );
+
+	    	fxn.mul(a).add(fxm.mul(hb)).add(fym.mul(gb)).add(zxk.mul(ec)).add(zyk.mul(fc)).intoArray( pfx, n );
+	    	fyn.mul(a).sub(fym.mul(hb)).add(fxm.mul(gb)).sub(zxk.mul(fc)).add(zyk.mul(ec)).intoArray( pfy, n );
+	    	fxn.mul(hb).add(fyn.mul(gb)).add(fxm.mul(a)).add(zxk.mul(ec)).sub(zyk.mul(fc)).rearrange( REVERSE ).intoArray( pfx, m );
+	    	fxn.mul(gb).sub(fyn.mul(hb)).add(fym.mul(a)).sub(zxk.mul(fc)).sub(zyk.mul(ec)).rearrange( REVERSE ).intoArray( pfy, m );
+	    	fxn.mul(-ec).add(fyn.mul(fc)).sub(fxm.mul(ec)).add(fym.mul(fc)).add(zxk.mul(2*d)).div(2).intoArray( pzx, k+1 );
+	    	fxn.mul(-fc).sub(fyn.mul(ec)).add(fxm.mul(fc)).add(fym.mul(ec)).add(zyk.mul(2*d)).div(2).intoArray( pzy, k+1 );
+	    }
+
+	    rotate( ws, k, kMax, a, hb, gb, ec, fc, d );
+	}
+
+	@Override
+	void relax( Workspace ws, int kMax, double e1, double e2, double rc ) {
+	    double[] fx = ws.fx;
+	    double[] fy = ws.fy;
+	    double[] pfx = ws.pfx;
+	    double[] pfy = ws.pfy;
+	    double[] pzx = ws.pzx;
+	    double[] pzy = ws.pzy;
+	    double[] zx = ws.zx;
+	    double[] zy = ws.zy;
+	    int NP = ws.np;
+
+	    // dephasing shifts every transverse order up by one
+	    int n=NP-kMax;
+	    for ( ; n<=NP+kMax-L+1; n+=L ) {
+	    	DoubleVector.fromArray( SPECIES, pfx, n ).mul(e2).intoArray( fx, n+1 );
+	    	DoubleVector.fromArray( SPECIES, pfy, n ).mul(e2).intoArray( fy, n+1 );
+	    }
+	    for ( ; n<=NP+kMax; n++ ) {
+	    	fx[n+1]=pfx[n]*e2;
+	    	fy[n+1]=pfy[n]*e2;
+	    }
+
+	    zx[1]=pzx[1]*e1+rc;
+	    zy[1]=pzy[1]*e1;
+	    int k=1;
+	    for ( ; k<=kMax-L+1; k+=L ) {
+	    	DoubleVector.fromArray( SPECIES, pzx, k+1 ).mul(e1).intoArray( zx, k+1 );
+	    	DoubleVector.fromArray( SPECIES, pzy, k+1 ).mul(e1).intoArray( zy, k+1 );
+	    }
+	    for ( ; k<=kMax; k++ ) {
+	    	zx[k+1]=pzx[k+1]*e1;
+	    	zy[k+1]=pzy[k+1]*e1;
+	    }
+	}
+}
@@ -4,14 +4,18 @@ import java.awt.Toolkit;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Random;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 import edu.umaryland.mri.data.Tools;
 import javax.swing.JCheckBox;
 import javax.swing.JComponent;
@@ -24,6 +28,7 @@ import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 import javax.swing.text.BadLocationException;
@@ -36,6 +41,18 @@ import edu.umaryland.mri.data.SimImage1D;
 import edu.umaryland.mri.data.SimImage1DRunner;
 import edu.umaryland.mri.gui.GraphPanel;
 import edu.umaryland.mri.gui.ImagePanel;
+import edu.umaryland.mri.search.BestParamSearch;
+import edu.umaryland.mri.search.EvalCache;
+import edu.umaryland.mri.search.EvalStore;
+import edu.umaryland.mri.search.GradientSearch;
+import edu.umaryland.mri.search.GridSweep;
+import edu.umaryland.mri.search.ParallelTempering;
+import edu.umaryland.mri.search.OrderedWriter;
+import edu.umaryland.mri.search.ParamGrid;
+import edu.umaryland.mri.search.ParetoFront;
+import edu.umaryland.mri.search.SimParams;
+import edu.umaryland.mri.search.SweepCoordinator;
+import edu.umaryland.mri.search.SweepRunner;
 
 
 public class RunSimulation extends JFrame {
@@ -46,9 +63,28 @@ public class RunSimulation extends JFrame {
 	private JProgressBar progressBar;
 	private GraphPanel graphPanel;
 	private ExecutorService es;
+	private ForkJoinPool fjPool;
+	private EvalCache evalCache;
+	private static final String STORE_FILE = "MPRAGE_results.store";
+	private static final String CHECKPOINT_FILE = "MPRAGE_sweep.ckpt";
 	private int[] gArray;
 	private int[] wArray;
 	private ImagePanel imagePanel;
+	private final AtomicReference<BufferedImage> liveImage = new AtomicReference<BufferedImage>();
+	// what a SweepRunner prints, handed to the message area a line at a time
+	private final PrintStream messageStream = new PrintStream( new ByteArrayOutputStream() {
+		@Override
+		public synchronized void flush() {
+			String s = toString();
+			int i = s.lastIndexOf( '\n' );
+			if ( i < 0 )
+				return;
+			showLater( -1, s.substring( 0, i ), null );
+			reset();
+			byte[] rest = s.substring( i+1 ).getBytes();
+			write( rest, 0, rest.length );
+		}
+	}, true );
 	private static final long serialVersionUID = 6321935150798988371L;
 	
     /*
@@ -69,6 +105,11 @@ public class RunSimulation extends JFrame {
 		
 		// the simulations will call upon this executor service to create new threads
 		es = Executors.newCachedThreadPool();
+		// and the grid sweep splits its work over this work-stealing pool
+		fjPool = new ForkJoinPool();
+		// protocols simulated by earlier searches, so a search run again with other thresholds is cheap,
+		// and by earlier sessions if "Keep results" is checked, see useStore()
+		evalCache = new EvalCache( 1<<18 );
 		
 		this.getContentPane().setLayout( new BorderLayout() );		
 		this.setDefaultCloseOperation(EXIT_ON_CLOSE);
@@ -137,10 +178,38 @@ public class RunSimulation extends JFrame {
 		
 	public void shutdown() {
 		es.shutdown();
+		if ( evalCache.getStore() != null )
+			try {
+				evalCache.getStore().close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		WindowEvent wev = new WindowEvent(this, WindowEvent.WINDOW_CLOSING);
         Toolkit.getDefaultToolkit().getSystemEventQueue().postEvent(wev);
 	}
 	
+	/*
+	 * Opens or closes the store of simulated protocols behind the cache, kept next to where the
+	 * simulator is run, as asked for in the dialog. If another process has it open the cache is kept
+	 * in memory only.
+	 */
+	private void useStore( boolean bStore ) {
+		if ( bStore && evalCache.getStore() == null ) {
+			try {
+				evalCache.setStore( EvalStore.open( new File( STORE_FILE ) ) );
+			} catch (IOException e) {
+				printMessageLn( "Results are not kept, " + e.getMessage() );
+			}
+		} else if ( !bStore && evalCache.getStore() != null ) {
+			try {
+				evalCache.getStore().close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			evalCache.setStore( null );
+		}
+	}
+	
 	/*
 	 * Do simulated annealing
 	 */
@@ -152,11 +221,6 @@ public class RunSimulation extends JFrame {
 			return;
 		}
 		
-		SimImage1D si = new SimImage1D();
-		si.setTissueAParams( simParams.getPDa(), simParams.getT1a(), simParams.getT2a() );
-		si.setTissueBParams( simParams.getPDb(), simParams.getT1b(), simParams.getT2b() );
-		si.setIdealSpoiling(simParams.getIdealSpoil());
-		
 		double TR = simParams.getTR();
 		double spoilInc = simParams.getSpoil();
 		int NP = simParams.getNP();
@@ -173,8 +237,6 @@ public class RunSimulation extends JFrame {
 		double signalMin = simParams.getSMin();
 		double contrastMin = simParams.getCMin();
 			
-		Random randGen = new Random();
-		
 		//String s = String.format(" FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f", bestFA, bestTD1, bestTD2, bestSignal, bestContrast, bestTime);
 		String s = "";
 		s = s.concat( String.format("Tissue A: T1:%1$-4d T2:%2$-4d PD:%3$-4.4f\n", simParams.getT1a(), simParams.getT2a(), simParams.getPDa()) );
@@ -186,200 +248,116 @@ public class RunSimulation extends JFrame {
 		s = s.concat( String.format("S_min:%1$-4.4f C_min:%2$-4.4f\n", signalMin, contrastMin) );
 		printMessageLn(s);
 		
-		long st = System.currentTimeMillis();
-		printMessageLn("Started simulated annealing...");
-				
-		double startTemp = 100;
-		boolean isDone = false;
-		int totalCount = 0;
-		int currPosCount = 0;
-		
-		// keep track of overall best
-		double bestSignal = 0;
-		double bestContrast = 0;
-		double bestFA = 0;
-		double bestTD1 = 0;
-		double bestTD2 = 0;
-		double bestEnergy = 1e10;
-		
-		// initialize parameters
-		double currTemp = startTemp;
-		double currSignal = 0;
-		double currContrast = 0;
-		double currTime = 1e10;
-		double currFA = faEn;//(faEn-faSt)/2;
-		double currTD1 = td1En;//(td1En-td1St)/2;
-		double currTD2 = td2En;//(td2En-td2St)/2;
-		double currEnergy = 1e10;
-		
-		// we are more interested in signal and contrast than time, so use scalars to increase sensitivity
-		double timeMin = NP*TR * td1St * td2St;
-		//timeMin = 1500;
-		double signalFactor = simParams.getSFactor();
-		double contrastFactor = simParams.getCFactor();
-		
-		// calculate energy at starting point
-		// set parameters
-		si.setSeqParams(currFA, spoilInc, TR, currTD1, currTD2, NP);
-		// do 1d simulation
-		double[] im1d = si.doSim();						
-		double[] meanSignal = si.calcTissueMean( im1d );
-		double nextA = meanSignal[0]/NP; // note ifft is unnormalized, fix it here
-		double nextB = meanSignal[1]/NP; // note ifft is unnormalized, fix it here
-		
-		double nextSignal = ( nextA > nextB ) ? nextB : nextA; // determine which signal is minimum
-		double nextContrast = nextB/nextA;
-		double nextTime = NP*TR + currTD1 + currTD2; // get time
-		double nextEnergy = signalFactor*Math.pow( (nextSignal-signalMin)/signalMin, 2)  +  contrastFactor*Math.pow( (nextContrast-contrastMin)/contrastMin, 2)  +  Math.pow( (nextTime-timeMin)/timeMin, 2);
-		
-		// we start here, so this is currently the best energy
-		currSignal = nextSignal;
-		currContrast = nextContrast;
-		currTime = nextTime;
-		currEnergy = nextEnergy;
-		
-		// determine number of neighbors
-		int width = 1;
-		int numNeighbors = 0;
-		for ( int fa=(int)  (currFA-width*faInc);    fa<=currFA+width*faInc;   fa=fa+faInc ) 
-		for ( int td1=(int) (currTD1-width*td1Inc); td1<=currTD1+width*td1Inc; td1=td1+td1Inc )
-		for ( int td2=(int) (currTD2-width*td2Inc); td2<=currTD2+width*td2Inc; td2=td2+td2Inc ) {
-			numNeighbors++;
-		}
-		int currParams[][] = new int[numNeighbors+1][4]; // the current value and all neighbors
-		
-		while ( ! isDone ) {
-			if  ( totalCount % 250 == 0 ) {				
-				s = String.format(" FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f E:%7$-4.4f", currFA, currTD1, currTD2, currSignal, currContrast, currTime, currEnergy);
-				printMessageLn(s);
-				//graphPanel.setDataPair( 0, Tools.getComplexMagn(im1d) );
-				imagePanel.setImage( getGrayWhiteImage(currContrast) );
-			}
-			
-			// set range of current parameters			
-			int paramCount = 0; // current value is at index 0
-			currParams[paramCount][0] = (int) currFA;
-			currParams[paramCount][1] = (int) currTD1;
-			currParams[paramCount][2] = (int) currTD2;
-			currParams[paramCount][3] = 1;
-			paramCount++;
-			// now loop through parameters and set neighboring parameters
-			for ( int fa=(int) (currFA-faInc);     fa<=currFA+faInc;   fa=fa+faInc ) 
-			for ( int td1=(int) (currTD1-td1Inc); td1<=currTD1+td1Inc; td1=td1+td1Inc )
-			for ( int td2=(int) (currTD2-td2Inc); td2<=currTD2+td2Inc; td2=td2+td2Inc ) {
-					currParams[paramCount][0] = fa;
-					currParams[paramCount][1] = td1;
-					currParams[paramCount][2] = td2;
-					// make sure parameter is valid in range
-					if      ( (fa < faSt) | (fa > faEn) )
-						currParams[paramCount][3] = -1;
-					else if ( (td1 < td1St) | (td1 > td1En) )
-						currParams[paramCount][3] = -1;
-					else if ( (td2 < td2St) | (td2 > td2En) )
-						currParams[paramCount][3] = -1;
-					else
-						currParams[paramCount][3] = 1;
-
-					paramCount++;
-			}
-			
-			// determine which neighbor we will try
-			int currNeighbor = -1;
-			while ( currNeighbor == -1 ) {
-				currNeighbor = randGen.nextInt(numNeighbors-1) + 1;
-				if ( currParams[currNeighbor][3] == -1 )
-					currNeighbor = -1;
-			}
-			
-			// set parameters
-			si.setSeqParams(currParams[currNeighbor][0], spoilInc, TR, currParams[currNeighbor][2], currParams[currNeighbor][1], NP);
-			// do 1d simulation
-			//im1d = si.doSim();
-			im1d = si.doSimThreaded(es);
-			meanSignal = si.calcTissueMean( im1d );
-			nextA = meanSignal[0]/NP; // note ifft is unnormalized, fix it here
-			nextB = meanSignal[1]/NP; // note ifft is unnormalized, fix it here
-			
-			nextSignal = ( nextA > nextB ) ? nextB : nextA; // determine which signal is minimum
-			nextContrast = nextB/nextA;
-			nextTime = NP*TR + currParams[currNeighbor][1] + currParams[currNeighbor][2]; // get time
-			nextEnergy = signalFactor*Math.pow( (nextSignal-signalMin)/signalMin, 2)  +  contrastFactor*Math.pow( (nextContrast-contrastMin)/contrastMin, 2)  +  Math.pow( (nextTime-timeMin)/timeMin, 2);
-			
-			double deltaE = currEnergy-nextEnergy;
-			
-			// compare energies
-			if ( deltaE > 0 ) { // nextEnergy was less
-				// move here
-				currSignal = nextSignal;
-				currContrast = nextContrast;
-				currTime = nextTime;
-				currFA = currParams[currNeighbor][0];
-				currTD1 = currParams[currNeighbor][1];
-				currTD2 = currParams[currNeighbor][2];
-				currEnergy = nextEnergy;
-				currPosCount = 0;
-			} else {			
-				// but maybe there is some chance we will move here anyway
-				double p = Math.exp(deltaE/currTemp);
-				double r = randGen.nextDouble();
-				
-				//System.out.println(deltaE);
-			
-				if ( r < p ) { // move here anyway
-					// move here
-					currSignal = nextSignal;
-					currContrast = nextContrast;
-					currTime = nextTime;
-					currFA = currParams[currNeighbor][0];
-					currTD1 = currParams[currNeighbor][1];
-					currTD2 = currParams[currNeighbor][2];
-					currEnergy = nextEnergy;
-					currPosCount = 0;
-				} else {
-					currPosCount++;
-					progressBar.setValue( (int) (100*currPosCount/50) );
-				}
-			}
-			
-			// keep track of absolute best
-			if ( currEnergy < bestEnergy ) {
-				bestSignal = currSignal;
-				bestContrast = currContrast;
-				bestFA = currFA;
-				bestTD1 = currTD1;
-				bestTD2 = currTD2;
-				bestEnergy = currEnergy;
+		// one chain for each thread of the pool, from 0.001 up to the old start temperature; speculative
+		// chains evaluate about 8 new neighbours at a time, so they get 8 threads each
+		long seed = System.nanoTime();
+		int numChains = fjPool.getParallelism();
+		if ( simParams.getSpeculative() )
+			numChains = Math.max( 1, numChains/8 );
+		ParallelTempering pt = new ParallelTempering( simParams.getParams(), numChains, seed );
+		pt.setSpeculative( simParams.getSpeculative() );
+		useStore( simParams.getKeepResults() );
+		pt.setCache( evalCache );
+		long hits = evalCache.getHits(), misses = evalCache.getMisses();
+		pt.setListener( new ParallelTempering.Listener() {
+			@Override
+			public void roundDone( int round, ParallelTempering pt ) {
+				// called from a worker of the pool, the display is updated on the event dispatch thread
+				if ( round % 25 == 0 ) {
+					ParallelTempering.State curr = pt.getChainState(0);
+					String s = String.format(" FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f E:%7$-4.4f", curr.fa, curr.td1, curr.td2, curr.signal, curr.contrast, curr.time, curr.energy);
+					showLater( 100*round/(round+50), s, getGrayWhiteImage(curr.contrast) );
+				} else
+					showLater( 100*round/(round+50), null, null );
 			}
-			
-			// stop when we haven't moved in 50 tries
-			if ( currPosCount > 50 )
-				isDone = true;			
-			
-			currTemp *= 0.995;
-			totalCount++;
-		}		
+		});
+		
+		long st = System.currentTimeMillis();
+		printMessageLn("Started parallel tempering with " + pt.getNumChains() + " chains (seed " + seed + ")...");
+		ParallelTempering.State best = pt.run( fjPool );
+		waitForDisplay();
 		long en = System.currentTimeMillis();
 		progressBar.setValue(100);
 		
+		ParallelTempering.State curr = pt.getChainState(0);
 		s = "Simulation ended here:\n";
-		s += String.format(" FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f E:%7$-4.4f", currFA, currTD1, currTD2, currSignal, currContrast, currTime, currEnergy);
+		s += String.format(" FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f E:%7$-4.4f", curr.fa, curr.td1, curr.td2, curr.signal, curr.contrast, curr.time, curr.energy);
 		printMessageLn(s);
 		
-		//graphPanel.setDataPair( 0, Tools.getComplexMagn(im1d) );
-		imagePanel.setImage( getGrayWhiteImage(bestContrast) );
+		imagePanel.setImage( getGrayWhiteImage(best.contrast) );
 		
 		s = "Best found was:\n";
-		s += String.format(" FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f E:%7$-4.4f", bestFA, bestTD1, bestTD2, bestSignal, bestContrast, NP*TR+bestTD1+bestTD2, bestEnergy);
+		s += String.format(" FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f E:%7$-4.4f", best.fa, best.td1, best.td2, best.signal, best.contrast, best.time, best.energy);
 		printMessageLn(s);
 		
+		long totalCount = pt.getNumEvaluations();
 		s = String.format("Elapsed time: %d s\nAvg. time per calc (for %d total): %4.4f ms", (en-st)/1000, totalCount, 1.0*(en-st)/totalCount );
-		printMessageLn(s);				
+		if ( pt.getNumLoops() > 0 )
+			s += String.format("\nAvg. MPRAGE cycles per calc: %4.2f", 1.0*pt.getNumLoops()/totalCount );
+		s += String.format("\nRounds: %d, swaps accepted: %4.2f, sequential calcs per chain: %d", pt.getNumRounds(), pt.getSwapRate(), pt.getNumSequentialEvaluations() );
+		s += String.format("\nCache hits: %d, misses: %d", evalCache.getHits()-hits, evalCache.getMisses()-misses );
+		if ( evalCache.getStore() != null )
+			s += String.format(", protocols stored: %d", evalCache.getStore().size() );
+		printMessageLn(s);
 		
 	}
 	
 	
 	/*
-	 * Runs the simulation with multiple threads, one for each processor that can be detected
+	 * Minimizes the energy of doSimAnneal with derivatives, from several starts at the same time
+	 */
+	public void doSimGradient() {
+		SimParamsComponent simParams = new SimParamsComponent();
+		int result = JOptionPane.showConfirmDialog( this, simParams.getComponent(), "Get Simulation Parameters", JOptionPane.OK_CANCEL_OPTION);
+		if ( result == JOptionPane.CANCEL_OPTION ) {			
+			shutdown();
+			return;
+		}
+		
+		SimParams params = simParams.getParams();
+		String s = "";
+		s = s.concat( String.format("Tissue A: T1:%1$-4d T2:%2$-4d PD:%3$-4.4f\n", params.getT1a(), params.getT2a(), params.getPDa()) );
+		s = s.concat( String.format("Tissue B: T1:%1$-4d T2:%2$-4d PD:%3$-4.4f\n", params.getT1b(), params.getT2b(), params.getPDb()) );
+		s = s.concat( String.format("Seq. params: TR:%1$-4.4f spoil inc:%2$-4.4f NP:%3$-4d\n", params.getTR(), params.getSpoil(), params.getNP()) );
+		s = s.concat( String.format("FA start:%1$-4d FA end:%2$-4d\n", params.getFAst(), params.getFAen()) );
+		s = s.concat( String.format("TD1 start:%1$-4d TD1 end:%2$-4d\n", params.getTD1st(), params.getTD1en()) );
+		s = s.concat( String.format("TD2 start:%1$-4d TD2 end:%2$-4d\n", params.getTD2st(), params.getTD2en()) );
+		s = s.concat( String.format("S_min:%1$-4.4f C_min:%2$-4.4f\n", params.getSMin(), params.getCMin()) );
+		printMessageLn(s);
+		
+		// the energy has local minima, 8 starts found the best grid protocol in all our tests
+		long seed = System.nanoTime();
+		int numStarts = Math.max( 8, fjPool.getParallelism() );
+		GradientSearch search = new GradientSearch( params );
+		useStore( simParams.getKeepResults() );
+		search.setCache( evalCache );
+		
+		long st = System.currentTimeMillis();
+		printMessageLn("Started gradient search from " + numStarts + " starts (seed " + seed + ")...");
+		ParallelTempering.State best = search.run( fjPool, numStarts, seed );
+		long en = System.currentTimeMillis();
+		progressBar.setValue(100);
+		
+		ParallelTempering.State cont = search.getContinuousBest();
+		s = "Continuous optimum:\n";
+		s += String.format(" FA:%1$-4.2f TD1:%2$-6.1f TD2:%3$-6.1f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f E:%7$-4.4f", cont.fa, cont.td1, cont.td2, cont.signal, cont.contrast, cont.time, cont.energy);
+		printMessageLn(s);
+		
+		imagePanel.setImage( getGrayWhiteImage(best.contrast) );
+		
+		s = "Best found was:\n";
+		s += String.format(" FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f E:%7$-4.4f", best.fa, best.td1, best.td2, best.signal, best.contrast, best.time, best.energy);
+		printMessageLn(s);
+		
+		long totalCount = search.getNumEvaluations();
+		s = String.format("Elapsed time: %d s\nAvg. time per calc (for %d total): %4.4f ms", (en-st)/1000, totalCount, 1.0*(en-st)/totalCount );
+		s += String.format("\nIterations: %d", search.getNumIterations() );
+		printMessageLn(s);
+	}
+	
+	
+	/*
+	 * Runs the simulation on a work-stealing pool with one thread for each processor that can be detected
 	 */
 	public void doSimThreaded2() {		
 		SimParamsComponent simParams = new SimParamsComponent();
@@ -393,198 +371,164 @@ public class RunSimulation extends JFrame {
 			return;
 		}
 		
-		// determine number of threads we can run, create thread array, and "runner" array
-		int cpuCores = Runtime.getRuntime().availableProcessors();
-		
-		Future<?>[] futureArray = new Future<?>[cpuCores];
-		SimImage1DRunner[] simRunnerArray = new SimImage1DRunner[cpuCores];		
-		for ( int i=0; i<cpuCores; i++ ) {
-			simRunnerArray[i] = new SimImage1DRunner();
-			simRunnerArray[i].setTissueAParams( simParams.getPDa(), simParams.getT1a(), simParams.getT2a() );
-			simRunnerArray[i].setTissueBParams( simParams.getPDb(), simParams.getT1b(), simParams.getT2b() );
-			simRunnerArray[i].setIdealSpoiling(simParams.getIdealSpoil());
-		}		
-		
-		// get simulation parameters
-		double TR = simParams.getTR();
-		double spoilInc = simParams.getSpoil();
-		int NP = simParams.getNP();
-		int faSt = simParams.getFAst();
-		int faEn = simParams.getFAen();
-		int faInc = simParams.getFAinc();
-		int td1St  = simParams.getTD1st();
-		int td1En  = simParams.getTD1en();
-		int td1Inc = simParams.getTD1inc();
-		int td2St  = simParams.getTD2st();
-		int td2En  = simParams.getTD2en();
-		int td2Inc = simParams.getTD2inc();
+		// the sweep runs on the work-stealing pool, each worker with its own simulator; the runner
+		// writes the output and checkpoints as SweepRunner does without a display
+		SimParams params = simParams.getParams();
+		SweepRunner runner = new SweepRunner( params, fjPool );
+		runner.setLog( messageStream );
+		runner.setProgressInterval( 0 );
+		useStore( simParams.getKeepResults() );
+		runner.setCache( evalCache );
+		runner.setCoarseToFine( simParams.getCoarseToFine() );
+		runner.setTimeOrdered( simParams.getTimeOrdered() );
+		long hits = evalCache.getHits(), misses = evalCache.getMisses();
 		
 		// optionally we can write to file
-		boolean doFileWrite = simParams.getWriteFile();
-		File writeFile = null;
-		BufferedWriter bw = null;
-		if ( doFileWrite ) {
+		// a .csv name gets the rows in grid order from a writer thread, anything else a binary ResultFile
+		if ( simParams.getWriteFile() ) {
 			JFileChooser jc = new JFileChooser();
 			int returnVal = jc.showSaveDialog(this);
-			if ( returnVal == JFileChooser.CANCEL_OPTION )
-				doFileWrite = false;
-			else {
-				writeFile = jc.getSelectedFile();
-				try {
-					bw = new BufferedWriter( new FileWriter( writeFile ) );
-					bw.write("count,fa,ti,td,min_signal,contrast,total_time\n");
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+			if ( returnVal != JFileChooser.CANCEL_OPTION )
+				runner.setOutput( jc.getSelectedFile() );
 		}
 		
-		// and display 1d images
-		boolean liveView = simParams.getLiveView();
-		
-		// variables to keep track of the best protocol
-		double signalMin = simParams.getSMin();		
-		double contrastMin = simParams.getCMin();
-		BestParamSearch paramSearch = new BestParamSearch(signalMin, contrastMin, signalMin, contrastMin, TR, NP);
-		boolean bestFound = false;		
-		
-		//String s = String.format(" FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f", bestFA, bestTD1, bestTD2, bestSignal, bestContrast, bestTime);
-		String s = "";
-		s = s.concat( String.format("Tissue A: T1:%1$-4d T2:%2$-4d PD:%3$-4.4f\n", simParams.getT1a(), simParams.getT2a(), simParams.getPDa()) );
-		s = s.concat( String.format("Tissue B: T1:%1$-4d T2:%2$-4d PD:%3$-4.4f\n", simParams.getT1b(), simParams.getT2b(), simParams.getPDb()) );
-		s = s.concat( String.format("Seq. params: TR:%1$-4.4f spoil inc:%2$-4.4f NP:%3$-4d\n", TR, spoilInc, NP) );
-		s = s.concat( String.format("FA start:%1$-4d FA incr.:%2$-4d FA end:%3$-4d\n", faSt, faInc, faEn) );
-		s = s.concat( String.format("TD1 start:%1$-4d TD1 incr.:%2$-4d TD1 end:%3$-4d\n", td1St, td1Inc, td1En) );
-		s = s.concat( String.format("TD2 start:%1$-4d TD2 incr.:%2$-4d TD2 end:%3$-4d\n", td2St, td2Inc, td2En) );
-		s = s.concat( String.format("S_min:%1$-4.4f C_min:%2$-4.4f\n", signalMin, contrastMin) );
-		printMessageLn(s);
-		
-		long st = System.currentTimeMillis();
-		printMessageLn("Started sim with " + cpuCores + " threads...");
-		
-		// create an array with all of the parameters we will try
-		int total = (faEn-faSt+1) * ((td1En-td1St)/td1Inc+1) * ((td2En-td2St+1)/td2Inc+1);
-		int params[][] = new int[total][3];
-		int count = 0;
-        for ( int fa=faSt; fa<=faEn; fa=fa+faInc )
-		for ( int td1=td1St; td1<=td1En; td1=td1+td1Inc )
-		for ( int td2=td2St; td2<=td2En; td2=td2+td2Inc ) {
-			params[count][0] = fa;
-			params[count][1] = td1;
-			params[count][2] = td2;
-			count++;
-		}
+		// a full sweep saves its progress now and then, and goes on from there when it is run again
+		// with the same parameters and output file
+		runner.setCheckpointFile( new File( CHECKPOINT_FILE ) );
 		
-        int[] currCounts = new int[cpuCores]; // used to keep track of the parameters used in each thread
-		boolean isDone = false;		  
-		count = 0;
-		while ( !isDone ) {
-			if  ( count % 250 == 0 )
-				progressBar.setValue( 100 * count/total );
-			
-			// set parameters and run simulations on multiple threads 
-			for ( int i=0; i<cpuCores; i++ ) {
-				if ( count < total ) {
-					simRunnerArray[i].setSeqParams(params[count][0], spoilInc, TR, params[count][1], params[count][2], NP);
-					currCounts[i] = count;
-					futureArray[i] = es.submit( simRunnerArray[i] );
-					
-					count++;
-				} else {
-					futureArray[i] = null;
-					currCounts[i] = -1;
-				}
+		// and display 1d images
+		final boolean liveView = simParams.getLiveView();
+		runner.setListener( new SweepRunner.Listener() {
+			@Override
+			public void result( long index, double[] point, double signalA, double signalB, double contrast, double time ) {
+				if ( liveView )
+					showLater( getGrayWhiteImage(contrast) );
 			}
-
-			// wait for threads to finish and get results
-			for ( int i=0; i<cpuCores; i++ ) {
-				if ( futureArray[i] != null ) {
-					try {
-						// we wait for each thread to finish
-						futureArray[i].get();
-					} catch (InterruptedException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					} catch (ExecutionException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-					// no longer multi-threaded, run through each result one at a time
-					double[] meanSignal = simRunnerArray[i].get1DTissueMean();
-					double meanA = meanSignal[0]/NP; // note ifft is unnormalized, fix it here
-					double meanB = meanSignal[1]/NP; // note ifft is unnormalized, fix it here
-					double currMinSignal = (meanA < meanB ) ? meanA : meanB;
-					double currContrast = meanB / meanA;
-					double currFA = params[currCounts[i]][0];
-					double currTD1 = params[currCounts[i]][1];
-					double currTD2 = params[currCounts[i]][2];
-					double currTime = currTD1+TR*NP+currTD2;
-					
-					if ( liveView )
-						//graphPanel.setDataPair( 0, Tools.getComplexMagn(simRunnerArray[i].get1DSim()) );
-						imagePanel.setImage( getGrayWhiteImage(currContrast) );
-					
-					if ( doFileWrite ) {
-						s = String.format("%-6d,%-3d,%-4d,%-4d,%-6.6f,%6.6f,%-8.3f\n",count, currFA, currTD1, currTD2, currMinSignal, currContrast, currTime);
-						try {
-							bw.write(s);
-						} catch (IOException e) {
-							// TODO Auto-generated catch block
-							e.printStackTrace();
-						}
-					}
-					
-					paramSearch.tryContrast(currMinSignal, currContrast, currFA, currTD1, currTD2);
-					paramSearch.trySignal(currMinSignal, currContrast, currFA, currTD1, currTD2);
-					if ( paramSearch.tryBest(currMinSignal, currContrast, currFA, currTD1, currTD2) ) {						
-						// we found a better answer
-						bestFound = true;
-						
-						printMessageLn("New optimal protocol found (#" + currCounts[i] + "):");
-						s = String.format(" FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f", currFA, currTD1, currTD2, currMinSignal, currContrast, currTime);
-						//s = String.format(" FA:%1$-2d TD1:%2$-4d TD2:%3$-4d S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f", fa, td1, td2, bestSignal, bestContrast, bestTime);
-						printMessageLn(s);
-						
-						//graphPanel.setDataPair( 0, Tools.getComplexMagn(simRunnerArray[i].get1DSim()) );
-						imagePanel.setImage( getGrayWhiteImage(currContrast) );
-					}
-				} // threadArray
-			} // cpuCores
 			
-			if ( count >= total )
-				isDone = true;
-		}
-		
-		if ( doFileWrite )
-			try {
-				bw.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			@Override
+			public void chunkDone( long numDone, long total, BestParamSearch best, boolean bBetter ) {
+				// the runner prints the new optimal protocol
+				showLater( (int) (100L*numDone/total), null, bBetter ? getGrayWhiteImage(best.bestParams.bestContrast) : null );
 			}
+		});
 		
-		long en = System.currentTimeMillis();
+		// the chunks are merged in grid order, so ties are broken as in a serial sweep
+		BestParamSearch paramSearch;
+		try {
+			paramSearch = runner.run();
+		} catch (IOException e) {
+			e.printStackTrace();
+			continue;
+		} finally {
+			waitForDisplay();
+		}
 		progressBar.setValue(100);
-		s = String.format("Elapsed time: %d s\nAvg. time per calc (for %d total): %4.4f ms", (en-st)/1000, count, 1.0*(en-st)/count );
+		if ( paramSearch.isBestFound() )
+			imagePanel.setImage( getGrayWhiteImage(paramSearch.bestParams.bestContrast) );
+		
+		String s = String.format("Cache hits: %d, misses: %d", evalCache.getHits()-hits, evalCache.getMisses()-misses );
+		if ( evalCache.getStore() != null )
+			s += String.format(", protocols stored: %d", evalCache.getStore().size() );
 		printMessageLn(s);
 		
+		// other thresholds are answered from the Pareto front without another sweep
+		double signalMin = simParams.getSMin();		
+		double contrastMin = simParams.getCMin();
+		ParetoFront front = runner.getSweep().getParetoFront();
+		s = "Fastest on the Pareto front with S_min:" + String.format("%1$-4.4f", signalMin);
+		for ( double f=0.8; f<1.25; f+=0.1 ) {
+			ParetoFront.Entry e = front.getFastest( signalMin, f*contrastMin );
+			if ( e == null )
+				continue;
+			double[] point = e.getPoint();
+			s += String.format("\n C_min:%1$-4.4f FA:%2$-2.0f TD1:%3$-4.0f TD2:%4$-4.0f S:%5$-4.4f C:%6$-4.4f T:%7$-5.2f", f*contrastMin, point[SimParams.AXIS_FA], point[SimParams.AXIS_TD1], point[SimParams.AXIS_TD2], e.getSignal(), e.getContrast(), e.getTime());
+		}
+		printMessageLn(s);
+		
+		} // loop on this method 
+	}
+	
+	
+	/*
+	 * Prints the closest contrast and signal matches and the best protocol of a search
+	 */
+	private void printBestParams( BestParamSearch paramSearch ) {
+		String s;
 		s = "Closest contrast match:\n" + String.format(" FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f", paramSearch.bestCParams.alpha, paramSearch.bestCParams.TD1, paramSearch.bestCParams.TD2, paramSearch.bestCParams.bestSignal, paramSearch.bestCParams.bestContrast, paramSearch.bestCParams.getTime());
-		s += String.format( "\n TI:%1$-2.0f TR:%2$-4.0f ", paramSearch.bestCParams.TD1 + TR*NP/2, paramSearch.bestCParams.TD1 + TR*NP + paramSearch.bestCParams.TD2 );
+		s += String.format( "\n TI:%1$-2.0f TR:%2$-4.0f ", paramSearch.bestCParams.TD1 + paramSearch.bestCParams.TR*paramSearch.bestCParams.NP/2, paramSearch.bestCParams.getTime() );
 		printMessageLn(s);
 		s = "Closest signal match:\n" + String.format(" FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f", paramSearch.bestSParams.alpha, paramSearch.bestSParams.TD1, paramSearch.bestSParams.TD2, paramSearch.bestSParams.bestSignal, paramSearch.bestSParams.bestContrast, paramSearch.bestSParams.getTime());
-		s += String.format( "\n TI:%1$-2.0f TR:%2$-4.0f ", paramSearch.bestSParams.TD1 + TR*NP/2, paramSearch.bestSParams.TD1 + TR*NP + paramSearch.bestSParams.TD2 );
+		s += String.format( "\n TI:%1$-2.0f TR:%2$-4.0f ", paramSearch.bestSParams.TD1 + paramSearch.bestSParams.TR*paramSearch.bestSParams.NP/2, paramSearch.bestSParams.getTime() );
 		printMessageLn(s);	
 		
-		if ( !bestFound ) {
+		if ( !paramSearch.isBestFound() ) {
 			printMessageLn("Sorry, a protocol matching your requirements could not be specified.");
 		} else {
 			s = "Most optimal protocol:\n" + String.format(" FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f", paramSearch.bestParams.alpha, paramSearch.bestParams.TD1, paramSearch.bestParams.TD2, paramSearch.bestParams.bestSignal, paramSearch.bestParams.bestContrast, paramSearch.bestParams.getTime());
-			s += String.format( "\n TI:%1$-2.0f TR:%2$-4.0f ", paramSearch.bestParams.TD1 + TR*NP/2, paramSearch.bestParams.TD1 + TR*NP + paramSearch.bestParams.TD2 );
+			s += String.format( "\n TI:%1$-2.0f TR:%2$-4.0f ", paramSearch.bestParams.TD1 + paramSearch.bestParams.TR*paramSearch.bestParams.NP/2, paramSearch.bestParams.getTime() );
 			printMessageLn(s);
 			imagePanel.setImage( getGrayWhiteImage(paramSearch.bestParams.bestContrast) );
 		}
+	}
+	
+	/*
+	 * Runs the full search on SweepWorkers that connect over TCP, on this and other machines
+	 */
+	public void doSimDistributed() {
+		SimParamsComponent simParams = new SimParamsComponent();
 		
-		} // loop on this method 
+		while (true) { // loop on this method
+		
+		int result = JOptionPane.showConfirmDialog( this, simParams.getComponent(), "Get Simulation Parameters", JOptionPane.OK_CANCEL_OPTION);
+		if ( result == JOptionPane.CANCEL_OPTION ) {
+			shutdown();
+			return;
+		}
+		
+		SimParams params = simParams.getParams();
+		SweepCoordinator coordinator = new SweepCoordinator( params );
+		final long total = coordinator.getNumProtocols();
+		final BestParamSearch liveSearch = params.newBest();
+		coordinator.setListener( new GridSweep.Listener() {
+			@Override
+			public void result( long index, double[] point, double signalA, double signalB, double contrast, double time ) {
+			}
+			
+			@Override
+			public void chunkDone( long numDone, BestParamSearch chunkBest ) {
+				synchronized ( liveSearch ) {
+					// leases finish in any order, so this is only a preview of the merged result
+					String s = null;
+					if ( liveSearch.merge( chunkBest ) )
+						s = String.format("New optimal protocol found:\n FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f", liveSearch.bestParams.alpha, liveSearch.bestParams.TD1, liveSearch.bestParams.TD2, liveSearch.bestParams.bestSignal, liveSearch.bestParams.bestContrast, liveSearch.bestParams.getTime());
+					showLater( (int) (100L*numDone/total), s, null );
+				}
+			}
+		});
+		
+		long st = System.currentTimeMillis();
+		BestParamSearch paramSearch;
+		try {
+			coordinator.start( simParams.getPort() );
+			printMessageLn( String.format("Serving %d protocols on port %d, start workers with\n java -cp <classes> edu.umaryland.mri.search.SweepWorker <this host> %d [threads]", total, coordinator.getPort(), coordinator.getPort()) );
+			paramSearch = coordinator.waitFor();
+		} catch (IOException e) {
+			e.printStackTrace();
+			continue;
+		} finally {
+			coordinator.stop();
+		}
+		waitForDisplay();
+		
+		long en = System.currentTimeMillis();
+		progressBar.setValue(100);
+		String s = String.format("Elapsed time: %d s\nAvg. time per calc (for %d total): %4.4f ms", (en-st)/1000, total, 1.0*(en-st)/total );
+		if ( coordinator.getNumLoops() > 0 )
+			s += String.format("\nAvg. MPRAGE cycles per calc: %4.2f", 1.0*coordinator.getNumLoops()/total );
+		printMessageLn(s);
+		printBestParams( paramSearch );
+		
+		} // loop on this method
 	}
 	
 	
@@ -671,30 +615,22 @@ public class RunSimulation extends JFrame {
 		long st = System.currentTimeMillis();
 		printMessageLn("Started sim with " + cpuCores + " threads...");
 		
-		// create an array with all of the parameters we will try
-		int total = (faEn-faSt+1) * ((td1En-td1St)/td1Inc+1) * ((td2En-td2St+1)/td2Inc+1);
-		int params[][] = new int[total][3];
-		int count = 0;
-        for ( int fa=faSt; fa<=faEn; fa=fa+faInc )
-		for ( int td1=td1St; td1<=td1En; td1=td1+td1Inc )
-		for ( int td2=td2St; td2<=td2En; td2=td2+td2Inc ) {
-			params[count][0] = fa;
-			params[count][1] = td1;
-			params[count][2] = td2;
-			count++;
-		}
+		// the parameters are looked up by index, nothing is stored for the whole grid
+		ParamGrid grid = simParams.getParams().getGrid();
+		long total = grid.getNumPoints();
+		long count = 0;
 		
-        int[] currCounts = new int[cpuCores]; // used to keep track of the parameters used in each thread
+        long[] currCounts = new long[cpuCores]; // used to keep track of the parameters used in each thread
 		boolean isDone = false;		  
 		count = 0;
 		while ( !isDone ) {
 			if  ( count % 250 == 0 )
-				progressBar.setValue( 100 * count/total );
+				progressBar.setValue( (int) (100 * count/total) );
 			
 			// set parameters and run simulations on multiple threads 
 			for ( int i=0; i<cpuCores; i++ ) {
 				if ( count < total ) {
-					simRunnerArray[i].setSeqParams(params[count][0], spoilInc, TR, params[count][1], params[count][2], NP);
+					simRunnerArray[i].setSeqParams(grid.getValue(count, SimParams.AXIS_FA), spoilInc, TR, grid.getValue(count, SimParams.AXIS_TD1), grid.getValue(count, SimParams.AXIS_TD2), NP);
 					currCounts[i] = count;
 					threadArray[i] = new Thread(simRunnerArray[i]);
 					threadArray[i].start();
@@ -716,6 +652,9 @@ public class RunSimulation extends JFrame {
 						e.printStackTrace();
 					}
 					// no longer multi-threaded, run through each result one at a time
+					int fa = (int) grid.getValue(currCounts[i], SimParams.AXIS_FA);
+					int td1 = (int) grid.getValue(currCounts[i], SimParams.AXIS_TD1);
+					int td2 = (int) grid.getValue(currCounts[i], SimParams.AXIS_TD2);
 					double[] meanSignal = simRunnerArray[i].get1DTissueMean();
 					double meanA = meanSignal[0]/NP; // note ifft is unnormalized, fix it here
 					double meanB = meanSignal[1]/NP; // note ifft is unnormalized, fix it here
@@ -725,7 +664,7 @@ public class RunSimulation extends JFrame {
 						graphPanel.setDataPair( 0, Tools.getComplexMagn(simRunnerArray[i].get1DSim()) );
 					
 					if ( doFileWrite ) {
-						s = String.format("%-6d,%-3d,%-4d,%-4d,%-6.6f,%6.6f,%-8.3f\n",count,params[currCounts[i]][0],params[currCounts[i]][1],params[currCounts[i]][2],currMinSignal,meanSignal[1]/meanSignal[0],TR*NP+params[currCounts[i]][1]+params[currCounts[i]][2]);
+						s = String.format("%-6d,%-3d,%-4d,%-4d,%-6.6f,%6.6f,%-8.3f\n",count,fa,td1,td2,currMinSignal,meanSignal[1]/meanSignal[0],TR*NP+td1+td2);
 						try {
 							bw.write(s);
 						} catch (IOException e) {
@@ -742,13 +681,13 @@ public class RunSimulation extends JFrame {
 							// now check to see if it is a better answer
 							if ( currContrast >= bestContrast ) {
 								// check time
-								double currTime = NP*TR + params[currCounts[i]][1] + params[currCounts[i]][2];
+								double currTime = NP*TR + td1 + td2;
 								if ( currTime <= bestTime ) {
 									// finally, a better answer
 									bestFound = true;
-									bestFA = params[currCounts[i]][0];
-									bestTD1 = params[currCounts[i]][1];
-									bestTD2 = params[currCounts[i]][2];
+									bestFA = fa;
+									bestTD1 = td1;
+									bestTD2 = td2;
 									bestSignal = currMinSignal;
 									bestContrast = currContrast;
 									bestTime = currTime;
@@ -818,7 +757,7 @@ public class RunSimulation extends JFrame {
 		
 		boolean doFileWrite = simParams.getWriteFile();
 		File writeFile = null;
-		BufferedWriter bw = null;
+		OrderedWriter ow = null;
 		if ( doFileWrite ) {
 			JFileChooser jc = new JFileChooser();
 			int returnVal = jc.showSaveDialog(this);
@@ -827,10 +766,13 @@ public class RunSimulation extends JFrame {
 			else {
 				writeFile = jc.getSelectedFile();
 				try {
-					bw = new BufferedWriter( new FileWriter( writeFile ) );
-					bw.write("count,fa,ti,td,min_signal,contrast,total_time\n");
+					BufferedWriter bw = new BufferedWriter( new FileWriter( writeFile ) );
+					bw.write( OrderedWriter.CSV_HEADER );
+					// rows are formatted and written on the writer's thread, numbered from 1
+					ow = new OrderedWriter( bw, OrderedWriter.CSV_ROW, 1, 1<<12 );
 				} catch (IOException e) {
 					e.printStackTrace();
+					doFileWrite = false;
 				}
 			}
 		}
@@ -842,7 +784,7 @@ public class RunSimulation extends JFrame {
 		double bestTime = 1e10;
 		double bestFA = 0, bestTD1 = 0, bestTD2 = 0;
 		boolean bestFound = false;
-		int total = (faEn-faSt+1) * ((td1En-td1St)/td1Inc+1) * ((td2En-td2St+1)/td2Inc+1);
+		int total = (int) simParams.getParams().getGrid().getNumPoints();
 		int count = 0;		
 		long st = System.currentTimeMillis();
 		
@@ -881,15 +823,8 @@ public class RunSimulation extends JFrame {
 			// determine which tissue has the minimum signal
 			double currMinSignal = (meanA < meanB ) ? meanA : meanB; 
 			
-			if ( doFileWrite ) {
-				s = String.format("%-6d,%-3d,%-4d,%-4d,%-6.6f,%6.6f,%-8.3f\n",count,fa,td1,td2,currMinSignal,meanSignal[1]/meanSignal[0],TR*NP+td1+td2);
-				try {
-					bw.write(s);
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			}
+			if ( doFileWrite )
+				ow.put( count, new double[] { fa, td1, td2, currMinSignal, meanSignal[1]/meanSignal[0], TR*NP+td1+td2, NP, TR, spoilInc } );
 			
 			if ( currMinSignal >= signalMin ) {
 				// now check contrast
@@ -926,9 +861,8 @@ public class RunSimulation extends JFrame {
 		
 		if ( doFileWrite )
 			try {
-				bw.close();
+				ow.close();
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
 		
@@ -966,22 +900,16 @@ public class RunSimulation extends JFrame {
 		private JTextField cFactor = new JTextField("15");
 		private JCheckBox writeFile = new JCheckBox();
 		private JCheckBox liveView = new JCheckBox();
+		private JCheckBox speculative = new JCheckBox();
+		private JCheckBox coarseToFine = new JCheckBox();
+		private JCheckBox timeOrdered = new JCheckBox();
+		private JCheckBox keepResults = new JCheckBox();
+		private JTextField port = new JTextField("5150");
 		
 		// constructor, add components to panel
 		public SimParamsComponent() {
-			int numLines = 20;
-			if ( currSearchType == SearchType.FULL ) {
-				if ( currDistType == DistType.LOCAL )
-					numLines = 23;
-				else if ( currDistType == DistType.PUBLIC )
-					numLines = 13;
-			} else if ( currSearchType == SearchType.SIM_ANNEAL ) {
-				if ( currDistType == DistType.LOCAL )
-					numLines = 23;
-				else if ( currDistType == DistType.PUBLIC )
-					numLines = 23;
-			}
-			mainPanel.setLayout(new GridLayout(numLines,3));
+			// three components to a row, as many rows as are added below
+			mainPanel.setLayout(new GridLayout(0,3));
 			
 			mainPanel.add(new JLabel("PDa: ")); mainPanel.add(PDa); mainPanel.add(new JLabel("[0-1]"));
 			mainPanel.add(new JLabel("T1a: ")); mainPanel.add(T1a); mainPanel.add(new JLabel("ms"));
@@ -993,28 +921,41 @@ public class RunSimulation extends JFrame {
 			mainPanel.add(new JLabel("NP: ")); mainPanel.add(NP); mainPanel.add(new JLabel(""));
 			mainPanel.add(new JLabel("Spoil incr.: ")); mainPanel.add(spoil);  mainPanel.add(new JLabel("deg"));
 			mainPanel.add(new JLabel("Ideal spoiling: ")); mainPanel.add(idealSpoil); mainPanel.add(new JLabel(""));
-			if ( currDistType == DistType.LOCAL ) {
-				mainPanel.add(new JLabel("FA start: ")); mainPanel.add(FAst); mainPanel.add(new JLabel("deg"));
-				mainPanel.add(new JLabel("FA end: ")); mainPanel.add(FAen); mainPanel.add(new JLabel("deg"));
-				mainPanel.add(new JLabel("FA incr.: ")); mainPanel.add(FAinc); mainPanel.add(new JLabel("deg"));
-				mainPanel.add(new JLabel("TD1 start: ")); mainPanel.add(TD1st); mainPanel.add(new JLabel("ms"));
-				mainPanel.add(new JLabel("TD1 end: ")); mainPanel.add(TD1en); mainPanel.add(new JLabel("ms"));
-				mainPanel.add(new JLabel("TD1 incr.: ")); mainPanel.add(TD1inc); mainPanel.add(new JLabel("ms"));
-				mainPanel.add(new JLabel("TD2 start: ")); mainPanel.add(TD2st); mainPanel.add(new JLabel("ms"));
-				mainPanel.add(new JLabel("TD2 end: ")); mainPanel.add(TD2en); mainPanel.add(new JLabel("ms"));
-				mainPanel.add(new JLabel("TD2 incr.: ")); mainPanel.add(TD2inc); mainPanel.add(new JLabel("ms"));
-			}
+			mainPanel.add(new JLabel("FA start: ")); mainPanel.add(FAst); mainPanel.add(new JLabel("deg"));
+			mainPanel.add(new JLabel("FA end: ")); mainPanel.add(FAen); mainPanel.add(new JLabel("deg"));
+			mainPanel.add(new JLabel("FA incr.: ")); mainPanel.add(FAinc); mainPanel.add(new JLabel("deg"));
+			mainPanel.add(new JLabel("TD1 start: ")); mainPanel.add(TD1st); mainPanel.add(new JLabel("ms"));
+			mainPanel.add(new JLabel("TD1 end: ")); mainPanel.add(TD1en); mainPanel.add(new JLabel("ms"));
+			mainPanel.add(new JLabel("TD1 incr.: ")); mainPanel.add(TD1inc); mainPanel.add(new JLabel("ms"));
+			mainPanel.add(new JLabel("TD2 start: ")); mainPanel.add(TD2st); mainPanel.add(new JLabel("ms"));
+			mainPanel.add(new JLabel("TD2 end: ")); mainPanel.add(TD2en); mainPanel.add(new JLabel("ms"));
+			mainPanel.add(new JLabel("TD2 incr.: ")); mainPanel.add(TD2inc); mainPanel.add(new JLabel("ms"));
 			mainPanel.add(new JLabel("Smin: ")); mainPanel.add(sMin); mainPanel.add(new JLabel(""));
 			mainPanel.add(new JLabel("Cmin: ")); mainPanel.add(cMin); mainPanel.add(new JLabel(""));
+			// the workers of the distributed sweep have caches of their own
+			if ( currSearchType != SearchType.FULL || currDistType == DistType.LOCAL ) {
+				mainPanel.add(new JLabel("Keep results: ")); mainPanel.add(keepResults); mainPanel.add(new JLabel("(" + STORE_FILE + ")"));
+			}
 			if ( currDistType == DistType.LOCAL ) {
 				mainPanel.add(new JLabel("Write file: ")); mainPanel.add(writeFile); mainPanel.add(new JLabel(""));
 			}
-			if ( currSearchType == SearchType.SIM_ANNEAL ) {
+			if ( currSearchType == SearchType.SIM_ANNEAL || currSearchType == SearchType.GRADIENT ) {
 				mainPanel.add(new JLabel("Signal factor: ")); mainPanel.add(sFactor); mainPanel.add(new JLabel("x"));
 				mainPanel.add(new JLabel("Contrast factor: ")); mainPanel.add(cFactor); mainPanel.add(new JLabel("x"));
 			}
+			if ( currSearchType == SearchType.SIM_ANNEAL ) {
+				mainPanel.add(new JLabel("Speculative steps: ")); mainPanel.add(speculative); mainPanel.add(new JLabel(""));
+			}
 			if ( currSearchType == SearchType.FULL ) {
-				mainPanel.add(new JLabel("Live view: ")); mainPanel.add(liveView); mainPanel.add(new JLabel(""));
+				if ( currDistType == DistType.PUBLIC ) {
+					mainPanel.add(new JLabel("Port: ")); mainPanel.add(port); mainPanel.add(new JLabel("(for workers)"));
+				}
+				// the workers only send back the best protocols of each lease, there is nothing to view live
+				if ( currDistType == DistType.LOCAL ) {
+					mainPanel.add(new JLabel("Live view: ")); mainPanel.add(liveView); mainPanel.add(new JLabel(""));
+					mainPanel.add(new JLabel("Coarse to fine: ")); mainPanel.add(coarseToFine); mainPanel.add(new JLabel(""));
+					mainPanel.add(new JLabel("Stop at fastest: ")); mainPanel.add(timeOrdered); mainPanel.add(new JLabel("(time order)"));
+				}
 			}
 		}
 
@@ -1048,10 +989,87 @@ public class RunSimulation extends JFrame {
 		public double getCFactor() { return Double.parseDouble(cFactor.getText()); }
 		public boolean getWriteFile() { return writeFile.isSelected(); }
 		public boolean getLiveView() { return liveView.isSelected(); }
+		public boolean getSpeculative() { return speculative.isSelected(); }
+		public boolean getCoarseToFine() { return coarseToFine.isSelected(); }
+		public boolean getTimeOrdered() { return timeOrdered.isSelected(); }
+		public boolean getKeepResults() { return keepResults.isSelected(); }
+		public int getPort() { return Integer.parseInt(port.getText()); }
+		
+		/*
+		 * The parameters in the dialog, for searches that run without it
+		 */
+		public SimParams getParams() {
+			SimParams p = new SimParams();
+			p.setTissueAParams( getPDa(), getT1a(), getT2a() );
+			p.setTissueBParams( getPDb(), getT1b(), getT2b() );
+			p.setTR( getTR() );
+			p.setNP( getNP() );
+			p.setSpoil( getSpoil() );
+			p.setIdealSpoil( getIdealSpoil() );
+			p.setFARange( getFAst(), getFAen(), getFAinc() );
+			p.setTD1Range( getTD1st(), getTD1en(), getTD1inc() );
+			p.setTD2Range( getTD2st(), getTD2en(), getTD2inc() );
+			p.setSMin( getSMin() );
+			p.setCMin( getCMin() );
+			p.setSFactor( getSFactor() );
+			p.setCFactor( getCFactor() );
+			return p;
+		}
 	}
 	
 	
 	/* handy methods to print text to textArea */
+	/*
+	 * Listeners are called from the worker threads, they hand what they show over to the event
+	 * dispatch thread. Negative progress and null message or image are left as they are.
+	 */
+	private void showLater( final int progress, final String message, final BufferedImage image ) {
+		SwingUtilities.invokeLater( new Runnable() {
+			@Override
+			public void run() {
+				if ( progress >= 0 )
+					progressBar.setValue( progress );
+				if ( message != null )
+					printMessageLn( message );
+				if ( image != null )
+					imagePanel.setImage( image );
+			}
+		});
+	}
+	
+	/*
+	 * Shows the image of the latest result; results come faster than they can be painted, so only
+	 * the last one that came in before the event dispatch thread got to it is shown
+	 */
+	private void showLater( BufferedImage image ) {
+		if ( liveImage.getAndSet( image ) == null )
+			SwingUtilities.invokeLater( new Runnable() {
+				@Override
+				public void run() {
+					imagePanel.setImage( liveImage.getAndSet( null ) );
+				}
+			});
+	}
+	
+	/*
+	 * Waits until what the listeners handed over is shown, so the summary of a search comes after it
+	 */
+	private void waitForDisplay() {
+		if ( SwingUtilities.isEventDispatchThread() )
+			return;
+		try {
+			SwingUtilities.invokeAndWait( new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (InvocationTargetException e) {
+			e.printStackTrace();
+		}
+	}
+	
 	public void printMessageLn( String s ) {
 		printMessage( s+"\n");
 	}
@@ -1073,103 +1091,23 @@ public class RunSimulation extends JFrame {
 		RunSimulation sim = new RunSimulation();
 			
 		// get parameters and run the simulation
-		if ( currSearchType == SearchType.FULL )
-			sim.doSimThreaded2();
+		if ( currSearchType == SearchType.FULL ) {
+			if ( currDistType == DistType.PUBLIC )
+				sim.doSimDistributed();
+			else
+				sim.doSimThreaded2();
+		}
 		if ( currSearchType == SearchType.SIM_ANNEAL )
 			sim.doSimAnneal();		
+		if ( currSearchType == SearchType.GRADIENT )
+			sim.doSimGradient();
 	}
 	
 	/*
 	 * these change the way program runs
 	 */
-	private enum SearchType { FULL, SIM_ANNEAL }
+	private enum SearchType { FULL, SIM_ANNEAL, GRADIENT }
 	private enum DistType { LOCAL, PUBLIC }
 	private static final DistType currDistType = DistType.LOCAL;
 	private static final SearchType currSearchType = SearchType.FULL;	
-
-	/*
-	 * helper classes to store search parameters
-	 */
-	
-	private class BestParamSearch {		
-		private double desiredSignal, desiredContrast;
-		private double minSignal, minContrast;
-		public double TR;
-		public int NP;
-		private class OptParams {
-			// used to keep to track of optimal values
-			public double bestContrast = 0, bestSignal = 0, bestErr = Double.MAX_VALUE;
-			// sequence parameters		
-			public double alpha, TD1, TD2;
-			public double getTime() { return TD1 + NP*TR + TD2; }
-		}
-		OptParams bestParams, bestCParams, bestSParams;
-		
-		public BestParamSearch( double ds, double dc, double ms, double mc, double tr, int np ) {
-			desiredSignal = ds; 
-			desiredContrast = dc;
-			minSignal = ms;
-			minContrast = mc;
-			TR = tr;
-			NP = np;
-			bestParams = new OptParams();
-			bestCParams = new OptParams();
-			bestSParams = new OptParams();
-		}
-		
-		public boolean tryBest(double s, double c, double a, double td1, double td2) {
-			if ( s >= minSignal )
-				if ( c >= minContrast ) {
-					// check time
-					double currErr = td1 + NP*TR + td2;
-					if ( currErr <= bestParams.bestErr ) {
-						bestParams.bestContrast = c;
-						bestParams.bestSignal = s;
-						bestParams.alpha = a;
-						bestParams.TD1 = td1;
-						bestParams.TD2 = td2;
-						bestParams.bestErr = currErr;
-						return true;
-					}
-				}
-			return false;
-		}
-		
-		public boolean tryContrast( double s, double c, double a, double td1, double td2 ) {
-			double currErr = 0;
-			// get SE
-			currErr = c - desiredContrast;
-			currErr *= currErr;
-			// check if this one is better
-			if ( currErr < bestCParams.bestErr ) {
-				bestCParams.bestContrast = c;
-				bestCParams.bestSignal = s;
-				bestCParams.alpha = a;
-				bestCParams.TD1 = td1;
-				bestCParams.TD2 = td2;
-				bestCParams.bestErr = currErr;
-				return true;
-			}
-			return false;
-		}
-		
-		public boolean trySignal( double s, double c, double a, double td1, double td2 ) {
-			double currErr = 0;
-			// get SE
-			currErr = s - desiredSignal;
-			currErr *= currErr;
-			// check if this one is better
-			if ( currErr < bestSParams.bestErr ) {
-				bestSParams.bestContrast = c;
-				bestSParams.bestSignal = s;
-				bestSParams.alpha = a;
-				bestSParams.TD1 = td1;
-				bestSParams.TD2 = td2;
-				bestSParams.bestErr = currErr;
-				return true;
-			}
-			return false;
-		}
-	}
 }
-
@@ -55,6 +55,20 @@ public class ComplexDoubleFFT extends ComplexDoubleFFT_Mixed
          cfftf(ndim, x, wavetable); 
      }
 
+/**
+  * Forward complex FFT transform as <em>ft</em>(double[]), with a work array owned by the caller
+  * so that the transform does not allocate when <em>n</em> only has the factors 2, 3, 4 and 5.
+  *
+  * @param x  2*<em>n</em> real double data representing <em>n</em> complex double data.
+  * @param work  2*<em>n</em> real double data, overwritten.
+*/
+     public void ft(double x[], double work[])
+     {
+         if(x.length != 2*ndim || work.length < 2*ndim)
+              throw new IllegalArgumentException("The length of data can not match that of the wavetable");
+         cfftf(ndim, x, wavetable, work); 
+     }
+
 /**
   * Forward complex FFT transform.  
   *
@@ -99,6 +113,20 @@ public class ComplexDoubleFFT extends ComplexDoubleFFT_Mixed
          cfftb(ndim, x, wavetable);
      }
 
+/**
+  * Backward complex FFT transform as <em>bt</em>(double[]), with a work array owned by the caller
+  * so that the transform does not allocate when <em>n</em> only has the factors 2, 3, 4 and 5.
+  *
+  * @param x  2*<em>n</em> real double data representing <em>n</em> complex double data.
+  * @param work  2*<em>n</em> real double data, overwritten.
+*/
+     public void bt(double x[], double work[])
+     {
+         if(x.length != 2*ndim || work.length < 2*ndim)
+              throw new IllegalArgumentException("The length of data can not match that of the wavetable");
+         cfftb(ndim, x, wavetable, work);
+     }
+
 /**
   * Backward complex FFT transform. It is the unnormalized inverse transform of <em>ft</em>(Complex1D[]). 
   *
@@ -448,21 +448,27 @@ class ComplexDoubleFFT_Mixed
    cfftf1: further processing of Complex forward FFT
   --------------------------------------------------------*/
      void cfftf1(int n, double c[], final double wtable[], int isign)
+     {
+          cfftf1(n, c, wtable, isign, new double[2*n]);
+     }
+
+/*---------------------------------------------------------
+   cfftf1: as above with a work array ch of 2*n doubles,
+   only factors other than 2, 3, 4 and 5 allocate
+  --------------------------------------------------------*/
+     void cfftf1(int n, double c[], final double wtable[], int isign, double ch[])
      {
           int     idot, i;
           int     k1, l1, l2;
           int     na, nf, ip, iw, ido, idl1;
-          int[]  nac = new int[1];
+          int[]  nac = null;
 
           int     iw1, iw2;
-          double[] ch = new double[2*n];
 
           iw1=2*n;
           iw2=4*n;
           System.arraycopy(wtable, 0, ch, 0, 2*n);
 
-          nac[0] = 0;
-
           nf=(int)wtable[1+iw2];
           na=0;
           l1=1;
@@ -524,6 +530,8 @@ class ComplexDoubleFFT_Mixed
 	      }
 	      else
 	      {
+	          if(nac==null) nac = new int[1];
+	          nac[0] = 0;
 	          if(na==0)
                   {
                         passfg(nac, idot, ip, l1, idl1, c, c, c, ch, ch, wtable, iw, isign);
@@ -557,6 +565,19 @@ class ComplexDoubleFFT_Mixed
           cfftf1(n, c, wtable, +1);
      } 
 
+/*---------------------------------------------------------
+   cfftf, cfftb with a work array of 2*n doubles
+  --------------------------------------------------------*/
+     void cfftf(int n, double c[], double wtable[], double ch[])
+     {
+          cfftf1(n, c, wtable, -1, ch);
+     } 
+
+     void cfftb(int n, double c[], double wtable[], double ch[])
+     {
+          cfftf1(n, c, wtable, +1, ch);
+     } 
+
 /*---------------------------------------------------------
    cffti1: further initialization of Complex FFT
   --------------------------------------------------------*/
@@ -0,0 +1,107 @@
+package edu.umaryland.mri.data;
+
+import edu.umaryland.mri.data.EPG_MPRAGE.Workspace;
+
+/*
+ * The RF rotation and relaxation of the EPG states, which is where EPG_MPRAGE spends its time. This
+ * is the scalar kernel; EPG_VectorKernel does the same with the Vector API and is used instead when
+ * it was built (it is in the optional source root src-vector) and the jdk.incubator.vector module is
+ * present (java --add-modules jdk.incubator.vector ...).
+ */
+class EPG_Kernel {
+
+	static final EPG_Kernel SCALAR = new EPG_Kernel();
+
+	private static EPG_Kernel fastest;
+
+	/*
+	 * Returns the vector kernel if the Vector API is available, the scalar kernel otherwise
+	 */
+	static synchronized EPG_Kernel getFastest() {
+		if ( fastest == null ) {
+			fastest = SCALAR;
+			if ( ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent() ) {
+				try {
+					// loaded by name so this class never links against the incubator module
+					fastest = (EPG_Kernel)Class.forName("edu.umaryland.mri.data.EPG_VectorKernel").getDeclaredConstructor().newInstance();
+				} catch (ClassNotFoundException e) {
+					// src-vector was not built, the scalar kernel it is
+				} catch (Exception e) {
+					e.printStackTrace();
+				} catch (LinkageError e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return fastest;
+	}
+
+	/*
+	 * Rotation of orders 0..kMax by a pulse with the given coefficients, from fx,fy,zx,zy into
+	 * pfx,pfy,pzx,pzy
+	 */
+	void rotate( Workspace ws, int kMax, double a, double hb, double gb, double ec, double fc, double d ) {
+		rotate( ws, 0, kMax, a, hb, gb, ec, fc, d );
+	}
+
+	/*
+	 * Relaxation over one interval and dephasing of orders -kMax..kMax, from pfx,pfy,pzx,pzy into
+	 * fx,fy,zx,zy, where rc is the recovery of the zero order
+	 */
+	void relax( Workspace ws, int kMax, double e1, double e2, double rc ) {
+		relax( ws, -kMax, kMax, e1, e2, rc );
+	}
+
+	final void rotate( Workspace ws, int kMin, int kMax, double a, double hb, double gb, double ec, double fc, double d ) {
+	    double[] fx = ws.fx;
+	    double[] fy = ws.fy;
+	    double[] pfx = ws.pfx;
+	    double[] pfy = ws.pfy;
+	    double[] pzx = ws.pzx;
+	    double[] pzy = ws.pzy;
+	    double[] zx = ws.zx;
+	    double[] zy = ws.zy;
+	    int NP = ws.np;
+
+        for ( int k=kMin; k<=kMax; k++ ) {
+
+        	int n=NP+k;
+        	int m=NP-k;
+
+        	pfx[n]=a*fx[n]+hb*fx[m]+gb*fy[m]+ec*zx[k+1]+fc*zy[k+1];
+        	pfy[n]=a*fy[n]-hb*fy[m]+gb*fx[m]-fc*zx[k+1]+ec*zy[k+1];
+        	pfx[m]=hb*fx[n]+gb*fy[n]+a*fx[m]+ec*zx[k+1]-fc*zy[k+1];
+        	pfy[m]=gb*fx[n]-hb*fy[n]+a*fy[m]-fc*zx[k+1]-ec*zy[k+1];
+        	pzx[k+1]=(-ec*fx[n]+fc*fy[n]-ec*fx[m]+fc*fy[m]+2*d*zx[k+1])/2;
+        	pzy[k+1]=(-fc*fx[n]-ec*fy[n]+fc*fx[m]+ec*fy[m]+2*d*zy[k+1])/2;
+
+        }
+	}
+
+	final void relax( Workspace ws, int kMin, int kMax, double e1, double e2, double rc ) {
+	    double[] fx = ws.fx;
+	    double[] fy = ws.fy;
+	    double[] pfx = ws.pfx;
+	    double[] pfy = ws.pfy;
+	    double[] pzx = ws.pzx;
+	    double[] pzy = ws.pzy;
+	    double[] zx = ws.zx;
+	    double[] zy = ws.zy;
+	    int NP = ws.np;
+
+        for ( int k=kMin; k<=kMax; k++ ) {
+        	int n=NP+k;
+            fx[n+1]=pfx[n]*e2;
+            fy[n+1]=pfy[n]*e2;
+
+            if ( k > 0 )
+                zx[k+1]=pzx[k+1]*e1;
+
+            if ( k == 0 )
+                zx[k+1]=pzx[k+1]*e1+rc;
+
+            if ( k >= 0 )
+                zy[k+1]=pzy[k+1]*e1;
+        }
+	}
+}
@@ -1,24 +1,54 @@
 package edu.umaryland.mri.data;
 
+import java.util.Arrays;
+
 public class EPG_MPRAGE {
 	
+	// parameters of the derivatives from doCalcDerivatives()
+	public static final int D_FA = 0;
+	public static final int D_TD1 = 1;
+	public static final int D_TD2 = 2;
+	public static final int NUM_DERIVS = 3;
+	
 	// tissue parameters
 	protected double M0, T1, T2;
 	// sequence parameters
 	protected double alpha, increment, TR, TD1, TD2;
 	protected int NP;
 	private boolean bIdealSpoiling;
+	private boolean bClosedFormSpoiling;
+	private boolean bDirectSteadyState;
+	private boolean bReuseEchoTrain;
+	private boolean bVectorKernel;
+	private boolean bWarmStart;
 	private boolean bVerbose;
 	private double steadyStateEps;
 	private int maxLoops;	
+	private double truncationEps;
+	private EchoTrainOperator trainOperator; // last operator used, saves a cache lookup
+	
+	// Mz states to start the next calculation from, and the steady state of the last one
+	private double[] zxStart, zyStart, zxSteady, zySteady;
+	private boolean bHasStart, bHasSteady;
+	private int numLoops; // MPRAGE cycles used by the last calculation
+	private Workspace[] tangents; // derivatives of the EPG states, see doCalcDerivatives()
+	
+	// workspaces owned by each thread
+	private static final ThreadLocal<Workspace> localWorkspace = new ThreadLocal<Workspace>();
 		
 	/*
 	 * Creates an MPRAGE object
 	 */
 	public EPG_MPRAGE() {
 		maxLoops = 25;
+		truncationEps = 0;
 		steadyStateEps=1e-10;
 		bIdealSpoiling = false;
+		bClosedFormSpoiling = false;
+		bDirectSteadyState = false;
+		bReuseEchoTrain = false;
+		bVectorKernel = true;
+		bWarmStart = false;
 		bVerbose = false;
 	}	
 	
@@ -35,9 +65,15 @@ public class EPG_MPRAGE {
 		this.TD2 = that.TD2;
 		this.NP = that.NP;
 		this.bIdealSpoiling = that.bIdealSpoiling;
+		this.bClosedFormSpoiling = that.bClosedFormSpoiling;
+		this.bDirectSteadyState = that.bDirectSteadyState;
+		this.bReuseEchoTrain = that.bReuseEchoTrain;
+		this.bVectorKernel = that.bVectorKernel;
+		this.bWarmStart = that.bWarmStart;
 		this.bVerbose = that.bVerbose;
 		this.steadyStateEps = that.steadyStateEps;
 		this.maxLoops = that.maxLoops;
+		this.truncationEps = that.truncationEps;
 	}
 
 	/**
@@ -80,6 +116,26 @@ public class EPG_MPRAGE {
 	 * @return
 	 */
 	public double[][] doCalc() {
+		// output array (transverse magnetization)
+	    double[][] output = new double[3][NP];
+	    
+	    doCalc( new Workspace(NP), output );
+	    
+	    return output;
+	}
+	
+	/**
+	 * Does MPRAGE calculation without allocating, using arrays owned by the caller. The workspace 
+	 * can be reused for any calculation with the same NP, see getLocalWorkspace() 
+	 * 
+	 * @param ws workspace for NP
+	 * @param output array of size (3xNP), filled as returned by doCalc()
+	 */
+	public void doCalc( Workspace ws, double[][] output ) {
+		if ( ws.np != NP )
+			throw new IllegalArgumentException("The size of the workspace does not match the length of the pulse train");
+		if ( output.length != 3 || output[0].length != NP || output[1].length != NP || output[2].length != NP )
+			throw new IllegalArgumentException("The size of the output does not match the length of the pulse train");
 		
 		if ( bVerbose ) {
 			if ( !bIdealSpoiling )
@@ -89,205 +145,246 @@ public class EPG_MPRAGE {
 			System.out.println("M0=" + M0 + "\tT1=" + T1 + " ms\tT2=" + T2 + " ms");
 			System.out.println("alpha=" + Math.toDegrees(alpha) + " degrees\tRF spoiling increment=" + Math.toDegrees(increment) + " degrees");
 			System.out.println("# of inner TRs=" + NP + "\tinner TR=" + TR + " ms\tTD1=" + TD1 + " ms\tTD2=" + TD2 + " ms");
+			if ( truncationEps > 0 )
+				System.out.println("EPG orders kept=" + (getTruncationOrder()+1) + "\testimated truncation error=" + getTruncationError());
 		}
 		
-		// output array (transverse magnetization)
-	    double[][] output = new double[3][NP];
+	    // with ideal spoiling only the Mz of order 0 is left, which has a closed form
+	    if ( bIdealSpoiling && bClosedFormSpoiling ) {
+	    	solveIdealSpoiling( ws, output );
+	    	numLoops = 0;
+	    	bHasStart = false;
+	    	bHasSteady = false;
+	    	return;
+	    }
+	    
+	    // the steady state follows from the (cached) pulse train operator, no cycles are needed
+	    if ( bReuseEchoTrain ) {
+	    	if ( trainOperator == null || !trainOperator.matches( this ) )
+	    		trainOperator = EchoTrainOperator.getOperator( this );
+	    	trainOperator.getEchoes( TD1, TD2, M0, output );
+	    	numLoops = 0;
+	    	bHasStart = false;
+	    	bHasSteady = false;
+	    	return;
+	    }
+	    
+	    findSteadyState( ws, output );
+		
+		//for ( int k=0; k<output.length; k++ ) {
+		//	System.out.println(output[k][0] + ",\t" + output[k][1] + "i");
+		//}
+	}
+	
+	/**
+	 * Does the MPRAGE calculation like doCalc() and also the derivatives of the echoes with respect 
+	 * to the flip angle (per degree), TD1 and TD2 (per ms). The steady state z = A*z + b of the 
+	 * MPRAGE cycle is found as by doCalc(), iterated or solved directly. Its derivative dz with 
+	 * respect to a parameter then solves (I-A)*dz = dA*z + db, with the same A as the direct 
+	 * solver, so each derivative is one GMRES solve of a handful of cycles. The right hand sides 
+	 * are one cycle of the EPG state derivatives (forward mode: each rotation and relaxation is
+	 * applied to them as well, plus the derivative of its coefficients times the state) from the
+	 * steady state, and one more such cycle from the steady state and dz gives the echoes and 
+	 * their derivatives. This costs about two to three calculations, against the six extra of 
+	 * central differences, and has no step size to choose. Echo train reuse and closed form 
+	 * spoiling are not used here, the other settings are.
+	 * 
+	 * @param ws workspace for NP
+	 * @param output array of size (3xNP), filled as by doCalc()
+	 * @param dOutput array of size (NUM_DERIVSx2xNP), dOutput[p] is the derivative of output[0] and 
+	 * output[1] with respect to parameter p (D_FA, D_TD1 or D_TD2)
+	 */
+	public void doCalcDerivatives( Workspace ws, double[][] output, double[][][] dOutput ) {
+		if ( ws.np != NP )
+			throw new IllegalArgumentException("The size of the workspace does not match the length of the pulse train");
+		if ( tangents == null || tangents[0].np != NP ) {
+			tangents = new Workspace[NUM_DERIVS];
+			for ( int p=0; p<NUM_DERIVS; p++ )
+				tangents[p] = new Workspace(NP);
+		}
+		int n = NP+1;
+		
+		findSteadyState( ws, output );
+		int numLoops = this.numLoops;
+		
+		// the right hand sides dA*z + db are the derivatives after one cycle from the steady state, 
+		// starting with no derivatives
+		ws.clear();
+		System.arraycopy( zxSteady, 0, ws.zx, 0, n );
+		System.arraycopy( zySteady, 0, ws.zy, 0, n );
+		for ( Workspace t : tangents )
+			t.clear();
+		doCycleDerivatives( ws, output, dOutput );
+		numLoops++;
+		
+		// solve (I-A)*dz = dA*z + db, dz is kept in zx_,zy_ of the tangents
+		ws.allocateKrylov( maxLoops );
+		double err = 0;
+		for ( Workspace t : tangents ) {
+			double[] r = ws.V[0];
+			double rNorm = 0;
+			for ( int k=0; k<n; k++ ) {
+				r[k]   = t.zx[k];
+				r[n+k] = t.zy[k];
+				rNorm += r[k]*r[k] + r[n+k]*r[n+k];
+			}
+			rNorm = Math.sqrt(rNorm);
+			Arrays.fill( t.zx_, 0 );
+			Arrays.fill( t.zy_, 0 );
+			numLoops += solveCycleSystem( ws, output, t.zx_, t.zy_, steadyStateEps*rNorm );
+			if ( rNorm > 0 )
+				err = Math.max( err, ws.err/rNorm );
+		}
+		
+		// the steady state cycle with its derivatives gives the echoes
+		ws.clear();
+		System.arraycopy( zxSteady, 0, ws.zx, 0, n );
+		System.arraycopy( zySteady, 0, ws.zy, 0, n );
+		for ( Workspace t : tangents ) {
+			t.clear();
+			System.arraycopy( t.zx_, 0, t.zx, 0, n );
+			System.arraycopy( t.zy_, 0, t.zy, 0, n );
+		}
+		doCycleDerivatives( ws, output, dOutput );
+		numLoops++;
+		this.numLoops = numLoops;
+		
+		if ( bVerbose )
+			System.out.println("Finished. Steady state and derivatives after " + numLoops + " cycles [relative err=" + err + ", tol=" + steadyStateEps + "]");
+	}
+	
+	/**
+	 * Returns a workspace for NP owned by the calling thread. It is reused by every call from 
+	 * that thread, so it must not be shared with other threads or held across calculations.
+	 * 
+	 * @param np Length of RF pulse train
+	 * @return
+	 */
+	public static Workspace getLocalWorkspace( int np ) {
+		Workspace ws = localWorkspace.get();
+		if ( ws == null || ws.np != np ) {
+			ws = new Workspace(np);
+			localWorkspace.set( ws );
+		}
+		return ws;
+	}
+	
+	/**
+	 * Sets the Mz states the next calculation starts from, instead of the equilibrium magnetization.
+	 * Only used by the iterative and direct steady state.
+	 * 
+	 * @param zx real part of the Mz states, size (NP+1) as returned by getSteadyState()
+	 * @param zy imaginary part of the Mz states, size (NP+1)
+	 */
+	public void setInitialState( double[] zx, double[] zy ) {
+		if ( zx.length != NP+1 || zy.length != NP+1 )
+			throw new IllegalArgumentException("The size of the state does not match the length of the pulse train");
+		if ( zxStart == null || zxStart.length != NP+1 ) {
+			zxStart = new double[NP+1];
+			zyStart = new double[NP+1];
+		}
+		System.arraycopy( zx, 0, zxStart, 0, NP+1 );
+		System.arraycopy( zy, 0, zyStart, 0, NP+1 );
+		bHasStart = true;
+	}
+	
+	/**
+	 * Copies the steady state Mz states of the last calculation into zx and zy, of size (NP+1). 
+	 * Returns false if the last calculation did not find them (echo train reuse, closed form ideal 
+	 * spoiling or no calculation yet).
+	 * 
+	 * @param zx
+	 * @param zy
+	 * @return
+	 */
+	public boolean getSteadyState( double[] zx, double[] zy ) {
+		if ( !bHasSteady || zxSteady.length != zx.length || zySteady.length != zy.length )
+			return false;
+		System.arraycopy( zxSteady, 0, zx, 0, zx.length );
+		System.arraycopy( zySteady, 0, zy, 0, zy.length );
+		return true;
+	}
+	
+	/**
+	 * Returns the number of MPRAGE cycles used by the last calculation (0 when no cycles were 
+	 * needed)
+	 * @return
+	 */
+	public int getNumLoops() { return numLoops; }
+	
+	/*
+	 * Iterates or solves the steady state into the workspace and the output, and keeps it as the 
+	 * starting point of the next calculation with warm start
+	 */
+	private void findSteadyState( Workspace ws, double[][] output ) {
+	    if ( bDirectSteadyState )
+	    	solveSteadyState( ws, output );
+	    else
+	    	iterateSteadyState( ws, output );
 	    
+	    if ( zxSteady == null || zxSteady.length != NP+1 ) {
+	    	zxSteady = new double[NP+1];
+	    	zySteady = new double[NP+1];
+	    }
+	    System.arraycopy( ws.zx, 0, zxSteady, 0, NP+1 );
+	    System.arraycopy( ws.zy, 0, zySteady, 0, NP+1 );
+	    bHasSteady = true;
+	    bHasStart = false;
+	}
+	
+	/*
+	 * Puts the Mz states to start from into the cleared workspace: those set with setInitialState(),
+	 * otherwise with warm start the steady state of the last calculation. Returns false if there
+	 * are none.
+	 */
+	private boolean loadStartState( Workspace ws ) {
+		double[] zx0, zy0;
+		if ( bHasStart && zxStart.length == NP+1 ) {
+			zx0 = zxStart;
+			zy0 = zyStart;
+		} else if ( bWarmStart && bHasSteady && zxSteady.length == NP+1 ) {
+			zx0 = zxSteady;
+			zy0 = zySteady;
+		} else {
+			return false;
+		}
+		System.arraycopy( zx0, 0, ws.zx, 0, NP+1 );
+		System.arraycopy( zy0, 0, ws.zy, 0, NP+1 );
+		return true;
+	}
+	
+	/*
+	 * Repeats the MPRAGE cycle until the Mz states stop changing
+	 */
+	private void iterateSteadyState( Workspace ws, double[][] output ) {
+		double[] zx = ws.zx;
+		double[] zy = ws.zy;
+		double[] zx_ = ws.zx_;
+		double[] zy_ = ws.zy_;
+		
 	    // variables used to control iterations towards steady state Mz
 		boolean bIsSteadyState = false;
 		int numLoops = 0;
 
-		// initialize constants and arrays used in calculation
-	    double er1=Math.exp(-TR/T1);
-	    double er2=Math.exp(-TR/T2);
-	    double ed1_1=Math.exp(-TD1/T1);
-	    double ed1_2=Math.exp(-TD1/T2);
-	    double ed2_1=Math.exp(-TD2/T1);
-	    double ed2_2=Math.exp(-TD2/T2);
-	    double[] fx = new double[2*NP+1];
-	    double[] fy = new double[2*NP+1];
-	    double[] pfx = new double[2*NP+1];
-	    double[] pfy = new double[2*NP+1];
-	    double[] pzx=new double[NP+1];
-	    double[] pzy=new double[NP+1];	    
-	    double[] zx = new double[NP+1];
-	    double[] zy = new double[NP+1];
-	    double[] zx_ = new double[NP+1];
-	    double[] zy_ = new double[NP+1];
-	    for ( int k=0; k < zx.length; k++ ) {
-	    	zx_[k] = Double.POSITIVE_INFINITY;
-	    	zy_[k] = Double.POSITIVE_INFINITY;
+	    ws.clear();
+	    if ( loadStartState( ws ) ) {
+	    	// a good guess can be steady state already after one cycle
+	    	System.arraycopy( zx, 0, zx_, 0, zx.length );
+	    	System.arraycopy( zy, 0, zy_, 0, zy.length );
+	    } else {
+		    for ( int k=0; k < zx.length; k++ ) {
+		    	zx_[k] = Double.POSITIVE_INFINITY;
+		    	zy_[k] = Double.POSITIVE_INFINITY;
+		    }
+		    zx[1]=M0; // initial magnetization
 	    }
-	    zx[1]=M0; // initial magnetization
-	    
-	    double beta=Math.PI; // flip angle of inversion pulse
-		
-		// RF spoiling variables
-	    double INCREMENT=0; // quadratically increasing RF phase offset
-		double phi=0; // current RF phase
-		double[] PHI = new double[NP+1]; // used to keep track of RF phase
 	    
 	    // ideally we loop until we get to steady state M_z
 		while ( !bIsSteadyState ) {
 			numLoops++;
-				    	
-	        phi=0;
-	        INCREMENT=0;
-
-	        //%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
-	        //% TD1
-	        //%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
-
-	        double e1=ed1_1;
-	        double e2=ed1_2;
-	        
-	        double a=Math.cos(beta/2)*Math.cos(beta/2);
-	        double b=Math.sin(beta/2)*Math.sin(beta/2);
-	        double c=Math.sin(beta);
-	        double d=Math.cos(beta);
-	        double e=Math.sin(0);
-	        double f=Math.cos(0);
-	        double g=Math.sin(2*0);
-	        double h=Math.cos(2*0);
-	        double hb=h*b;
-	        double gb=g*b;
-	        double ec=e*c;
-	        double fc=f*c;
-	                	
-	        for ( int k=0; k<=NP-1; k++ ) {
-            
-	        	int n=NP+k;
-	        	int m=NP-k;
-	        	
-	        	pfx[n]=a*fx[n]+hb*fx[m]+gb*fy[m]+ec*zx[k+1]+fc*zy[k+1];
-	        	pfy[n]=a*fy[n]-hb*fy[m]+gb*fx[m]-fc*zx[k+1]+ec*zy[k+1];
-	        	pfx[m]=hb*fx[n]+gb*fy[n]+a*fx[m]+ec*zx[k+1]-fc*zy[k+1];
-	        	pfy[m]=gb*fx[n]-hb*fy[n]+a*fy[m]-fc*zx[k+1]-ec*zy[k+1];
-	        	pzx[k+1]=(-ec*fx[n]+fc*fy[n]-ec*fx[m]+fc*fy[m]+2*d*zx[k+1])/2;
-	        	pzy[k+1]=(-fc*fx[n]-ec*fy[n]+fc*fx[m]+ec*fy[m]+2*d*zy[k+1])/2;
-	        	
-	        }
-	        	        
-	        for ( int k=-(NP-1); k <= (NP-1); k++ ) {
-	        	int n=NP+k;
-	            fx[n+1]=pfx[n]*e2;
-	            fy[n+1]=pfy[n]*e2;
-
-	            if ( k > 0 )		            	
-	                zx[k+1]=pzx[k+1]*e1;
-
-
-	            if ( k == 0 )		                
-	                zx[k+1]=pzx[k+1]*e1+M0*(1-e1);
-
-	            if ( k >= 0 )
-	                zy[k+1]=pzy[k+1]*e1;
-	        }
-	        	        		        
-	        //%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
-	        //% alpha pulse train
-	        //%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
-
-	        int t=1;
-	    	
-	        e1=er1;
-	        e2=er2;
-	        
-	        for ( int j=0; j<=NP-1; j++ ) {
-	            
-	            INCREMENT = (INCREMENT+increment) % (2*Math.PI);
-	            phi= (phi+INCREMENT) % (2*Math.PI);
-	            PHI[t-1]=phi;
-
-	            a=Math.cos(alpha/2)*Math.cos(alpha/2);
-	            b=Math.sin(alpha/2)*Math.sin(alpha/2);
-	            c=Math.sin(alpha);
-	            d=Math.cos(alpha);
-	            e=Math.sin(phi);
-	            f=Math.cos(phi);
-	            g=Math.sin(2*phi);
-	            h=Math.cos(2*phi);
-	            hb=h*b;
-	            gb=g*b;
-	            ec=e*c;
-	            fc=f*c;
-	            
-	            for ( int k=0; k<=j; k++ ) {
-	                
-	                int n=NP+k;
-	                int m=NP-k;
-	                
-	                pfx[n]=a*fx[n]+hb*fx[m]+gb*fy[m]+ec*zx[k+1]+fc*zy[k+1];
-	                pfy[n]=a*fy[n]-hb*fy[m]+gb*fx[m]-fc*zx[k+1]+ec*zy[k+1];
-	                pfx[m]=hb*fx[n]+gb*fy[n]+a*fx[m]+ec*zx[k+1]-fc*zy[k+1];
-	                pfy[m]=gb*fx[n]-hb*fy[n]+a*fy[m]-fc*zx[k+1]-ec*zy[k+1];
-	                pzx[k+1]=(-ec*fx[n]+fc*fy[n]-ec*fx[m]+fc*fy[m]+2*d*zx[k+1])/2;
-	                pzy[k+1]=(-fc*fx[n]-ec*fy[n]+fc*fx[m]+ec*fy[m]+2*d*zy[k+1])/2;
-	                
-	            }
-
-	            output[0][t-1] = pfx[NP];
-	            output[1][t-1] = pfy[NP];
-	            output[2][t-1] = PHI[t-1];
-	            
-	            for ( int k=-j; k<=j; k++ ) {
-                
-	                int n=NP+k;
-	                fx[n+1]=pfx[n]*e2;
-	                fy[n+1]=pfy[n]*e2;
-	                
-	                if ( k > 0 )
-	                    zx[k+1]=pzx[k+1]*e1;
-
-	                if ( k == 0 )
-	                    zx[k+1]=pzx[k+1]*e1+M0*(1-e1);
-
-	                if ( k >= 0 )
-	                    zy[k+1]=pzy[k+1]*e1;
-	            }
-	            
-	            // clear transverse magnetization if we are using ideal spoiling
-				if ( bIdealSpoiling ) {
-					for ( int k=0; k<fx.length; k++ ) {
-						fx[k] = 0;
-						fy[k] = 0;
-					}
-				}
-
-	            t++;
-	            
-	        }
-
-	        //%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
-	        //% TD2
-	        //%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
-
-	        e1=ed2_1;
-	        e2=ed2_2;
-
-	        // assume complete loss of transverse magnetization during longitudinal recovery phase
-        	for ( int k=0; k<2*NP; k++ ) {
-        		fx[k] = 0;
-        		fy[k] = 0;
-        	}
-
-        	for ( int k=-(NP-1); k<=(NP-1); k++ ) {
-	            
-	            //int n = NP+k;
-
-	            if ( k > 0 )
-	                zx[k+1]=pzx[k+1]*e1*er1;
-
-	            if ( k == 0 )
-	                zx[k+1]=pzx[k+1]*e1*er1+M0*(1-e1*er1);
-
-
-	            if ( k >= 0 )
-	                zy[k+1]=pzy[k+1]*e1*er1;
-
-        	}
-
+			
+			doCycle( ws, output, M0 );
+			
         	//%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
 			//% check to see if we have reached steady state
 			//%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
@@ -307,6 +404,7 @@ public class EPG_MPRAGE {
 				if ( bVerbose )
 					System.out.println("Finshed. Steady state was not reached after " + numLoops + " iterations [err=" + zErr + ", tol=" + steadyStateEps + "]");	
 			}
+			this.numLoops = numLoops;
 			
 			//%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
 			//% store current Mz as previous
@@ -315,15 +413,541 @@ public class EPG_MPRAGE {
 	        	zx_[k]= zx[k];
 		        zy_[k]= zy[k];				
 			}
-	    }		
+	    }
+	}
+	
+	/*
+	 * One MPRAGE cycle maps the Mz states z=(zx,zy) at the end of TD2 onto themselves as an affine
+	 * map z' = A*z + b, where b is the recovery towards M0. The steady state solves (I-A)*z = b, 
+	 * which we solve with GMRES, and one final cycle from the solution gives the echoes. 
+	 */
+	private void solveSteadyState( Workspace ws, double[][] output ) {
+		double[] zx = ws.zx;
+		double[] zy = ws.zy;
+		int n = zx.length;
+		ws.allocateKrylov( maxLoops );
 		
-		//for ( int k=0; k<output.length; k++ ) {
-		//	System.out.println(output[k][0] + ",\t" + output[k][1] + "i");
-		//}
-		    
-		return output;
+		// the initial guess z0 is kept in zx_,zy_ and the initial residual is b-(I-A)*z0, which is
+		// the cycle of z0 minus z0 (without an initial guess this is b, the cycle of the zero state)
+		double[] zx0 = ws.zx_;
+		double[] zy0 = ws.zy_;
+		double[] r = ws.V[0];
+		ws.clear();
+		loadStartState( ws );
+		System.arraycopy( zx, 0, zx0, 0, n );
+		System.arraycopy( zy, 0, zy0, 0, n );
+		doCycle( ws, output, M0 );
+		for ( int k=0; k<n; k++ ) {
+			r[k]   = zx[k] - zx0[k];
+			r[n+k] = zy[k] - zy0[k];
+		}
+		int numLoops = 1 + solveCycleSystem( ws, output, zx0, zy0, steadyStateEps );
+		double err = ws.err;
+		
+		// run the steady state cycle to get the echoes
+		ws.clear();
+		System.arraycopy( zx0, 0, zx, 0, n );
+		System.arraycopy( zy0, 0, zy, 0, n );
+		doCycle( ws, output, M0 );
+		numLoops++;
+		this.numLoops = numLoops;
+		
+		if ( bVerbose ) {
+			if ( err < steadyStateEps )
+				System.out.println("Finished. Steady state was solved after " + numLoops + " cycles [err=" + err + ", tol=" + steadyStateEps + "]");
+			else
+				System.out.println("Finished. Steady state was not solved after " + numLoops + " cycles [err=" + err + ", tol=" + steadyStateEps + "]");
+		}
+	}
+	
+	/*
+	 * Solves (I-A)*x = r with GMRES, for the linear part A of the MPRAGE cycle and r in ws.V[0] 
+	 * (real parts, then imaginary parts), and adds x to xx,xy. Every product with A is a cycle 
+	 * with M0 set to zero, so the Krylov space is built from a handful of cycles. The states of the
+	 * workspace are overwritten, the residual is left in ws.err. Returns the number of cycles.
+	 */
+	private int solveCycleSystem( Workspace ws, double[][] output, double[] xx, double[] xy, double tol ) {
+		double[] zx = ws.zx;
+		double[] zy = ws.zy;
+		int n = zx.length;
+		int maxIter = maxLoops;
+		
+		// Krylov basis, upper Hessenberg matrix and Givens rotations
+		ws.allocateKrylov( maxIter );
+		double[][] V = ws.V;
+		double[][] H = ws.H;
+		double[] cs = ws.cs;
+		double[] sn = ws.sn;
+		double[] g = ws.g;
+		
+		double beta = 0;
+		for ( int k=0; k<2*n; k++ )
+			beta += V[0][k]*V[0][k];
+		beta = Math.sqrt(beta);
+		
+		int iter = 0;
+		double err = beta;
+		if ( beta > 0 ) {
+			for ( int k=0; k<2*n; k++ )
+				V[0][k] /= beta;
+			g[0] = beta;
+			
+			while ( iter < maxIter && err >= tol ) {
+				// w = (I-A)*v
+				ws.clear();
+				for ( int k=0; k<n; k++ ) {
+					zx[k] = V[iter][k];
+					zy[k] = V[iter][n+k];
+				}
+				doCycle( ws, output, 0 );
+				double[] w = V[iter+1];
+				for ( int k=0; k<n; k++ ) {
+					w[k]   = V[iter][k]   - zx[k];
+					w[n+k] = V[iter][n+k] - zy[k];
+				}
+				
+				// modified Gram-Schmidt
+				for ( int i=0; i<=iter; i++ ) {
+					double h = 0;
+					for ( int k=0; k<2*n; k++ )
+						h += w[k]*V[i][k];
+					for ( int k=0; k<2*n; k++ )
+						w[k] -= h*V[i][k];
+					H[i][iter] = h;
+				}
+				double h = 0;
+				for ( int k=0; k<2*n; k++ )
+					h += w[k]*w[k];
+				h = Math.sqrt(h);
+				H[iter+1][iter] = h;
+				if ( h > 0 )
+					for ( int k=0; k<2*n; k++ )
+						w[k] /= h;
+				
+				// apply previous rotations to the new column and compute a new one
+				for ( int i=0; i<iter; i++ ) {
+					double t     =  cs[i]*H[i][iter] + sn[i]*H[i+1][iter];
+					H[i+1][iter] = -sn[i]*H[i][iter] + cs[i]*H[i+1][iter];
+					H[i][iter]   = t;
+				}
+				double r = Math.hypot( H[iter][iter], H[iter+1][iter] );
+				cs[iter] = H[iter][iter]/r;
+				sn[iter] = H[iter+1][iter]/r;
+				H[iter][iter] = r;
+				H[iter+1][iter] = 0;
+				g[iter+1] = -sn[iter]*g[iter];
+				g[iter]   =  cs[iter]*g[iter];
+				err = Math.abs( g[iter+1] );
+				iter++;
+				
+				if ( h == 0 )
+					break;
+			}
+		}
+		ws.err = err;
+		
+		// back substitution for the Krylov coefficients, the solution is V*y
+		double[] y = ws.y;
+		for ( int i=iter-1; i>=0; i-- ) {
+			y[i] = g[i];
+			for ( int j=i+1; j<iter; j++ )
+				y[i] -= H[i][j]*y[j];
+			y[i] /= H[i][i];
+		}
+		for ( int i=0; i<iter; i++ ) {
+			for ( int k=0; k<n; k++ ) {
+				xx[k] += y[i]*V[i][k];
+				xy[k] += y[i]*V[i][n+k];
+			}
+		}
+		return iter;
+	}
+	
+	/*
+	 * Runs one MPRAGE cycle (inversion, TD1, alpha pulse train, TD2) starting from the Mz states
+	 * in the workspace, with no transverse magnetization. The echoes of the pulse train are stored 
+	 * in output. Longitudinal recovery is towards m0, which is M0 except when the solver needs 
+	 * the linear part of the cycle.
+	 */
+	private void doCycle( Workspace ws, double[][] output, double m0 ) {
+		doInversion( ws, m0 );
+		doPulseTrain( ws, output, m0, 0 );
+		doRecovery( ws, m0 );
+	}
+	
+	/*
+	 * One MPRAGE cycle as doCycle() with the derivatives of the states in tangents[p], and of the
+	 * echoes in dOutput. The rotation and relaxation are linear in their coefficients, so the term 
+	 * of the changed coefficients is found by running them with the derivatives of the coefficients
+	 * on the states, just before the states themselves are rotated or relaxed.
+	 */
+	private void doCycleDerivatives( Workspace ws, double[][] output, double[][][] dOutput ) {
+		EPG_Kernel kernel = getKernel();
+		int K=getTruncationOrder();
+		Workspace tFA = tangents[D_FA], tTD1 = tangents[D_TD1], tTD2 = tangents[D_TD2];
+		
+		// inversion, with the coefficients of doInversion(), and TD1
+		double beta=Math.PI;
+		double ia=Math.cos(beta/2)*Math.cos(beta/2);
+		double ib=Math.sin(beta/2)*Math.sin(beta/2);
+		double ic=Math.sin(beta);
+		double id=Math.cos(beta);
+		double e1=Math.exp(-TD1/T1);
+		double e2=Math.exp(-TD1/T2);
+		for ( Workspace t : tangents ) {
+			kernel.rotate( t, K, ia, ib, 0, 0, ic, id );
+			kernel.relax( t, K, e1, e2, 0 );
+		}
+		kernel.rotate( ws, K, ia, ib, 0, 0, ic, id );
+		kernel.relax( ws, K, -e1/T1, -e2/T2, M0*e1/T1 );
+		addRelaxed( ws, tTD1, K );
+		kernel.relax( ws, K, e1, e2, M0*(1-e1) );
+		
+		// alpha pulse train
+		double er1=Math.exp(-TR/T1);
+		double er2=Math.exp(-TR/T2);
+		double a=Math.cos(alpha/2)*Math.cos(alpha/2);
+		double b=Math.sin(alpha/2)*Math.sin(alpha/2);
+		double c=Math.sin(alpha);
+		double d=Math.cos(alpha);
+		// derivatives with respect to alpha of a, b, c and d
+		double da=-c/2, db=c/2, dc=d, dd=-c;
+		double toDegrees=Math.PI/180;
+		double INCREMENT=0;
+		double phi=0;
+		double[] PHI = ws.PHI;
+		for ( int j=0; j<=NP-1; j++ ) {
+			INCREMENT = (INCREMENT+increment) % (2*Math.PI);
+			phi= (phi+INCREMENT) % (2*Math.PI);
+			PHI[j]=phi;
+			double e=Math.sin(phi);
+			double f=Math.cos(phi);
+			double g=Math.sin(2*phi);
+			double h=Math.cos(2*phi);
+			int kMax=Math.min(j,K);
+			
+			for ( Workspace t : tangents )
+				kernel.rotate( t, kMax, a, h*b, g*b, e*c, f*c, d );
+			kernel.rotate( ws, kMax, da, h*db, g*db, e*dc, f*dc, dd );
+			addRotated( ws, tFA, kMax );
+			kernel.rotate( ws, kMax, a, h*b, g*b, e*c, f*c, d );
+			
+			output[0][j] = ws.pfx[NP];
+			output[1][j] = ws.pfy[NP];
+			output[2][j] = PHI[j];
+			dOutput[D_FA][0][j] = tFA.pfx[NP]*toDegrees;
+			dOutput[D_FA][1][j] = tFA.pfy[NP]*toDegrees;
+			dOutput[D_TD1][0][j] = tTD1.pfx[NP];
+			dOutput[D_TD1][1][j] = tTD1.pfy[NP];
+			dOutput[D_TD2][0][j] = tTD2.pfx[NP];
+			dOutput[D_TD2][1][j] = tTD2.pfy[NP];
+			
+			for ( Workspace t : tangents )
+				kernel.relax( t, kMax, er1, er2, 0 );
+			kernel.relax( ws, kMax, er1, er2, M0*(1-er1) );
+			
+			// as in doPulseTrain()
+			for ( int i=0; i<=NUM_DERIVS; i++ ) {
+				Workspace t = (i < NUM_DERIVS) ? tangents[i] : ws;
+				if ( j >= K && K < NP-1 ) {
+					t.fx[NP-K] = 0;
+					t.fy[NP-K] = 0;
+				}
+				if ( bIdealSpoiling ) {
+					Arrays.fill( t.fx, 0 );
+					Arrays.fill( t.fy, 0 );
+				}
+			}
+		}
+		
+		// TD2, whose relaxation exp(-TD2/T1) changes with TD2
+		double ed2=Math.exp(-TD2/T1);
+		for ( Workspace t : tangents )
+			doRecovery( t, 0 );
+		for ( int k=0; k<=K; k++ ) {
+			tTD2.zx[k+1] -= ws.pzx[k+1]*ed2/T1*er1;
+			tTD2.zy[k+1] -= ws.pzy[k+1]*ed2/T1*er1;
+		}
+		tTD2.zx[1] += M0*ed2/T1*er1;
+		doRecovery( ws, M0 );
+	}
+	
+	/*
+	 * Adds the states written by a rotation of orders 0..kMax in from to those in to
+	 */
+	private static void addRotated( Workspace from, Workspace to, int kMax ) {
+		int NP = from.np;
+		for ( int k=0; k<=kMax; k++ ) {
+			to.pfx[NP+k] += from.pfx[NP+k];
+			to.pfy[NP+k] += from.pfy[NP+k];
+			if ( k > 0 ) {
+				to.pfx[NP-k] += from.pfx[NP-k];
+				to.pfy[NP-k] += from.pfy[NP-k];
+			}
+			to.pzx[k+1] += from.pzx[k+1];
+			to.pzy[k+1] += from.pzy[k+1];
+		}
+	}
+	
+	/*
+	 * Adds the states written by a relaxation of orders -kMax..kMax in from to those in to
+	 */
+	private static void addRelaxed( Workspace from, Workspace to, int kMax ) {
+		int NP = from.np;
+		for ( int k=-kMax; k<=kMax; k++ ) {
+			to.fx[NP+k+1] += from.fx[NP+k+1];
+			to.fy[NP+k+1] += from.fy[NP+k+1];
+		}
+		for ( int k=0; k<=kMax; k++ ) {
+			to.zx[k+1] += from.zx[k+1];
+			to.zy[k+1] += from.zy[k+1];
+		}
+	}
+	
+	/*
+	 * Steady state with ideal spoiling. Every pulse starts without transverse magnetization, so the
+	 * echo of pulse j is (sin(phi)*sin(alpha)*Mz_j, -cos(phi)*sin(alpha)*Mz_j) and only the Mz of 
+	 * order 0 carries over, as Mz_j+1 = q*Mz_j + r with q = cos(alpha)*er1 and r = M0*(1-er1). 
+	 * Summing the series over the train gives the Mz at the start of the cycle directly.
+	 */
+	private void solveIdealSpoiling( Workspace ws, double[][] output ) {
+		double[] PHI = ws.PHI;
+		
+		double er1=Math.exp(-TR/T1);
+		double ed1=Math.exp(-TD1/T1);
+		double ed2=Math.exp(-TD2/T1);
+		double c=Math.sin(alpha);
+		double d=Math.cos(alpha);
+		double q=d*er1;
+		double r=M0*(1-er1);
+		
+		// Mz_NP-1 = q^(NP-1)*Mz_0 + rS, where Mz_0 follows the inversion and TD1
+		double qn=Math.pow(q,NP-1);
+		double rS= q==1 ? r*(NP-1) : r*(1-qn)/(1-q);
+		// Mz = ed2*q*Mz_NP-1 + M0*(1-ed2*er1) at the end of TD2, with Mz_0 = -ed1*Mz + M0*(1-ed1)
+		double mz=( ed2*q*(qn*M0*(1-ed1)+rS) + M0*(1-ed2*er1) ) / ( 1 + ed2*ed1*q*qn );
+		
+		mz=-mz*ed1+M0*(1-ed1);
+		
+		// RF spoiling variables
+	    double INCREMENT=0; // quadratically increasing RF phase offset
+		double phi=0; // current RF phase
+		
+		for ( int j=0; j<=NP-1; j++ ) {
+            INCREMENT = (INCREMENT+increment) % (2*Math.PI);
+            phi= (phi+INCREMENT) % (2*Math.PI);
+            PHI[j]=phi;
+            
+            output[0][j] = Math.sin(phi)*c*mz;
+            output[1][j] = -Math.cos(phi)*c*mz;
+            output[2][j] = PHI[j];
+            
+            mz=q*mz+r;
+		}
+		
+		if ( bVerbose )
+			System.out.println("Finished. Steady state was found in closed form");
+	}
+	
+	/*
+	 * Highest dephasing order that is kept. A state of order k has dephased through at least k TRs 
+	 * of T2 decay, so its amplitude is at most M0*er2^k and the orders above K together at most 
+	 * M0*er2^(K+1)/(1-er2), which is kept below truncationEps*M0.
+	 */
+	int getTruncationOrder() {
+		if ( truncationEps <= 0 )
+			return NP-1;
+		double er2=Math.exp(-TR/T2);
+		double bound=er2/(1-er2);
+		int K=0;
+		while ( K < NP-1 && bound >= truncationEps ) {
+			bound*=er2;
+			K++;
+		}
+		return K;
+	}
+	
+	/**
+	 * Returns the estimated error of truncation, the bound on the magnitude of the dropped EPG 
+	 * states (0 if no orders are dropped), see setTruncationEps()
+	 * @return
+	 */
+	public double getTruncationError() {
+		int K = getTruncationOrder();
+		if ( K >= NP-1 )
+			return 0;
+		double er2=Math.exp(-TR/T2);
+		return Math.abs(M0)*Math.pow(er2,K+1)/(1-er2);
+	}
+	
+	/*
+	 * The kernel for the RF rotations and relaxation
+	 */
+	private EPG_Kernel getKernel() {
+		return bVectorKernel ? EPG_Kernel.getFastest() : EPG_Kernel.SCALAR;
 	}
 	
+	/*
+	 * Inversion pulse followed by TD1
+	 */
+	void doInversion( Workspace ws, double m0 ) {
+        //%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
+        //% TD1
+        //%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
+
+        double e1=Math.exp(-TD1/T1);
+        double e2=Math.exp(-TD1/T2);
+        
+        double beta=Math.PI; // flip angle of inversion pulse
+        
+        double a=Math.cos(beta/2)*Math.cos(beta/2);
+        double b=Math.sin(beta/2)*Math.sin(beta/2);
+        double c=Math.sin(beta);
+        double d=Math.cos(beta);
+        double e=Math.sin(0);
+        double f=Math.cos(0);
+        double g=Math.sin(2*0);
+        double h=Math.cos(2*0);
+        double hb=h*b;
+        double gb=g*b;
+        double ec=e*c;
+        double fc=f*c;
+                	
+        int K=getTruncationOrder();
+        EPG_Kernel kernel = getKernel();
+        kernel.rotate( ws, K, a, hb, gb, ec, fc, d );
+        kernel.relax( ws, K, e1, e2, m0*(1-e1) );
+	}
+	
+	/*
+	 * The alpha pulse train. The echo after each pulse is stored in output. Pulses before 
+	 * jStart are skipped, which is only valid if the states they touch are all zero.
+	 */
+	void doPulseTrain( Workspace ws, double[][] output, double m0, int jStart ) {
+	    double[] fx = ws.fx;
+	    double[] fy = ws.fy;
+	    double[] pfx = ws.pfx;
+	    double[] pfy = ws.pfy;
+	    EPG_Kernel kernel = getKernel();
+	    int K=getTruncationOrder();
+
+        //%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
+        //% alpha pulse train
+        //%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
+
+        int t=1;
+    	
+        double e1=Math.exp(-TR/T1);
+        double e2=Math.exp(-TR/T2);
+        
+		// RF spoiling variables
+	    double INCREMENT=0; // quadratically increasing RF phase offset
+		double phi=0; // current RF phase
+		double[] PHI = ws.PHI; // used to keep track of RF phase
+        
+        for ( int j=0; j<=NP-1; j++ ) {
+            
+            INCREMENT = (INCREMENT+increment) % (2*Math.PI);
+            phi= (phi+INCREMENT) % (2*Math.PI);
+            PHI[t-1]=phi;
+            
+            // the states are all zero before the first pulse that can touch them
+            if ( j < jStart ) {
+            	output[0][t-1] = 0;
+            	output[1][t-1] = 0;
+            	output[2][t-1] = PHI[t-1];
+            	t++;
+            	continue;
+            }
+
+            double a=Math.cos(alpha/2)*Math.cos(alpha/2);
+            double b=Math.sin(alpha/2)*Math.sin(alpha/2);
+            double c=Math.sin(alpha);
+            double d=Math.cos(alpha);
+            double e=Math.sin(phi);
+            double f=Math.cos(phi);
+            double g=Math.sin(2*phi);
+            double h=Math.cos(2*phi);
+            double hb=h*b;
+            double gb=g*b;
+            double ec=e*c;
+            double fc=f*c;
+            
+            kernel.rotate( ws, Math.min(j,K), a, hb, gb, ec, fc, d );
+
+            output[0][t-1] = pfx[NP];
+            output[1][t-1] = pfy[NP];
+            output[2][t-1] = PHI[t-1];
+            
+            kernel.relax( ws, Math.min(j,K), e1, e2, m0*(1-e1) );
+            
+            // order -K would come from the dropped order -K-1
+            if ( j >= K && K < NP-1 ) {
+            	fx[NP-K] = 0;
+            	fy[NP-K] = 0;
+            }
+            
+            // clear transverse magnetization if we are using ideal spoiling
+			if ( bIdealSpoiling ) {
+				for ( int k=0; k<fx.length; k++ ) {
+					fx[k] = 0;
+					fy[k] = 0;
+				}
+			}
+
+            t++;
+            
+        }
+	}
+	
+	/*
+	 * TD2, which starts from the states left by the last alpha pulse
+	 */
+	void doRecovery( Workspace ws, double m0 ) {
+	    double[] fx = ws.fx;
+	    double[] fy = ws.fy;
+	    double[] pzx = ws.pzx;
+	    double[] pzy = ws.pzy;
+	    double[] zx = ws.zx;
+	    double[] zy = ws.zy;
+
+        //%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
+        //% TD2
+        //%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
+
+        double er1=Math.exp(-TR/T1);
+        double e1=Math.exp(-TD2/T1);
+        int K=getTruncationOrder();
+
+        // assume complete loss of transverse magnetization during longitudinal recovery phase
+    	for ( int k=0; k<2*NP; k++ ) {
+    		fx[k] = 0;
+    		fy[k] = 0;
+    	}
+
+    	for ( int k=-K; k<=K; k++ ) {
+            
+            //int n = NP+k;
+
+            if ( k > 0 )
+                zx[k+1]=pzx[k+1]*e1*er1;
+
+            if ( k == 0 )
+                zx[k+1]=pzx[k+1]*e1*er1+m0*(1-e1*er1);
+
+
+            if ( k >= 0 )
+                zy[k+1]=pzy[k+1]*e1*er1;
+
+    	}
+    	
+    	// dropped orders
+    	for ( int k=K+1; k<=NP-1; k++ ) {
+    		zx[k+1] = 0;
+    		zy[k+1] = 0;
+    	}
+	}
+
 	/**
 	 * Sets ideal spoiling (transverse magnetization is assumed to be zero at the end of each RF pulse) [default is false]
 	 * @param bIdealSpoiling
@@ -331,6 +955,45 @@ public class EPG_MPRAGE {
 	public void setIdealSpoiling(boolean bIdealSpoiling) { this.bIdealSpoiling = bIdealSpoiling; }
 	public boolean isIdealSpoiling() { return bIdealSpoiling; }
 
+	/**
+	 * Sets closed form ideal spoiling (with ideal spoiling on, the steady state and the echoes are 
+	 * evaluated analytically in O(NP) instead of with the EPG) [default is false]
+	 * @param bClosedFormSpoiling
+	 */
+	public void setClosedFormSpoiling(boolean bClosedFormSpoiling) { this.bClosedFormSpoiling = bClosedFormSpoiling; }
+	public boolean isClosedFormSpoiling() { return bClosedFormSpoiling; }
+
+	/**
+	 * Sets direct steady state mode (the steady state Mz is solved for instead of iterating the MPRAGE cycle) [default is false]
+	 * @param bDirectSteadyState
+	 */
+	public void setDirectSteadyState(boolean bDirectSteadyState) { this.bDirectSteadyState = bDirectSteadyState; }
+	public boolean isDirectSteadyState() { return bDirectSteadyState; }
+
+	/**
+	 * Sets echo train reuse (the steady state is found from a cached operator of the alpha pulse train, 
+	 * which is shared by all calculations that only differ in TD1, TD2 and M0) [default is false]
+	 * @param bReuseEchoTrain
+	 */
+	public void setReuseEchoTrain(boolean bReuseEchoTrain) { this.bReuseEchoTrain = bReuseEchoTrain; }
+	public boolean isReuseEchoTrain() { return bReuseEchoTrain; }
+
+	/**
+	 * Sets use of the Vector API kernel when the jdk.incubator.vector module is present, otherwise 
+	 * the scalar kernel is used. Both give the same results [default is true]
+	 * @param bVectorKernel
+	 */
+	public void setVectorKernel(boolean bVectorKernel) { this.bVectorKernel = bVectorKernel; }
+	public boolean isVectorKernel() { return bVectorKernel; }
+
+	/**
+	 * Sets warm start (each calculation starts from the steady state Mz of the previous one, which 
+	 * saves cycles when consecutive protocols are close) [default is false]
+	 * @param bWarmStart
+	 */
+	public void setWarmStart(boolean bWarmStart) { this.bWarmStart = bWarmStart; }
+	public boolean isWarmStart() { return bWarmStart; }
+
 	/**
 	 * Sets verbose mode (program prints additional information to stdout) [default is false]
 	 * @param bVerbose
@@ -338,6 +1001,15 @@ public class EPG_MPRAGE {
 	public void setVerbose(boolean bVerbose) { this.bVerbose = bVerbose; }
 	public boolean isVerbose() { return bVerbose; }
 	
+	/**
+	 * Sets adaptive truncation of the EPG (dephasing orders whose amplitude bound relative to M0 has
+	 * decayed below truncationEps through T2 are dropped, see getTruncationError()) [default is 0, 
+	 * no truncation]
+	 * @param truncationEps
+	 */
+	public void setTruncationEps(double truncationEps) { this.truncationEps = truncationEps; }
+	public double getTruncationEps() { return truncationEps; }
+	
 	/**
 	 * Sets stopping criteria for each steady state [default is 1e-10]
 	 * @param steadyStateEps
@@ -351,5 +1023,62 @@ public class EPG_MPRAGE {
 	 */
 	public void setMaxLoops(int maxLoops) { this.maxLoops = maxLoops; }
 	public int getMaxLoops() { return maxLoops; }
+	
+	/**
+	 * EPG states and scratch arrays used during a calculation. A workspace is created for one
+	 * length of the RF pulse train and can be reused by any number of calculations.
+	 */
+	public static class Workspace {
+		final int np;
+		final double[] fx, fy, pfx, pfy;
+		final double[] zx, zy, pzx, pzy, zx_, zy_;
+		final double[] PHI;
+		// used by the direct steady state solver, allocated on first use
+		double[][] V, H;
+		double[] cs, sn, g, y;
+		double err; // residual of the last solve
+		
+		/**
+		 * @param np Length of RF pulse train
+		 */
+		public Workspace( int np ) {
+			this.np = np;
+			fx  = new double[2*np+1];
+			fy  = new double[2*np+1];
+			pfx = new double[2*np+1];
+			pfy = new double[2*np+1];
+			pzx = new double[np+1];
+			pzy = new double[np+1];
+			zx  = new double[np+1];
+			zy  = new double[np+1];
+			zx_ = new double[np+1];
+			zy_ = new double[np+1];
+			PHI = new double[np+1];
+		}
+		
+		/*
+		 * Zeroes all EPG states
+		 */
+		void clear() {
+			Arrays.fill( fx, 0 );
+			Arrays.fill( fy, 0 );
+			Arrays.fill( zx, 0 );
+			Arrays.fill( zy, 0 );
+		}
+		
+		/*
+		 * Makes sure there is room for maxIter GMRES iterations
+		 */
+		void allocateKrylov( int maxIter ) {
+			if ( H != null && H[0].length >= maxIter )
+				return;
+			V  = new double[maxIter+1][2*(np+1)];
+			H  = new double[maxIter+1][maxIter];
+			cs = new double[maxIter];
+			sn = new double[maxIter];
+			g  = new double[maxIter+1];
+			y  = new double[maxIter];
+		}
+	}
 
 }
@@ -0,0 +1,452 @@
+package edu.umaryland.mri.data;
+
+import java.util.Arrays;
+
+/*
+ * MPRAGE calculation for many tissues under the same pulse sequence. The EPG states of all tissues
+ * are advanced together, stored as structure-of-arrays with the tissue index innermost (state k of
+ * tissue t is at k*N+t), so the RF phase, trig and rotation coefficients of each pulse are computed
+ * once and the inner loops over tissues vectorize.
+ *
+ * Each tissue gives the same echoes as EPG_MPRAGE: its output is taken from the cycle in which it
+ * reaches steady state, while the cycles continue until every tissue has. For two tissues (the A
+ * and B of SimImage1D) the pair of each state is updated in one step.
+ */
+public class EPG_MPRAGE_Batch {
+
+	// tissue parameters
+	protected double[] M0, T1, T2;
+	protected int N;
+	// sequence parameters
+	protected double alpha, increment, TR, TD1, TD2;
+	protected int NP;
+	private boolean bIdealSpoiling;
+	private boolean bVerbose;
+	private boolean bWarmStart;
+	private double steadyStateEps;
+	private int maxLoops;
+	private int numLoops; // MPRAGE cycles used by the last calculation
+	private boolean bHasSteady; // the states hold the steady state of the last calculation
+
+	// EPG states and relaxation of all tissues, allocated when N or NP change
+	private double[] fx, fy, pfx, pfy;
+	private double[] zx, zy, pzx, pzy, zx_, zy_;
+	private double[] er1, er2, ed1_1, ed1_2, ed2_1, rc1, rc2, rc3;
+	private double[] zErr;
+	private boolean[] done;
+
+	/*
+	 * Creates a batch MPRAGE object
+	 */
+	public EPG_MPRAGE_Batch() {
+		maxLoops = 25;
+		steadyStateEps=1e-10;
+		bIdealSpoiling = false;
+		bVerbose = false;
+		bWarmStart = false;
+		N = 0;
+	}
+
+	/**
+	 * Set relevant tissue parameters, one entry per tissue
+	 * @param m0 Normalized equilibrium magnetization ([0,1])
+	 * @param t1 T1 relaxation in milliseconds
+	 * @param t2 T2 relaxation in milliseconds
+	 */
+	public void setTissueParams( double[] m0, double[] t1, double[] t2 ) {
+		if ( m0.length != t1.length || m0.length != t2.length )
+			throw new IllegalArgumentException("The number of tissue parameters do not match");
+		M0 = m0.clone();
+		T1 = t1.clone();
+		T2 = t2.clone();
+		N = m0.length;
+	}
+
+	/**
+	 * Sets the parameters of two tissues, see setTissueParams(double[], double[], double[])
+	 */
+	public void setTissueParams( double m0a, double t1a, double t2a, double m0b, double t1b, double t2b ) {
+		if ( N != 2 ) {
+			M0 = new double[2];
+			T1 = new double[2];
+			T2 = new double[2];
+			N = 2;
+		}
+		M0[0] = m0a; T1[0] = t1a; T2[0] = t2a;
+		M0[1] = m0b; T1[1] = t1b; T2[1] = t2b;
+	}
+
+	/**
+	 * Set relevant pulse sequence parameters
+	 * @param a Flip angle in degrees
+	 * @param i Quadratic RF phase spoiling in degrees
+	 * @param tr Repetition time in milliseconds
+	 * @param td1 Delay time 1 (TI) in milliseconds
+	 * @param td2 Delay time 2 (recovery) in milliseconds
+	 * @param np Length of RF pulse train
+	 */
+	public void setSeqParams( double a, double i, double tr, double td1, double td2, int np ) {
+		alpha = Math.toRadians(a);
+		increment = Math.toRadians(i);
+		TR = tr;
+		TD1 = td1;
+		TD2 = td2;
+		NP = np;
+	}
+
+	/**
+	 * Does MPRAGE calculation for every tissue. Returns 3D array of size (Nx3xNP), where the first
+	 * dimension is the tissue and the rest is as returned by EPG_MPRAGE.doCalc()
+	 *
+	 * @return
+	 */
+	public double[][][] doCalc() {
+		double[][][] output = new double[N][3][NP];
+		doCalc( output );
+		return output;
+	}
+
+	/**
+	 * Does MPRAGE calculation for every tissue into output, of size (Nx3xNP)
+	 * @param output
+	 */
+	public void doCalc( double[][][] output ) {
+		if ( output.length != N )
+			throw new IllegalArgumentException("The size of the output does not match the number of tissues");
+
+		if ( bVerbose ) {
+			if ( !bIdealSpoiling )
+				System.out.println("Running EPG simulation for " + N + " tissues...");
+			else
+				System.out.println("Running ideal spoiling simulation for " + N + " tissues...");
+			System.out.println("alpha=" + Math.toDegrees(alpha) + " degrees\tRF spoiling increment=" + Math.toDegrees(increment) + " degrees");
+			System.out.println("# of inner TRs=" + NP + "\tinner TR=" + TR + " ms\tTD1=" + TD1 + " ms\tTD2=" + TD2 + " ms");
+		}
+
+		allocate();
+
+		// initialize constants used in calculation
+		for ( int t=0; t<N; t++ ) {
+			er1[t]   = Math.exp(-TR/T1[t]);
+			er2[t]   = Math.exp(-TR/T2[t]);
+			ed1_1[t] = Math.exp(-TD1/T1[t]);
+			ed1_2[t] = Math.exp(-TD1/T2[t]);
+			ed2_1[t] = Math.exp(-TD2/T1[t]);
+			// recovery towards M0 in TD1, each TR and TD2
+			rc1[t] = M0[t]*(1-ed1_1[t]);
+			rc2[t] = M0[t]*(1-er1[t]);
+			rc3[t] = M0[t]*(1-ed2_1[t]*er1[t]);
+		}
+
+		Arrays.fill( fx, 0 );
+		Arrays.fill( fy, 0 );
+		Arrays.fill( done, false );
+		if ( bWarmStart && bHasSteady ) {
+			// start from the last steady state, which can be steady state already after one cycle
+			System.arraycopy( zx, 0, zx_, 0, zx.length );
+			System.arraycopy( zy, 0, zy_, 0, zy.length );
+		} else {
+			Arrays.fill( zx, 0 );
+			Arrays.fill( zy, 0 );
+			Arrays.fill( zx_, Double.POSITIVE_INFINITY );
+			Arrays.fill( zy_, Double.POSITIVE_INFINITY );
+			for ( int t=0; t<N; t++ )
+				zx[N+t] = M0[t]; // initial magnetization
+		}
+
+		int numLoops = 0;
+		int numDone = 0;
+		while ( numDone < N ) {
+			numLoops++;
+
+			doInversion();
+			doPulseTrain( output );
+			doRecovery();
+
+			//%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
+			//% check to see which tissues have reached steady state
+			//%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
+			Arrays.fill( zErr, 0 );
+			for ( int k=0; k<=NP; k++ ) {
+				int o = k*N;
+				for ( int t=0; t<N; t++ ) {
+					double magnz  = Math.sqrt( zx[o+t]*zx[o+t] + zy[o+t]*zy[o+t] );
+					double magnz_ = Math.sqrt( zx_[o+t]*zx_[o+t] + zy_[o+t]*zy_[o+t] );
+					zErr[t] += Math.abs( magnz - magnz_ );
+				}
+			}
+			for ( int t=0; t<N; t++ ) {
+				if ( !done[t] && ( zErr[t] < steadyStateEps || numLoops >= maxLoops ) ) {
+					done[t] = true;
+					numDone++;
+				}
+			}
+			if ( bVerbose && numDone == N )
+				System.out.println("Finished. Steady state was reached for all tissues after " + numLoops + " iterations [tol=" + steadyStateEps + "]");
+
+			//%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
+			//% store current Mz as previous
+			//%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%%
+			System.arraycopy( zx, 0, zx_, 0, zx.length );
+			System.arraycopy( zy, 0, zy_, 0, zy.length );
+		}
+		this.numLoops = numLoops;
+		bHasSteady = true;
+	}
+
+	private void allocate() {
+		if ( fx != null && fx.length == (2*NP+1)*N && er1.length == N )
+			return;
+		bHasSteady = false;
+		fx  = new double[(2*NP+1)*N];
+		fy  = new double[(2*NP+1)*N];
+		pfx = new double[(2*NP+1)*N];
+		pfy = new double[(2*NP+1)*N];
+		zx  = new double[(NP+1)*N];
+		zy  = new double[(NP+1)*N];
+		pzx = new double[(NP+1)*N];
+		pzy = new double[(NP+1)*N];
+		zx_ = new double[(NP+1)*N];
+		zy_ = new double[(NP+1)*N];
+		er1   = new double[N];
+		er2   = new double[N];
+		ed1_1 = new double[N];
+		ed1_2 = new double[N];
+		ed2_1 = new double[N];
+		rc1   = new double[N];
+		rc2   = new double[N];
+		rc3   = new double[N];
+		zErr  = new double[N];
+		done  = new boolean[N];
+	}
+
+	/*
+	 * Rotation of orders 0..kMax of every tissue by a pulse with the given coefficients
+	 */
+	private void rotate( int kMax, double a, double hb, double gb, double ec, double fc, double d ) {
+		if ( N == 2 ) {
+			rotate2( kMax, a, hb, gb, ec, fc, d );
+			return;
+		}
+		for ( int k=0; k<=kMax; k++ ) {
+			int n = (NP+k)*N;
+			int m = (NP-k)*N;
+			int z = (k+1)*N;
+			for ( int t=0; t<N; t++ ) {
+				double fxn = fx[n+t], fyn = fy[n+t];
+				double fxm = fx[m+t], fym = fy[m+t];
+				double zxk = zx[z+t], zyk = zy[z+t];
+				pfx[n+t]=a*fxn+hb*fxm+gb*fym+ec*zxk+fc*zyk;
+				pfy[n+t]=a*fyn-hb*fym+gb*fxm-fc*zxk+ec*zyk;
+				pfx[m+t]=hb*fxn+gb*fyn+a*fxm+ec*zxk-fc*zyk;
+				pfy[m+t]=gb*fxn-hb*fyn+a*fym-fc*zxk-ec*zyk;
+				pzx[z+t]=(-ec*fxn+fc*fyn-ec*fxm+fc*fym+2*d*zxk)/2;
+				pzy[z+t]=(-fc*fxn-ec*fyn+fc*fxm+ec*fym+2*d*zyk)/2;
+			}
+		}
+	}
+
+	/*
+	 * rotate() for two tissues, the pair of each state is done in one step
+	 */
+	private void rotate2( int kMax, double a, double hb, double gb, double ec, double fc, double d ) {
+		final double[] fx = this.fx, fy = this.fy, zx = this.zx, zy = this.zy;
+		final double[] pfx = this.pfx, pfy = this.pfy, pzx = this.pzx, pzy = this.pzy;
+		for ( int k=0; k<=kMax; k++ ) {
+			int n = 2*(NP+k);
+			int m = 2*(NP-k);
+			int z = 2*(k+1);
+			double fxn0 = fx[n], fyn0 = fy[n], fxn1 = fx[n+1], fyn1 = fy[n+1];
+			double fxm0 = fx[m], fym0 = fy[m], fxm1 = fx[m+1], fym1 = fy[m+1];
+			double zxk0 = zx[z], zyk0 = zy[z], zxk1 = zx[z+1], zyk1 = zy[z+1];
+			pfx[n]   = a*fxn0+hb*fxm0+gb*fym0+ec*zxk0+fc*zyk0;
+			pfx[n+1] = a*fxn1+hb*fxm1+gb*fym1+ec*zxk1+fc*zyk1;
+			pfy[n]   = a*fyn0-hb*fym0+gb*fxm0-fc*zxk0+ec*zyk0;
+			pfy[n+1] = a*fyn1-hb*fym1+gb*fxm1-fc*zxk1+ec*zyk1;
+			pfx[m]   = hb*fxn0+gb*fyn0+a*fxm0+ec*zxk0-fc*zyk0;
+			pfx[m+1] = hb*fxn1+gb*fyn1+a*fxm1+ec*zxk1-fc*zyk1;
+			pfy[m]   = gb*fxn0-hb*fyn0+a*fym0-fc*zxk0-ec*zyk0;
+			pfy[m+1] = gb*fxn1-hb*fyn1+a*fym1-fc*zxk1-ec*zyk1;
+			pzx[z]   = (-ec*fxn0+fc*fyn0-ec*fxm0+fc*fym0+2*d*zxk0)/2;
+			pzx[z+1] = (-ec*fxn1+fc*fyn1-ec*fxm1+fc*fym1+2*d*zxk1)/2;
+			pzy[z]   = (-fc*fxn0-ec*fyn0+fc*fxm0+ec*fym0+2*d*zyk0)/2;
+			pzy[z+1] = (-fc*fxn1-ec*fyn1+fc*fxm1+ec*fym1+2*d*zyk1)/2;
+		}
+	}
+
+	/*
+	 * Relaxation and dephasing of orders -kMax..kMax of every tissue, with recovery rc of the zero order
+	 */
+	private void relax( int kMax, double[] e1, double[] e2, double[] rc ) {
+		if ( N == 2 ) {
+			relax2( kMax, e1, e2, rc );
+			return;
+		}
+		for ( int k=-kMax; k<=kMax; k++ ) {
+			int n = (NP+k)*N;
+			int z = (k+1)*N;
+			for ( int t=0; t<N; t++ ) {
+				fx[n+N+t] = pfx[n+t]*e2[t];
+				fy[n+N+t] = pfy[n+t]*e2[t];
+			}
+			if ( k > 0 )
+				for ( int t=0; t<N; t++ )
+					zx[z+t] = pzx[z+t]*e1[t];
+			if ( k == 0 )
+				for ( int t=0; t<N; t++ )
+					zx[z+t] = pzx[z+t]*e1[t]+rc[t];
+			if ( k >= 0 )
+				for ( int t=0; t<N; t++ )
+					zy[z+t] = pzy[z+t]*e1[t];
+		}
+	}
+
+	/*
+	 * relax() for two tissues
+	 */
+	private void relax2( int kMax, double[] e1, double[] e2, double[] rc ) {
+		final double[] fx = this.fx, fy = this.fy, zx = this.zx, zy = this.zy;
+		final double[] pfx = this.pfx, pfy = this.pfy, pzx = this.pzx, pzy = this.pzy;
+		double e10 = e1[0], e11 = e1[1], e20 = e2[0], e21 = e2[1];
+		for ( int k=-kMax; k<=kMax; k++ ) {
+			int n = 2*(NP+k);
+			fx[n+2] = pfx[n]*e20;
+			fx[n+3] = pfx[n+1]*e21;
+			fy[n+2] = pfy[n]*e20;
+			fy[n+3] = pfy[n+1]*e21;
+		}
+		for ( int k=0; k<=kMax; k++ ) {
+			int z = 2*(k+1);
+			zx[z]   = pzx[z]*e10;
+			zx[z+1] = pzx[z+1]*e11;
+			zy[z]   = pzy[z]*e10;
+			zy[z+1] = pzy[z+1]*e11;
+		}
+		zx[2] += rc[0];
+		zx[3] += rc[1];
+	}
+
+	/*
+	 * Inversion pulse followed by TD1
+	 */
+	private void doInversion() {
+		double beta=Math.PI; // flip angle of inversion pulse
+		double a=Math.cos(beta/2)*Math.cos(beta/2);
+		double b=Math.sin(beta/2)*Math.sin(beta/2);
+		double c=Math.sin(beta);
+		double d=Math.cos(beta);
+		double e=Math.sin(0);
+		double f=Math.cos(0);
+		double g=Math.sin(2*0);
+		double h=Math.cos(2*0);
+
+		rotate( NP-1, a, h*b, g*b, e*c, f*c, d );
+		relax( NP-1, ed1_1, ed1_2, rc1 );
+	}
+
+	/*
+	 * The alpha pulse train, the echoes of tissues that are not yet in steady state are stored in output
+	 */
+	private void doPulseTrain( double[][][] output ) {
+		// RF spoiling variables
+		double INCREMENT=0; // quadratically increasing RF phase offset
+		double phi=0; // current RF phase
+
+		double a=Math.cos(alpha/2)*Math.cos(alpha/2);
+		double b=Math.sin(alpha/2)*Math.sin(alpha/2);
+		double c=Math.sin(alpha);
+		double d=Math.cos(alpha);
+
+		for ( int j=0; j<=NP-1; j++ ) {
+			INCREMENT = (INCREMENT+increment) % (2*Math.PI);
+			phi= (phi+INCREMENT) % (2*Math.PI);
+
+			double e=Math.sin(phi);
+			double f=Math.cos(phi);
+			double g=Math.sin(2*phi);
+			double h=Math.cos(2*phi);
+
+			rotate( j, a, h*b, g*b, e*c, f*c, d );
+
+			for ( int t=0; t<N; t++ ) {
+				if ( !done[t] ) {
+					output[t][0][j] = pfx[NP*N+t];
+					output[t][1][j] = pfy[NP*N+t];
+					output[t][2][j] = phi;
+				}
+			}
+
+			relax( j, er1, er2, rc2 );
+
+			// clear transverse magnetization if we are using ideal spoiling
+			if ( bIdealSpoiling ) {
+				Arrays.fill( fx, 0 );
+				Arrays.fill( fy, 0 );
+			}
+		}
+	}
+
+	/*
+	 * TD2, which starts from the states left by the last alpha pulse
+	 */
+	private void doRecovery() {
+		// assume complete loss of transverse magnetization during longitudinal recovery phase
+		Arrays.fill( fx, 0, 2*NP*N, 0 );
+		Arrays.fill( fy, 0, 2*NP*N, 0 );
+
+		for ( int k=0; k<=NP-1; k++ ) {
+			int z = (k+1)*N;
+			if ( k > 0 )
+				for ( int t=0; t<N; t++ )
+					zx[z+t] = pzx[z+t]*ed2_1[t]*er1[t];
+			else
+				for ( int t=0; t<N; t++ )
+					zx[z+t] = pzx[z+t]*ed2_1[t]*er1[t]+rc3[t];
+			for ( int t=0; t<N; t++ )
+				zy[z+t] = pzy[z+t]*ed2_1[t]*er1[t];
+		}
+	}
+
+	/**
+	 * Sets ideal spoiling (transverse magnetization is assumed to be zero at the end of each RF pulse) [default is false]
+	 * @param bIdealSpoiling
+	 */
+	public void setIdealSpoiling(boolean bIdealSpoiling) { this.bIdealSpoiling = bIdealSpoiling; }
+	public boolean isIdealSpoiling() { return bIdealSpoiling; }
+
+	/**
+	 * Sets verbose mode (program prints additional information to stdout) [default is false]
+	 * @param bVerbose
+	 */
+	public void setVerbose(boolean bVerbose) { this.bVerbose = bVerbose; }
+	public boolean isVerbose() { return bVerbose; }
+
+	/**
+	 * Sets stopping criteria for each steady state [default is 1e-10]
+	 * @param steadyStateEps
+	 */
+	public void setSteadyStateEps(double steadyStateEps) { this.steadyStateEps = steadyStateEps; }
+	public double getSteadyStateEps() { return steadyStateEps; }
+
+	/**
+	 * Sets maximum number of loops allowed to reach steady state [default is 25]
+	 * @param maxLoops
+	 */
+	public void setMaxLoops(int maxLoops) { this.maxLoops = maxLoops; }
+	public int getMaxLoops() { return maxLoops; }
+
+	/**
+	 * Sets warm start (each calculation starts from the steady state Mz of the previous one, see
+	 * EPG_MPRAGE.setWarmStart()) [default is false]
+	 * @param bWarmStart
+	 */
+	public void setWarmStart(boolean bWarmStart) { this.bWarmStart = bWarmStart; }
+	public boolean isWarmStart() { return bWarmStart; }
+
+	/*
+	 * MPRAGE cycles of the last calculation, which every tissue went through
+	 */
+	public int getNumLoops() { return numLoops; }
+
+	public int getNumTissues() { return N; }
+}
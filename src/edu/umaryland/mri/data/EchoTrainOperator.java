@@ -0,0 +1,454 @@
+package edu.umaryland.mri.data;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/*
+ * The alpha pulse train of an MPRAGE cycle as an affine operator on the Mz states that enter it.
+ * TD1 and TD2 only scale the Mz states (the inversion pulse is treated as ideal), so once the
+ * operator is known the steady state and echoes for any TD1/TD2 are found without running the
+ * pulse train again.
+ *
+ * Let z be the Mz states at the end of TD2 (zx and zy for the nz orders that are kept, NP unless
+ * the EPG is truncated), Tp*z+tp the states after the last alpha pulse and Te*z+te the echoes, all
+ * for M0=1. Then one cycle is
+ *   z' = s1*s2*Tp*z + s2*(1-e1)*Tp*e0 + s2*tp + (1-s2)*e0
+ * with s1=-exp(-TD1/T1), e1=exp(-TD1/T1), s2=exp(-TD2/T1)*exp(-TR/T1) and e0 the zero order Mz.
+ * Tp is reduced to Hessenberg form once, so the steady state for each new TD1+TD2 costs O(nz^2)
+ * and the echoes of each TD1/TD2 point cost O(NP).
+ */
+public class EchoTrainOperator {
+
+	// operators with the same pulse train are shared between threads and simulations; an entry is
+	// the task that builds it, so the lock is not held while one is built
+	private static int maxCached = 8;
+	private static final Map<Key,FutureTask<EchoTrainOperator>> cache = new LinkedHashMap<Key,FutureTask<EchoTrainOperator>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<Key,FutureTask<EchoTrainOperator>> eldest ) {
+			return size() > maxCached;
+		}
+	};
+
+	// solutions for each TD1+TD2 are kept, they are shared by all points on a diagonal of the grid
+	// (open addressing on the bits of TD1+TD2, so lookups do not allocate)
+	private static final int MAX_SOLUTIONS = 1024;
+	private final long[] solutionKeys = new long[2*MAX_SOLUTIONS];
+	private final double[][][] solutions = new double[2*MAX_SOLUTIONS][][];
+	private int numSolutions = 0;
+
+	private final Key key;
+	private final int NP;
+	private final int nz;        // number of Mz orders
+	private final double T1, er1;
+	private double[][] H;        // Hessenberg form of Tp, Tp = Q*H*Q'
+	private double[][] TeQ;      // Te*Q, Te is 2NP x 2nz
+	private double[] Qtu, Qtp, Qte0; // Q'*(Tp*e0), Q'*tp, Q'*e0
+	private double[] Te0, te;    // Te*e0, te
+	private double[] PHI;        // RF phase of each pulse
+
+	/**
+	 * Sets the number of operators kept for reuse [default is 8]. Each one takes about
+	 * 16*(2NP)^2 bytes, searches that keep coming back to many flip angles need more of them.
+	 * @param n
+	 */
+	public static void setMaxCached( int n ) {
+		synchronized ( cache ) {
+			maxCached = Math.max( 1, n );
+			Iterator<Key> it = cache.keySet().iterator();
+			while ( cache.size() > maxCached ) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Sets the number of operators kept to at least n, for searches that may run next to others
+	 * @param n
+	 */
+	public static void raiseMaxCached( int n ) {
+		synchronized ( cache ) {
+			maxCached = Math.max( maxCached, n );
+		}
+	}
+
+	public static int getMaxCached() {
+		synchronized ( cache ) {
+			return maxCached;
+		}
+	}
+
+	/**
+	 * Returns the operator for the pulse train of mprage, building it if it is not cached. Only
+	 * threads that need the same operator wait while it is built.
+	 * @param mprage
+	 * @return
+	 */
+	public static EchoTrainOperator getOperator( final EPG_MPRAGE mprage ) {
+		final Key key = new Key( mprage );
+		FutureTask<EchoTrainOperator> task;
+		boolean bBuild = false;
+		synchronized ( cache ) {
+			task = cache.get( key );
+			if ( task == null ) {
+				task = new FutureTask<EchoTrainOperator>( new Callable<EchoTrainOperator>() {
+					@Override
+					public EchoTrainOperator call() {
+						return new EchoTrainOperator( mprage );
+					}
+				});
+				cache.put( key, task );
+				bBuild = true;
+			}
+		}
+		// mprage is only read while the task runs in this thread
+		if ( bBuild )
+			task.run();
+		boolean bInterrupted = false;
+		try {
+			while ( true ) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					bInterrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			// the next one to ask tries again
+			synchronized ( cache ) {
+				if ( cache.get( key ) == task )
+					cache.remove( key );
+			}
+			Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException )
+				throw (RuntimeException)cause;
+			if ( cause instanceof Error )
+				throw (Error)cause;
+			throw new IllegalStateException( cause );
+		} finally {
+			if ( bInterrupted )
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Builds the operator for the pulse train of mprage (TD1, TD2 and M0 are not used)
+	 * @param mprage
+	 */
+	public EchoTrainOperator( EPG_MPRAGE mprage ) {
+		key = new Key( mprage );
+		NP = mprage.NP;
+		nz = mprage.getTruncationOrder()+1;
+		T1 = mprage.T1;
+		er1 = Math.exp(-mprage.TR/mprage.T1);
+		int n = 2*nz;
+
+		double[][] Tp = new double[n][n];
+		double[][] Te = new double[2*NP][n];
+		double[] tp = new double[n];
+		te = new double[2*NP];
+
+		// propagate every Mz state through the train, the states of order k+1 are not touched before pulse k
+		EPG_MPRAGE.Workspace ws = new EPG_MPRAGE.Workspace(NP);
+		double[][] output = new double[3][NP];
+		for ( int col=0; col<=n; col++ ) {
+			ws.clear();
+			int jStart = 0;
+			double m0 = 0;
+			if ( col < nz ) {
+				ws.zx[col+1] = 1;
+				jStart = col;
+			} else if ( col < n ) {
+				ws.zy[col-nz+1] = 1;
+				jStart = col-nz;
+			} else {
+				m0 = 1; // recovery towards M0 is the constant part
+			}
+			mprage.doPulseTrain( ws, output, m0, jStart );
+
+			double[] p = ( col < n ) ? null : tp;
+			double[] q = ( col < n ) ? null : te;
+			for ( int k=0; k<nz; k++ ) {
+				if ( p == null ) {
+					Tp[k][col]    = ws.pzx[k+1];
+					Tp[nz+k][col] = ws.pzy[k+1];
+				} else {
+					p[k]    = ws.pzx[k+1];
+					p[nz+k] = ws.pzy[k+1];
+				}
+			}
+			for ( int k=0; k<NP; k++ ) {
+				if ( p == null ) {
+					Te[k][col]    = output[0][k];
+					Te[NP+k][col] = output[1][k];
+				} else {
+					q[k]    = output[0][k];
+					q[NP+k] = output[1][k];
+				}
+			}
+		}
+		PHI = output[2].clone();
+
+		Te0 = new double[2*NP];
+		double[] u = new double[n];
+		for ( int k=0; k<2*NP; k++ )
+			Te0[k] = Te[k][0];
+		for ( int k=0; k<n; k++ )
+			u[k] = Tp[k][0];
+
+		// Hessenberg reduction Tp = Q*H*Q', Q is only needed to transform Te and the right hand sides
+		double[][] Q = hessenberg( Tp );
+		H = Tp;
+		Qtu = new double[n];
+		Qtp = new double[n];
+		Qte0 = new double[n];
+		for ( int i=0; i<n; i++ ) {
+			for ( int k=0; k<n; k++ ) {
+				Qtu[i] += Q[k][i]*u[k];
+				Qtp[i] += Q[k][i]*tp[k];
+			}
+			Qte0[i] = Q[0][i];
+		}
+		TeQ = new double[2*NP][n];
+		for ( int i=0; i<2*NP; i++ ) {
+			double[] row = TeQ[i];
+			for ( int k=0; k<n; k++ ) {
+				double t = Te[i][k];
+				if ( t == 0 )
+					continue;
+				double[] Qk = Q[k];
+				for ( int j=0; j<n; j++ )
+					row[j] += t*Qk[j];
+			}
+		}
+	}
+
+	/**
+	 * Returns true if this operator describes the pulse train of mprage
+	 * @param mprage
+	 * @return
+	 */
+	public boolean matches( EPG_MPRAGE mprage ) {
+		return key.matches( mprage );
+	}
+
+	/**
+	 * Steady state echoes for the given delays and equilibrium magnetization, in the same format
+	 * as EPG_MPRAGE.doCalc()
+	 * @param td1 Delay time 1 (TI) in milliseconds
+	 * @param td2 Delay time 2 (recovery) in milliseconds
+	 * @param m0 Normalized equilibrium magnetization ([0,1])
+	 * @param output array of size (3xNP)
+	 */
+	public void getEchoes( double td1, double td2, double m0, double[][] output ) {
+		double e1 = Math.exp(-td1/T1);
+		double s1 = -e1;
+		double s2 = Math.exp(-td2/T1)*er1;
+		double[][] Y = getSolution( td1+td2 );
+
+		// coefficients of Tp*e0, tp and e0 in the right hand side
+		double cu = s2*(1-e1);
+		double cp = s2;
+		double c0 = 1-s2;
+		for ( int k=0; k<NP; k++ ) {
+			double re = s1*( cu*Y[0][k] + cp*Y[1][k] + c0*Y[2][k] ) + (1-e1)*Te0[k] + te[k];
+			double im = s1*( cu*Y[0][NP+k] + cp*Y[1][NP+k] + c0*Y[2][NP+k] ) + (1-e1)*Te0[NP+k] + te[NP+k];
+			output[0][k] = m0*re;
+			output[1][k] = m0*im;
+			output[2][k] = PHI[k];
+		}
+	}
+
+	/*
+	 * Te*inv(I-lambda*Tp)*v for v = Tp*e0, tp and e0, where lambda only depends on TD1+TD2
+	 */
+	private double[][] getSolution( double td ) {
+		long bits = Double.doubleToLongBits( td );
+		synchronized ( solutions ) {
+			for ( int i=slot(bits); solutions[i] != null; i=(i+1) & (solutions.length-1) ) {
+				if ( solutionKeys[i] == bits )
+					return solutions[i];
+			}
+		}
+
+		double lambda = -er1*Math.exp(-td/T1);
+		int n = 2*nz;
+
+		// I-lambda*H is upper Hessenberg, so Gaussian elimination only mixes neighbouring rows
+		double[][] A = new double[n][];
+		for ( int i=0; i<n; i++ ) {
+			A[i] = new double[n];
+			for ( int j=Math.max(i-1,0); j<n; j++ )
+				A[i][j] = -lambda*H[i][j];
+			A[i][i] += 1;
+		}
+		double[][] x = { Qtu.clone(), Qtp.clone(), Qte0.clone() };
+		for ( int k=0; k<n-1; k++ ) {
+			if ( Math.abs(A[k+1][k]) > Math.abs(A[k][k]) ) {
+				double[] t = A[k]; A[k] = A[k+1]; A[k+1] = t;
+				for ( double[] b : x ) {
+					double tb = b[k]; b[k] = b[k+1]; b[k+1] = tb;
+				}
+			}
+			double l = A[k+1][k]/A[k][k];
+			if ( l != 0 ) {
+				for ( int j=k; j<n; j++ )
+					A[k+1][j] -= l*A[k][j];
+				for ( double[] b : x )
+					b[k+1] -= l*b[k];
+			}
+		}
+		for ( double[] b : x ) {
+			for ( int i=n-1; i>=0; i-- ) {
+				double sum = b[i];
+				for ( int j=i+1; j<n; j++ )
+					sum -= A[i][j]*b[j];
+				b[i] = sum/A[i][i];
+			}
+		}
+
+		// back to echoes
+		double[][] Y = new double[3][2*NP];
+		for ( int i=0; i<2*NP; i++ ) {
+			double[] row = TeQ[i];
+			for ( int j=0; j<n; j++ ) {
+				Y[0][i] += row[j]*x[0][j];
+				Y[1][i] += row[j]*x[1][j];
+				Y[2][i] += row[j]*x[2][j];
+			}
+		}
+
+		synchronized ( solutions ) {
+			if ( numSolutions >= MAX_SOLUTIONS ) {
+				Arrays.fill( solutions, null );
+				numSolutions = 0;
+			}
+			int i = slot(bits);
+			while ( solutions[i] != null && solutionKeys[i] != bits )
+				i = (i+1) & (solutions.length-1);
+			if ( solutions[i] == null )
+				numSolutions++;
+			solutionKeys[i] = bits;
+			solutions[i] = Y;
+		}
+		return Y;
+	}
+
+	private int slot( long bits ) {
+		long h = bits * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & (solutions.length-1);
+	}
+
+	/*
+	 * Reduces A to upper Hessenberg form in place with Householder reflections and returns the
+	 * orthogonal Q such that the original A = Q*H*Q'
+	 */
+	private static double[][] hessenberg( double[][] A ) {
+		int n = A.length;
+		double[][] Q = new double[n][n];
+		for ( int i=0; i<n; i++ )
+			Q[i][i] = 1;
+		double[] v = new double[n];
+
+		for ( int k=0; k<n-2; k++ ) {
+			// reflection that zeroes A[k+2..n-1][k]
+			double alpha = 0;
+			for ( int i=k+1; i<n; i++ )
+				alpha += A[i][k]*A[i][k];
+			alpha = Math.sqrt(alpha);
+			if ( alpha == 0 )
+				continue;
+			if ( A[k+1][k] > 0 )
+				alpha = -alpha;
+			double vnorm = 0;
+			for ( int i=k+1; i<n; i++ ) {
+				v[i] = A[i][k];
+				if ( i == k+1 )
+					v[i] -= alpha;
+				vnorm += v[i]*v[i];
+			}
+			if ( vnorm == 0 )
+				continue;
+
+			// A = P*A*P and Q = Q*P with P = I - 2*v*v'/(v'*v)
+			for ( int j=0; j<n; j++ ) {
+				double s = 0;
+				for ( int i=k+1; i<n; i++ )
+					s += v[i]*A[i][j];
+				s *= 2/vnorm;
+				for ( int i=k+1; i<n; i++ )
+					A[i][j] -= s*v[i];
+			}
+			for ( int i=0; i<n; i++ ) {
+				double s = 0;
+				double sq = 0;
+				for ( int j=k+1; j<n; j++ ) {
+					s  += A[i][j]*v[j];
+					sq += Q[i][j]*v[j];
+				}
+				s  *= 2/vnorm;
+				sq *= 2/vnorm;
+				for ( int j=k+1; j<n; j++ ) {
+					A[i][j] -= s*v[j];
+					Q[i][j] -= sq*v[j];
+				}
+			}
+			for ( int i=k+2; i<n; i++ )
+				A[i][k] = 0;
+		}
+		return Q;
+	}
+
+	/*
+	 * Everything the pulse train depends on, except M0 which only scales it
+	 */
+	private static class Key {
+		private final double alpha, increment, TR, T1, T2;
+		private final int NP, K;
+		private final boolean bIdealSpoiling;
+
+		Key( EPG_MPRAGE mprage ) {
+			alpha = mprage.alpha;
+			increment = mprage.increment;
+			TR = mprage.TR;
+			T1 = mprage.T1;
+			T2 = mprage.T2;
+			NP = mprage.NP;
+			K = mprage.getTruncationOrder();
+			bIdealSpoiling = mprage.isIdealSpoiling();
+		}
+
+		boolean matches( EPG_MPRAGE mprage ) {
+			return alpha == mprage.alpha && increment == mprage.increment && TR == mprage.TR && T1 == mprage.T1 
+					&& T2 == mprage.T2 && NP == mprage.NP && K == mprage.getTruncationOrder() && bIdealSpoiling == mprage.isIdealSpoiling();
+		}
+
+		@Override
+		public boolean equals( Object o ) {
+			if ( !(o instanceof Key) )
+				return false;
+			Key k = (Key) o;
+			return alpha == k.alpha && increment == k.increment && TR == k.TR && T1 == k.T1 && T2 == k.T2
+					&& NP == k.NP && K == k.K && bIdealSpoiling == k.bIdealSpoiling;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = Double.doubleToLongBits(alpha);
+			h = 31*h + Double.doubleToLongBits(increment);
+			h = 31*h + Double.doubleToLongBits(TR);
+			h = 31*h + Double.doubleToLongBits(T1);
+			h = 31*h + Double.doubleToLongBits(T2);
+			h = 31*h + NP;
+			h = 31*h + K;
+			h = 31*h + (bIdealSpoiling ? 1 : 0);
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
@@ -13,22 +13,44 @@ import ca.uol.aig.fftpack.ComplexDoubleFFT;
 public class SimImage1D {
 	
 	private EPG_MPRAGE mprageA, mprageB;
-	private ComplexDoubleFFT cdFFT, cdFFTB;
+	private EPG_MPRAGE_Batch batch; // both tissues in one pass, see setBatchTissues()
+	private boolean bBatchTissues = true;
+	private boolean bLastBatched;
+	private double[][][] simAB; // simA and simB, the output of batch
+	private ComplexDoubleFFT cdFFT;
 	private double[] phaseenc;
 	private boolean[] maskA, maskB;
+	private double[] specA, specB; // (fftshifted) spectra of the tissue masks
+	private double[][] simA, simB; // echoes of each tissue, reused by every simulation
+	private double[] kspaceB; // work array
+	private double[] fftWork; // work array of the FFT
+	private double[][][] dSimA, dSimB; // derivatives of the echoes, see doSimDerivatives()
+	private double[][] dKspaceB; // work array
 	
 	public SimImage1D() {
 		mprageA = new EPG_MPRAGE();
 		mprageB = new EPG_MPRAGE();
+		batch = new EPG_MPRAGE_Batch();
 	}
 	
 	public SimImage1D(SimImage1D that) {
 		this.mprageA = new EPG_MPRAGE( that.mprageA );
 		this.mprageB = new EPG_MPRAGE( that.mprageB );
+		this.batch = new EPG_MPRAGE_Batch();
+		this.batch.setIdealSpoiling( that.batch.isIdealSpoiling() );
+		this.batch.setWarmStart( that.batch.isWarmStart() );
+		this.bBatchTissues = that.bBatchTissues;
 		this.cdFFT = new ComplexDoubleFFT( that.mprageA.NP );
 		this.phaseenc = that.phaseenc.clone();
 		this.maskA = that.maskA.clone();
 		this.maskB = that.maskB.clone();
+		this.specA = that.specA.clone();
+		this.specB = that.specB.clone();
+		this.simA = new double[3][that.mprageA.NP];
+		this.simB = new double[3][that.mprageA.NP];
+		this.kspaceB = new double[2*that.mprageA.NP];
+		this.fftWork = new double[2*that.mprageA.NP];
+		this.simAB = new double[][][] { simA, simB };
 	}
 
 	public void setTissueAParams( double m0, double t1, double t2 ) {
@@ -41,14 +63,79 @@ public class SimImage1D {
 	public void setIdealSpoiling( boolean b ) {
 		mprageA.setIdealSpoiling( b );
 		mprageB.setIdealSpoiling( b );
+		batch.setIdealSpoiling( b );
 	}	
 	
+	public void setClosedFormSpoiling( boolean b ) {
+		mprageA.setClosedFormSpoiling( b );
+		mprageB.setClosedFormSpoiling( b );
+	}
+	
+	public void setDirectSteadyState( boolean b ) {
+		mprageA.setDirectSteadyState( b );
+		mprageB.setDirectSteadyState( b );
+	}
+	
+	public void setReuseEchoTrain( boolean b ) {
+		mprageA.setReuseEchoTrain( b );
+		mprageB.setReuseEchoTrain( b );
+	}
+	
+	public void setTruncationEps( double eps ) {
+		mprageA.setTruncationEps( eps );
+		mprageB.setTruncationEps( eps );
+	}
+	
+	public void setWarmStart( boolean b ) {
+		mprageA.setWarmStart( b );
+		mprageB.setWarmStart( b );
+		batch.setWarmStart( b );
+	}
+	
+	/**
+	 * Sets the calculation of both tissues in one pass with EPG_MPRAGE_Batch, which shares the work
+	 * of each pulse between them and gives the same echoes. It is used when the steady state is
+	 * iterated (no echo train reuse, closed form ideal spoiling, direct steady state or truncation)
+	 * with the scalar kernel; the Vector API kernel does one tissue faster than the batch does two
+	 * [default is true]
+	 * @param b
+	 */
+	public void setBatchTissues( boolean b ) { bBatchTissues = b; }
+	public boolean isBatchTissues() { return bBatchTissues; }
+	
+	/*
+	 * True if doSim() does both tissues in one pass
+	 */
+	private boolean useBatch() {
+		return bBatchTissues && !mprageA.isReuseEchoTrain() && !mprageA.isDirectSteadyState()
+				&& !(mprageA.isIdealSpoiling() && mprageA.isClosedFormSpoiling()) && mprageA.getTruncationEps() <= 0
+				&& ( !mprageA.isVectorKernel() || EPG_Kernel.getFastest() == EPG_Kernel.SCALAR );
+	}
+	
+	/*
+	 * MPRAGE cycles used for both tissues by the last simulation
+	 */
+	public int getNumLoops() {
+		if ( bLastBatched )
+			return 2*batch.getNumLoops();
+		return mprageA.getNumLoops() + mprageB.getNumLoops();
+	}
+	
 	public void setSeqParams( double a, double i, double tr, double td1, double td2, int np ) {
 		mprageA.setSeqParams( a, i, tr, td1, td2, np );
 		mprageB.setSeqParams( a, i, tr, td1, td2, np );
+		batch.setSeqParams( a, i, tr, td1, td2, np );
+		
+		// the FFT, phase encoding and tissue masks only depend on the length of the pulse train
+		if ( maskA != null && maskA.length == np )
+			return;
 		
 		cdFFT = new ComplexDoubleFFT(np);
-		cdFFTB = new ComplexDoubleFFT(np);
+		simA = new double[3][np];
+		simB = new double[3][np];
+		simAB = new double[][][] { simA, simB };
+		kspaceB = new double[2*np];
+		fftWork = new double[2*np];
 		
 		phaseenc = Tools.linspace( -Math.PI, Math.PI, np );
 		
@@ -63,10 +150,41 @@ public class SimImage1D {
 		
 		maskB = new boolean[mprageA.NP];
 		for ( int j=NP_2; j<3*NP_4+NP_8; j++ )
-			maskB[j] = true;		
+			maskB[j] = true;
+		
+		specA = getMaskSpectrum( maskA );
+		specB = getMaskSpectrum( maskB );
+	}
+	
+	/*
+	 * The FFT is linear, so the spectrum of a mask filled with a constant echo is the echo times
+	 * the spectrum of the mask itself. It only has to be computed once per mask.
+	 */
+	private double[] getMaskSpectrum( boolean[] mask ) {
+		double[] spec = new double[mask.length*2];
+		for ( int j=0; j<mask.length; j++ ) {
+			if ( mask[j] == true )
+				spec[ 2*j ] = 1;
+		}
+		
+		// fftshift
+		Tools.fftshift1DComplex(spec);
+		// take fft
+		cdFFT.ft(spec);
+		// fftshift
+		Tools.fftshift1DComplex(spec);
+		
+		return spec;
 	}
 	
 	public double[] calcTissueMean( double[] im1D ) {
+		return calcTissueMean( im1D, new double[2] );
+	}
+	
+	/*
+	 * Mean magnitude of tissue A and B, stored in mean
+	 */
+	public double[] calcTissueMean( double[] im1D, double[] mean ) {
 		double meanA = 0, meanB = 0;
 		int countA = 0, countB = 0, indR, indC;
 		for ( int i=0; i<im1D.length/2; i++ ) {
@@ -83,22 +201,42 @@ public class SimImage1D {
 		}
 		meanA /= countA;
 		meanB /= countB;
-		return new double[] {meanA, meanB};
+		mean[0] = meanA;
+		mean[1] = meanB;
+		return mean;
 	}
 	
 	public double[] getKSpaceA() {
-		return getKSpace( mprageA, maskA );		
+		return getKSpace( mprageA, specA, new double[3][mprageA.NP], new double[2*mprageA.NP] );		
 	}	
 	public double[] getKSpaceB() {
-		return getKSpace( mprageB, maskB );		
+		return getKSpace( mprageB, specB, new double[3][mprageB.NP], new double[2*mprageB.NP] );		
 	}
 	
 	public double[] doSim() {
-		// perform simulation on tissue type a
-		double[] kspace1 = getKSpace( mprageA, maskA );
-
-		// perform simulation on tissue type b
-		double[] kspace2 = getKSpace( mprageB, maskB );
+		return doSim( new double[2*mprageA.NP] );
+	}
+	
+	/*
+	 * Simulates the 1D image into im1D (of length 2*NP), without allocating
+	 */
+	public double[] doSim( double[] im1D ) {
+		double[] kspace1 = im1D;
+		double[] kspace2 = kspaceB;
+		bLastBatched = useBatch();
+		if ( bLastBatched ) {
+			// both tissues in one pass
+			batch.setTissueParams( mprageA.M0, mprageA.T1, mprageA.T2, mprageB.M0, mprageB.T1, mprageB.T2 );
+			batch.doCalc( simAB );
+			toKSpace( simA[0], simA[1], simA[2], specA, kspace1 );
+			toKSpace( simB[0], simB[1], simB[2], specB, kspace2 );
+		} else {
+			// perform simulation on tissue type a
+			getKSpace( mprageA, specA, simA, kspace1 );
+			
+			// perform simulation on tissue type b
+			getKSpace( mprageB, specB, simB, kspace2 );
+		}
 		
 		// combine the two tissues
 		for ( int i=0; i<kspace1.length; i++ )
@@ -107,20 +245,110 @@ public class SimImage1D {
 		// fftshift
 		Tools.fftshift1DComplex(kspace1);
 		// take fft 
-		cdFFT.bt(kspace1);
+		cdFFT.bt(kspace1, fftWork);
 		// fftshift
 		Tools.fftshift1DComplex(kspace1);
 		
 		return kspace1;
 	}
 	
+	/**
+	 * Simulates the 1D image into im1D like doSim(), and its derivatives with respect to the flip
+	 * angle (per degree), TD1 and TD2 (per ms) into dIm1D[p] for p = EPG_MPRAGE.D_FA, D_TD1, D_TD2,
+	 * see EPG_MPRAGE.doCalcDerivatives(). Everything after the echoes is linear, so the derivatives
+	 * of the image are the same FFTs of the derivatives of the echoes.
+	 * @param im1D array of length 2*NP
+	 * @param dIm1D array of size (EPG_MPRAGE.NUM_DERIVSx2*NP)
+	 * @return
+	 */
+	public double[] doSimDerivatives( double[] im1D, double[][] dIm1D ) {
+		int NP = mprageA.NP;
+		if ( dSimA == null || dSimA[0][0].length != NP ) {
+			dSimA = new double[EPG_MPRAGE.NUM_DERIVS][2][NP];
+			dSimB = new double[EPG_MPRAGE.NUM_DERIVS][2][NP];
+			dKspaceB = new double[EPG_MPRAGE.NUM_DERIVS][2*NP];
+		}
+		EPG_MPRAGE.Workspace ws = EPG_MPRAGE.getLocalWorkspace( NP );
+		bLastBatched = false;
+		mprageA.doCalcDerivatives( ws, simA, dSimA );
+		mprageB.doCalcDerivatives( ws, simB, dSimB );
+		
+		toKSpace( simA[0], simA[1], simA[2], specA, im1D );
+		toKSpace( simB[0], simB[1], simB[2], specB, kspaceB );
+		for ( int i=0; i<im1D.length; i++ )
+			im1D[i] += kspaceB[i];
+		toImage( im1D );
+		
+		for ( int p=0; p<EPG_MPRAGE.NUM_DERIVS; p++ ) {
+			toKSpace( dSimA[p][0], dSimA[p][1], simA[2], specA, dIm1D[p] );
+			toKSpace( dSimB[p][0], dSimB[p][1], simB[2], specB, dKspaceB[p] );
+			for ( int i=0; i<dIm1D[p].length; i++ )
+				dIm1D[p][i] += dKspaceB[p][i];
+			toImage( dIm1D[p] );
+		}
+		return im1D;
+	}
+	
+	/*
+	 * Derivatives of the mean magnitude of tissue A and B, dMean[tissue][p], from an image and its
+	 * derivatives as found by doSimDerivatives()
+	 */
+	public double[][] calcTissueMeanDerivatives( double[] im1D, double[][] dIm1D, double[][] dMean ) {
+		int countA = 0, countB = 0;
+		for ( int p=0; p<dIm1D.length; p++ ) {
+			dMean[0][p] = 0;
+			dMean[1][p] = 0;
+		}
+		for ( int i=0; i<im1D.length/2; i++ ) {
+			if ( !maskA[i] && !maskB[i] )
+				continue;
+			double re = im1D[2*i], im = im1D[2*i+1];
+			double mag = Math.hypot( re, im );
+			if ( maskA[i] )
+				countA++;
+			if ( maskB[i] )
+				countB++;
+			// d|z| = (re*dre + im*dim)/|z|
+			for ( int p=0; p<dIm1D.length && mag > 0; p++ ) {
+				double dMag = (re*dIm1D[p][2*i] + im*dIm1D[p][2*i+1])/mag;
+				if ( maskA[i] )
+					dMean[0][p] += dMag;
+				if ( maskB[i] )
+					dMean[1][p] += dMag;
+			}
+		}
+		for ( int p=0; p<dIm1D.length; p++ ) {
+			dMean[0][p] /= countA;
+			dMean[1][p] /= countB;
+		}
+		return dMean;
+	}
+	
+	/*
+	 * fftshift, inverse FFT and fftshift of k-space into the image, in place
+	 */
+	private void toImage( double[] kspace ) {
+		Tools.fftshift1DComplex(kspace);
+		cdFFT.bt(kspace, fftWork);
+		Tools.fftshift1DComplex(kspace);
+	}
+	
 	public double[] doSimThreaded(ExecutorService es) throws RejectedExecutionException {
+		return doSimThreaded( es, new double[2*mprageA.NP] );
+	}
+	
+	/*
+	 * Simulates the 1D image into im1D (of length 2*NP) like doSimThreaded(es), the tissues in
+	 * parallel on es
+	 */
+	public double[] doSimThreaded(ExecutorService es, double[] im1D) throws RejectedExecutionException {
+		bLastBatched = false;
 		// setup simulation on tissue type a
-		FutureTask<double[]> ftA = new FutureTask<double[]>( new KspaceCallA() );
+		FutureTask<double[]> ftA = new FutureTask<double[]>( new KspaceCallA( im1D ) );
 		es.submit(ftA);
 		
 		// set simulation on tissue type b
-		FutureTask<double[]> ftB = new FutureTask<double[]>( new KspaceCallB() );
+		FutureTask<double[]> ftB = new FutureTask<double[]>( new KspaceCallB( kspaceB ) );
 		es.submit(ftB);
 		
 		// get results
@@ -145,7 +373,7 @@ public class SimImage1D {
 		// fftshift
 		Tools.fftshift1DComplex(kspace1);
 		// take fft 
-		cdFFT.bt(kspace1);
+		cdFFT.bt(kspace1, fftWork);
 		// fftshift
 		Tools.fftshift1DComplex(kspace1);
 		
@@ -153,66 +381,53 @@ public class SimImage1D {
 	}
 	
 	public class KspaceCallA implements Callable<double[]> {
+		private final double[] kspace;
+		public KspaceCallA() { this( new double[2*mprageA.NP] ); }
+		public KspaceCallA( double[] kspace ) { this.kspace = kspace; }
 		@Override
 		public double[] call() throws Exception {
-			return getKSpace(mprageA,cdFFT,maskA);
+			return getKSpace(mprageA,specA,simA,kspace);
 		}
 	}
 	public class KspaceCallB implements Callable<double[]> {
+		private final double[] kspace;
+		public KspaceCallB() { this( new double[2*mprageB.NP] ); }
+		public KspaceCallB( double[] kspace ) { this.kspace = kspace; }
 		@Override
 		public double[] call() throws Exception {
-			return getKSpace(mprageB,cdFFTB,maskB);
+			return getKSpace(mprageB,specB,simB,kspace);
 		}
 	}
-		
-	private double[] getKSpace(EPG_MPRAGE mprage, boolean[] mask ) {
-		return getKSpace( mprage, cdFFT, mask );
-	}
 	
-	private double[] getKSpace(EPG_MPRAGE mprage, ComplexDoubleFFT fft, boolean[] mask) {
+	/*
+	 * Each phase encoding line i samples the spectrum of the tissue mask filled with echo i, so 
+	 * k-space is the echo times the precomputed mask spectrum at i, times the phase encoding and
+	 * RF demodulation factor exp(j*(phaseenc-phi)). The echoes are simulated into sim with the
+	 * workspace of the calling thread.
+	 */
+	private double[] getKSpace(EPG_MPRAGE mprage, double[] spec, double[][] sim, double[] kspace) {
 		// do simulation
-		double[][] sim = mprage.doCalc();
-		
-		// copy into complex arrays
-		double[] F = new double[mprage.NP*2];
-		double[] phi   = new double[mprage.NP];
-		for ( int i=0; i<mprage.NP; i++ ) {
-			F[ 2*i   ] = sim[0][i];
-			F[ 2*i+1 ] = sim[1][i];
-			phi[ i ]   = sim[2][i];
-		}
+		mprage.doCalc( EPG_MPRAGE.getLocalWorkspace(mprage.NP), sim );
 		
-		double[] work1 = new double[mprage.NP*2]; // work array		
-		double[] kspace = new double[mprage.NP*2]; // output array
-		
-		for ( int i=0; i<mprage.NP; i++ ) {			
-			// copy into work array and mask
-			for ( int j=0; j<mprage.NP; j++ ) {
-				if ( mask[j] == true ) {
-					work1[ 2*j ]   = F[ 2*i ];
-					work1[ 2*j+1 ] = F[ 2*i+1 ];
-				} else {
-					work1[ 2*j ]   = 0;
-					work1[ 2*j+1 ] = 0;
-				}
-			}
-			
-			// fftshift
-			Tools.fftshift1DComplex(work1);
-			// take fft
-			fft.ft(work1);
-			// fftshift
-			Tools.fftshift1DComplex(work1);
+		return toKSpace( sim[0], sim[1], sim[2], spec, kspace );
+	}
+	
+	/*
+	 * k-space of a tissue from its echoes (real and imaginary part) and the RF phase of each pulse
+	 */
+	private double[] toKSpace( double[] echoRe, double[] echoIm, double[] phi, double[] spec, double[] kspace ) {
+		for ( int i=0; i<echoRe.length; i++ ) {
+			// echo times mask spectrum
+			double re = echoRe[i]*spec[2*i]   - echoIm[i]*spec[2*i+1];
+			double im = echoRe[i]*spec[2*i+1] + echoIm[i]*spec[2*i];
 			
-			// do simulated phase encoding
-			Complex c1 = new Complex( work1[2*i], work1[2*i+1] );
-			Complex c2 = Complex.ComplexExp(phaseenc[i]);
-			Complex c3 = Complex.ComplexExp(-phi[i]);
-			c1.mul(c2);
-			c1.mul(c3);
+			// do simulated phase encoding and RF demodulation
+			double theta = phaseenc[i] - phi[i];
+			double cr = Math.cos(theta);
+			double ci = Math.sin(theta);
 			
-			kspace[2*i]   = c1.real;
-			kspace[2*i+1] = c1.imag;
+			kspace[2*i]   = re*cr - im*ci;
+			kspace[2*i+1] = re*ci + im*cr;
 		}
 		
 		return kspace;
@@ -10,6 +10,7 @@ public class SimImage1DRunner implements Runnable {
 		private SimImage1D si;
 		private double[] im1d;
 		private double[] imMean;
+		private double[][] dIm1d, dImMean;
 		private boolean bIsBusy;
 		
 		public SimImage1DRunner() {
@@ -25,17 +26,52 @@ public class SimImage1DRunner implements Runnable {
 		public double[] get1DTissueMean() { return imMean; }
 		public boolean isBusy() { return bIsBusy; }
 		public void setIdealSpoiling( boolean b ) { si.setIdealSpoiling(b); }		
+		public void setClosedFormSpoiling( boolean b ) { si.setClosedFormSpoiling(b); }
+		public void setDirectSteadyState( boolean b ) { si.setDirectSteadyState(b); }
+		public void setReuseEchoTrain( boolean b ) { si.setReuseEchoTrain(b); }
+		public void setTruncationEps( double eps ) { si.setTruncationEps(eps); }
+		public void setWarmStart( boolean b ) { si.setWarmStart(b); }
+		public void setBatchTissues( boolean b ) { si.setBatchTissues(b); }
+		public int getNumLoops() { return si.getNumLoops(); }
 		public void setTissueAParams( double pd, double t1, double t2 ) { si.setTissueAParams( pd, t1, t2 ); }		
 		public void setTissueBParams( double pd, double t1, double t2 ) { si.setTissueBParams( pd, t1, t2 ); }
 		public void setSeqParams(double fa, double spoilInc, double TR, double td1, double td2, int NP) {
 			si.setSeqParams(fa, spoilInc, TR, td1, td2, NP);
+			// results are kept in the same arrays as long as NP does not change
+			if ( im1d == null || im1d.length != 2*NP ) {
+				im1d = new double[2*NP];
+				imMean = new double[2];
+				dIm1d = null;
+			}
 		}
+		
+		/*
+		 * Runs the simulation like run() and also finds the derivatives of the tissue means, see
+		 * get1DTissueMeanDerivatives()
+		 */
+		public void runDerivatives() {
+			bIsBusy = true;
+			if ( dIm1d == null ) {
+				dIm1d = new double[EPG_MPRAGE.NUM_DERIVS][im1d.length];
+				dImMean = new double[2][EPG_MPRAGE.NUM_DERIVS];
+			}
+			si.doSimDerivatives( im1d, dIm1d );
+			si.calcTissueMean( im1d, imMean );
+			si.calcTissueMeanDerivatives( im1d, dIm1d, dImMean );
+			bIsBusy = false;
+		}
+		
+		/*
+		 * Derivatives of get1DTissueMean() with respect to the flip angle (per degree), TD1 and TD2 (per 
+		 * ms) after runDerivatives(), as [tissue][EPG_MPRAGE.D_FA, D_TD1 or D_TD2]
+		 */
+		public double[][] get1DTissueMeanDerivatives() { return dImMean; }
 
 		@Override
 		public void run() {
 			bIsBusy = true;
-			im1d = si.doSim();
-			imMean = si.calcTissueMean( im1d );
+			si.doSim( im1d );
+			si.calcTissueMean( im1d, imMean );
 			bIsBusy = false;
 		}
 }
\ No newline at end of file
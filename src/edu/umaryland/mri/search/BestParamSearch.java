@@ -0,0 +1,185 @@
+package edu.umaryland.mri.search;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/*
+ * Keeps track of the best protocols of a search: the shortest one with at least the minimum signal
+ * and contrast, and the ones closest to the desired contrast and signal. Searches over parts of a
+ * grid can each use their own and merge them afterwards.
+ */
+public class BestParamSearch {
+	private double desiredSignal, desiredContrast;
+	private double minSignal, minContrast;
+	// sequence parameters of the protocols being tried
+	public double TR;
+	public int NP;
+	public double spoil;
+	public class OptParams {
+		// used to keep to track of optimal values
+		public double bestContrast = 0, bestSignal = 0, bestErr = Double.MAX_VALUE;
+		// sequence parameters
+		public double alpha, TD1, TD2;
+		public double TR = BestParamSearch.this.TR, spoil;
+		public int NP = BestParamSearch.this.NP;
+		public double getTime() { return TD1 + NP*TR + TD2; }
+
+		private void set( double c, double s, double a, double td1, double td2, double err ) {
+			bestContrast = c;
+			bestSignal = s;
+			alpha = a;
+			TD1 = td1;
+			TD2 = td2;
+			bestErr = err;
+			TR = BestParamSearch.this.TR;
+			NP = BestParamSearch.this.NP;
+			spoil = BestParamSearch.this.spoil;
+		}
+
+		private void set( OptParams that ) {
+			bestContrast = that.bestContrast;
+			bestSignal = that.bestSignal;
+			bestErr = that.bestErr;
+			alpha = that.alpha;
+			TD1 = that.TD1;
+			TD2 = that.TD2;
+			TR = that.TR;
+			NP = that.NP;
+			spoil = that.spoil;
+		}
+
+		private void write( DataOutput out ) throws IOException {
+			out.writeDouble( bestContrast ); out.writeDouble( bestSignal ); out.writeDouble( bestErr );
+			out.writeDouble( alpha ); out.writeDouble( TD1 ); out.writeDouble( TD2 );
+			out.writeDouble( TR ); out.writeInt( NP ); out.writeDouble( spoil );
+		}
+
+		private void read( DataInput in ) throws IOException {
+			bestContrast = in.readDouble(); bestSignal = in.readDouble(); bestErr = in.readDouble();
+			alpha = in.readDouble(); TD1 = in.readDouble(); TD2 = in.readDouble();
+			TR = in.readDouble(); NP = in.readInt(); spoil = in.readDouble();
+		}
+	}
+	public OptParams bestParams, bestCParams, bestSParams;
+
+	public BestParamSearch( double ds, double dc, double ms, double mc, double tr, int np ) {
+		desiredSignal = ds;
+		desiredContrast = dc;
+		minSignal = ms;
+		minContrast = mc;
+		TR = tr;
+		NP = np;
+		bestParams = new OptParams();
+		bestCParams = new OptParams();
+		bestSParams = new OptParams();
+	}
+
+	/*
+	 * An empty search with the same goals
+	 */
+	public BestParamSearch( BestParamSearch that ) {
+		this( that.desiredSignal, that.desiredContrast, that.minSignal, that.minContrast, that.TR, that.NP );
+		spoil = that.spoil;
+	}
+
+	/**
+	 * Sets the sequence parameters of the protocols tried from now on
+	 * @param tr
+	 * @param np
+	 * @param spoilInc
+	 */
+	public void setSeqParams( double tr, int np, double spoilInc ) {
+		TR = tr;
+		NP = np;
+		spoil = spoilInc;
+	}
+
+	public boolean tryBest(double s, double c, double a, double td1, double td2) {
+		if ( s >= minSignal )
+			if ( c >= minContrast ) {
+				// check time
+				double currErr = td1 + NP*TR + td2;
+				if ( currErr <= bestParams.bestErr ) {
+					bestParams.set( c, s, a, td1, td2, currErr );
+					return true;
+				}
+			}
+		return false;
+	}
+
+	public boolean tryContrast( double s, double c, double a, double td1, double td2 ) {
+		double currErr = 0;
+		// get SE
+		currErr = c - desiredContrast;
+		currErr *= currErr;
+		// check if this one is better
+		if ( currErr < bestCParams.bestErr ) {
+			bestCParams.set( c, s, a, td1, td2, currErr );
+			return true;
+		}
+		return false;
+	}
+
+	public boolean trySignal( double s, double c, double a, double td1, double td2 ) {
+		double currErr = 0;
+		// get SE
+		currErr = s - desiredSignal;
+		currErr *= currErr;
+		// check if this one is better
+		if ( currErr < bestSParams.bestErr ) {
+			bestSParams.set( c, s, a, td1, td2, currErr );
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Merges the results of a search that came after this one (in the order the protocols would
+	 * have been tried), so ties are broken the same way as if every protocol had been tried here.
+	 * Returns true if the best protocol was taken from that.
+	 *
+	 * @param that
+	 * @return
+	 */
+	public boolean merge( BestParamSearch that ) {
+		if ( that.bestCParams.bestErr < bestCParams.bestErr )
+			bestCParams.set( that.bestCParams );
+		if ( that.bestSParams.bestErr < bestSParams.bestErr )
+			bestSParams.set( that.bestSParams );
+		if ( that.isBestFound() && that.bestParams.bestErr <= bestParams.bestErr ) {
+			bestParams.set( that.bestParams );
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * Returns true if a protocol with the minimum signal and contrast was found
+	 */
+	public boolean isBestFound() {
+		return bestParams.bestErr < Double.MAX_VALUE;
+	}
+
+	/**
+	 * Writes the best protocols to out, e.g. to send them to the search that merges them
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write( DataOutput out ) throws IOException {
+		bestParams.write( out );
+		bestCParams.write( out );
+		bestSParams.write( out );
+	}
+
+	/**
+	 * Replaces the best protocols with those written by write()
+	 * @param in
+	 * @throws IOException
+	 */
+	public void read( DataInput in ) throws IOException {
+		bestParams.read( in );
+		bestCParams.read( in );
+		bestSParams.read( in );
+	}
+}
@@ -0,0 +1,274 @@
+package edu.umaryland.mri.search;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Mean tissue signals of protocols that were already simulated. A protocol is found by its integer
+ * FA, TD1 and TD2 packed in a long together with a hash of everything else that changes the signals
+ * (tissues, TR, NP, spoiling), so one cache can be kept across searches with different settings.
+ *
+ * The entries are kept in primitive arrays with open addressing (linear probing), split into
+ * segments with their own lock so many threads can use it. When a segment is full the clock hand
+ * evicts an entry that was not used since the hand last passed it.
+ */
+public class EvalCache {
+
+	private static final int NUM_SEGMENTS = 16;
+	// FA, TD1 and TD2 get this many bits each in a key
+	private static final int KEY_BITS = 21;
+	private static final long EMPTY = -1;
+
+	private final Segment[] segments = new Segment[NUM_SEGMENTS];
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private EvalStore store;
+
+	/**
+	 * Creates a cache that holds at most capacity protocols
+	 * @param capacity
+	 */
+	public EvalCache( int capacity ) {
+		for ( int i=0; i<NUM_SEGMENTS; i++ )
+			segments[i] = new Segment( Math.max( 4, capacity/NUM_SEGMENTS ) );
+	}
+
+	/*
+	 * Key of a protocol, or -1 if FA, TD1 or TD2 is not a whole number from 0 to 2^21-1
+	 */
+	public static long getKey( double fa, double td1, double td2 ) {
+		long a = (long) fa, b = (long) td1, c = (long) td2;
+		if ( a != fa || b != td1 || c != td2 || ((a | b | c) >>> KEY_BITS) != 0 )
+			return EMPTY;
+		return (a << (2*KEY_BITS)) | (b << KEY_BITS) | c;
+	}
+
+	/**
+	 * Sets a store on disk that is looked up when a protocol is not in memory and that keeps every
+	 * protocol put [default is none]
+	 * @param store
+	 */
+	public void setStore( EvalStore store ) { this.store = store; }
+	public EvalStore getStore() { return store; }
+
+	/*
+	 * Context of the tissues and sequence parameters other than FA, TD1 and TD2, to be used with
+	 * get() and put(); adds them to the store if they are new to it
+	 */
+	public long getContext( SimParams p, double TR, int NP, double spoil ) {
+		EvalStore s = store;
+		return (s != null) ? s.getContext( p, TR, NP, spoil ) : hashContext( p, TR, NP, spoil );
+	}
+
+	/*
+	 * Hash of the tissues and sequence parameters other than FA, TD1 and TD2
+	 */
+	public static long hashContext( SimParams p, double TR, int NP, double spoil ) {
+		long h = 0x9E3779B97F4A7C15L;
+		h = mix( h, Double.doubleToLongBits(p.getPDa()) );
+		h = mix( h, p.getT1a() );
+		h = mix( h, p.getT2a() );
+		h = mix( h, Double.doubleToLongBits(p.getPDb()) );
+		h = mix( h, p.getT1b() );
+		h = mix( h, p.getT2b() );
+		h = mix( h, Double.doubleToLongBits(TR) );
+		h = mix( h, NP );
+		h = mix( h, p.getIdealSpoil() ? 1 : Double.doubleToLongBits(spoil) );
+		return h;
+	}
+
+	private static long mix( long h, long v ) {
+		h ^= v;
+		h *= 0xBF58476D1CE4E5B9L;
+		return h ^ (h >>> 31);
+	}
+
+	private static int hash( long key, long context ) {
+		long h = mix( key * 0x94D049BB133111EBL, context );
+		return (int)(h ^ (h >>> 32));
+	}
+
+	/**
+	 * Looks up a protocol and puts its signals of tissue A and B in signals[0] and signals[1].
+	 * Returns false if it is not cached.
+	 * @param key
+	 * @param context
+	 * @param signals
+	 * @return
+	 */
+	public boolean get( long key, long context, double[] signals ) {
+		if ( key == EMPTY ) {
+			misses.increment();
+			return false;
+		}
+		int h = hash( key, context );
+		Segment segment = segments[h & (NUM_SEGMENTS-1)];
+		boolean found = segment.get( key, context, h >>> 4, signals );
+		EvalStore s = store;
+		if ( !found && s != null && s.get( key, context, signals ) ) {
+			segment.put( key, context, h >>> 4, signals[0], signals[1] );
+			found = true;
+		}
+		if ( found )
+			hits.increment();
+		else
+			misses.increment();
+		return found;
+	}
+
+	/*
+	 * True if a protocol is cached; not counted as a hit or miss
+	 */
+	public boolean contains( long key, long context ) {
+		if ( key == EMPTY )
+			return false;
+		int h = hash( key, context );
+		return segments[h & (NUM_SEGMENTS-1)].find( key, context, h >>> 4 ) >= 0;
+	}
+
+	/*
+	 * Stores the signals of tissue A and B of a protocol, also in the store if there is one
+	 */
+	public void put( long key, long context, double signalA, double signalB ) {
+		if ( key == EMPTY )
+			return;
+		int h = hash( key, context );
+		segments[h & (NUM_SEGMENTS-1)].put( key, context, h >>> 4, signalA, signalB );
+		EvalStore s = store;
+		if ( s != null )
+			s.put( key, context, signalA, signalB );
+	}
+
+	public long getHits() { return hits.sum(); }
+	public long getMisses() { return misses.sum(); }
+
+	public int size() {
+		int n = 0;
+		for ( Segment s : segments )
+			n += s.size();
+		return n;
+	}
+
+	public void clear() {
+		for ( Segment s : segments )
+			s.clear();
+		hits.reset();
+		misses.reset();
+	}
+
+	private static class Segment {
+		private final long[] keys;
+		private final long[] contexts;
+		private final double[] signalA, signalB;
+		private final boolean[] used;
+		private final int mask;
+		private final int maxSize;
+		private int size;
+		private int hand;
+
+		Segment( int maxSize ) {
+			// at most 3/4 full keeps the probes short
+			int n = Integer.highestOneBit( maxSize + maxSize/3 ) << 1;
+			keys = new long[n];
+			contexts = new long[n];
+			signalA = new double[n];
+			signalB = new double[n];
+			used = new boolean[n];
+			mask = n-1;
+			this.maxSize = maxSize;
+			Arrays.fill( keys, EMPTY );
+		}
+
+		/*
+		 * Slot of a protocol, or -1
+		 */
+		synchronized int find( long key, long context, int h ) {
+			for ( int i=h & mask; keys[i] != EMPTY; i=(i+1) & mask )
+				if ( keys[i] == key && contexts[i] == context )
+					return i;
+			return -1;
+		}
+
+		synchronized boolean get( long key, long context, int h, double[] signals ) {
+			int i = find( key, context, h );
+			if ( i < 0 )
+				return false;
+			signals[0] = signalA[i];
+			signals[1] = signalB[i];
+			used[i] = true;
+			return true;
+		}
+
+		synchronized void put( long key, long context, int h, double a, double b ) {
+			int i = h & mask;
+			for ( ; keys[i] != EMPTY; i=(i+1) & mask )
+				if ( keys[i] == key && contexts[i] == context ) {
+					signalA[i] = a;
+					signalB[i] = b;
+					used[i] = true;
+					return;
+				}
+			if ( size >= maxSize ) {
+				evict();
+				// the slot found above may have moved
+				for ( i=h & mask; keys[i] != EMPTY; i=(i+1) & mask )
+					;
+			}
+			keys[i] = key;
+			contexts[i] = context;
+			signalA[i] = a;
+			signalB[i] = b;
+			used[i] = false;
+			size++;
+		}
+
+		/*
+		 * Second chance: clears the used flags until the hand finds an entry without one
+		 */
+		private void evict() {
+			while ( true ) {
+				hand = (hand+1) & mask;
+				if ( keys[hand] == EMPTY )
+					continue;
+				if ( used[hand] ) {
+					used[hand] = false;
+					continue;
+				}
+				remove( hand );
+				return;
+			}
+		}
+
+		/*
+		 * Removes slot i and moves later entries of its probe run back so they can still be found
+		 */
+		private void remove( int i ) {
+			int j = i;
+			while ( true ) {
+				j = (j+1) & mask;
+				if ( keys[j] == EMPTY )
+					break;
+				int home = (hash( keys[j], contexts[j] ) >>> 4) & mask;
+				// move j into the hole unless its home lies cyclically in (i, j]
+				boolean stays = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+				if ( stays )
+					continue;
+				keys[i] = keys[j];
+				contexts[i] = contexts[j];
+				signalA[i] = signalA[j];
+				signalB[i] = signalB[j];
+				used[i] = used[j];
+				i = j;
+			}
+			keys[i] = EMPTY;
+			size--;
+		}
+
+		synchronized int size() { return size; }
+
+		synchronized void clear() {
+			Arrays.fill( keys, EMPTY );
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package edu.umaryland.mri.search;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ * Mean tissue signals of every protocol ever simulated, kept in a file so later sweeps only have to
+ * simulate the protocols they have not seen. It is meant to sit behind an EvalCache (see
+ * EvalCache.setStore()), which answers the repeated lookups of a search from memory.
+ *
+ * The file is an append-only log of 32 byte slots, memory-mapped in segments. A result takes one
+ * slot (key, context, signal A, signal B) with the key and context of EvalCache. The first time a
+ * context is used, its full parameters (tissues, TR, NP, spoiling) are appended in three slots, so
+ * protocols are stored under their complete parameters and two settings whose hashes collide are
+ * refused instead of mixed up. The header holds the number of slots, which is only advanced once a
+ * record is complete, so a record cut off by a crash is ignored. The index from (key, context) to
+ * slot is kept in memory and rebuilt from the log when the file is opened. One store at a time can
+ * have the file open, see open().
+ */
+public class EvalStore implements Closeable {
+
+	private static final int MAGIC = 0x4C52504D; // "MPRL" in little-endian
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int SLOT_SIZE = 32;
+	private static final int SEGMENT_SLOTS = 1<<20;
+	// key of the first slot of a context record; EvalCache keys are never negative
+	private static final long CONTEXT = -2;
+	// key of a slot left empty at the end of a segment
+	private static final long PAD = -3;
+	private static final int CONTEXT_SLOTS = 3;
+	private static final int NUM_CONTEXT_VALUES = 10;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer header;
+	private final ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private long numSlots;
+
+	// open addressing table of the slots of the results, -1 where empty
+	private long[] index;
+	private int indexMask;
+	private int numResults;
+	private final HashMap<Long, double[]> contexts = new HashMap<Long, double[]>();
+	private long hits, misses;
+
+	private EvalStore( FileChannel channel, boolean bNew ) throws IOException {
+		this.channel = channel;
+		header = channel.map( FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE );
+		header.order( ByteOrder.LITTLE_ENDIAN );
+		if ( bNew ) {
+			header.putInt( 0, MAGIC ).putInt( 4, VERSION ).putInt( 8, SLOT_SIZE ).putLong( 16, 0 );
+		} else if ( header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != SLOT_SIZE ) {
+			throw new IOException( "not a result store" );
+		}
+		numSlots = header.getLong( 16 );
+		if ( channel.size() < HEADER_SIZE + numSlots*SLOT_SIZE )
+			throw new IOException( "result store is truncated" );
+		newIndex( 1<<12 );
+		readLog();
+	}
+
+	/**
+	 * Opens file, creating it if it does not exist. The store is locked until it is closed, since two
+	 * processes appending to one log would overwrite each other's slots.
+	 * @param file
+	 * @return
+	 * @throws IOException also if another process (or another store in this one) has the file open
+	 */
+	public static EvalStore open( File file ) throws IOException {
+		FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		try {
+			FileLock lock;
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				lock = null;
+			}
+			if ( lock == null )
+				throw new IOException( "in use by another process" );
+			// only known to be new once it is ours
+			return new EvalStore( channel, channel.size() == 0 );
+		} catch (IOException e) {
+			channel.close();
+			throw new IOException( file + ": " + e.getMessage() );
+		}
+	}
+
+	/*
+	 * Rebuilds the index and the contexts from the log
+	 */
+	private void readLog() throws IOException {
+		long slot = 0;
+		while ( slot < numSlots ) {
+			long key = getLong( slot, 0 );
+			if ( key == CONTEXT ) {
+				double[] values = new double[NUM_CONTEXT_VALUES];
+				for ( int i=0; i<NUM_CONTEXT_VALUES; i++ )
+					values[i] = getDouble( slot + (2+i)/4, (2+i)%4 );
+				contexts.put( getLong( slot, 1 ), values );
+				slot += CONTEXT_SLOTS;
+			} else if ( key == PAD ) {
+				slot++;
+			} else {
+				if ( !contexts.containsKey( getLong( slot, 1 ) ) )
+					throw new IOException( "result before its context at slot " + slot );
+				addToIndex( slot );
+				slot++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the context of EvalCache.hashContext() for these parameters, adding them to the log if
+	 * they are new
+	 * @param p
+	 * @param TR
+	 * @param NP
+	 * @param spoil
+	 * @return
+	 * @throws IllegalStateException if other parameters with the same hash are stored
+	 */
+	public synchronized long getContext( SimParams p, double TR, int NP, double spoil ) {
+		long context = EvalCache.hashContext( p, TR, NP, spoil );
+		double[] values = { p.getPDa(), p.getT1a(), p.getT2a(), p.getPDb(), p.getT1b(), p.getT2b(), TR, NP, p.getIdealSpoil() ? 0 : spoil, p.getIdealSpoil() ? 1 : 0 };
+		double[] stored = contexts.get( context );
+		if ( stored != null ) {
+			if ( !Arrays.equals( stored, values ) )
+				throw new IllegalStateException( "Result store has other parameters with the same hash" );
+			return context;
+		}
+		long slot = reserve( CONTEXT_SLOTS );
+		putLong( slot, 0, CONTEXT );
+		putLong( slot, 1, context );
+		for ( int i=0; i<NUM_CONTEXT_VALUES; i++ )
+			putDouble( slot + (2+i)/4, (2+i)%4, values[i] );
+		commit( slot + CONTEXT_SLOTS );
+		contexts.put( context, values );
+		return context;
+	}
+
+	/**
+	 * Looks up a protocol and puts its signals of tissue A and B in signals[0] and signals[1].
+	 * Returns false if it is not stored.
+	 * @param key
+	 * @param context
+	 * @param signals
+	 * @return
+	 */
+	public synchronized boolean get( long key, long context, double[] signals ) {
+		long slot = find( key, context );
+		if ( slot < 0 ) {
+			misses++;
+			return false;
+		}
+		signals[0] = getDouble( slot, 2 );
+		signals[1] = getDouble( slot, 3 );
+		hits++;
+		return true;
+	}
+
+	/*
+	 * Appends the signals of a protocol unless it is stored already. The context must come from
+	 * getContext() of this store.
+	 */
+	public synchronized void put( long key, long context, double signalA, double signalB ) {
+		if ( key < 0 || find( key, context ) >= 0 )
+			return;
+		if ( !contexts.containsKey( context ) )
+			throw new IllegalStateException( "Context was not added to the result store" );
+		long slot = reserve( 1 );
+		putLong( slot, 0, key );
+		putLong( slot, 1, context );
+		putDouble( slot, 2, signalA );
+		putDouble( slot, 3, signalB );
+		commit( slot+1 );
+		addToIndex( slot );
+	}
+
+	public synchronized int size() { return numResults; }
+	public synchronized long getHits() { return hits; }
+	public synchronized long getMisses() { return misses; }
+
+	/*
+	 * Writes the log out to the file
+	 */
+	public synchronized void force() {
+		for ( MappedByteBuffer b : segments )
+			b.force();
+		header.force();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		force();
+		channel.close();
+	}
+
+	/*
+	 * Returns the first of n free slots, mapping another segment when the last one is full. A record
+	 * never crosses segments.
+	 */
+	private long reserve( int n ) {
+		long slot = numSlots;
+		if ( slot/SEGMENT_SLOTS != (slot+n-1)/SEGMENT_SLOTS ) {
+			// skip to the next segment, leaving the rest of this one empty
+			while ( slot % SEGMENT_SLOTS != 0 )
+				putLong( slot++, 0, PAD );
+		}
+		getSegment( slot+n-1 );
+		return slot;
+	}
+
+	/*
+	 * Makes the records before slot part of the log
+	 */
+	private void commit( long slot ) {
+		numSlots = slot;
+		header.putLong( 16, numSlots );
+	}
+
+	private void map( long slot ) throws IOException {
+		int s = (int)(slot / SEGMENT_SLOTS);
+		while ( segments.size() <= s ) {
+			long pos = HEADER_SIZE + (long)segments.size()*SEGMENT_SLOTS*SLOT_SIZE;
+			MappedByteBuffer b = channel.map( FileChannel.MapMode.READ_WRITE, pos, (long)SEGMENT_SLOTS*SLOT_SIZE );
+			b.order( ByteOrder.LITTLE_ENDIAN );
+			segments.add( b );
+		}
+	}
+
+	private ByteBuffer getSegment( long slot ) {
+		if ( slot >= (long)segments.size()*SEGMENT_SLOTS ) {
+			try {
+				map( slot );
+			} catch (IOException e) {
+				throw new IllegalStateException( "Could not grow the result store", e );
+			}
+		}
+		return segments.get( (int)(slot / SEGMENT_SLOTS) );
+	}
+
+	private long getLong( long slot, int field ) {
+		return getSegment( slot ).getLong( (int)(slot % SEGMENT_SLOTS)*SLOT_SIZE + 8*field );
+	}
+
+	private double getDouble( long slot, int field ) {
+		return getSegment( slot ).getDouble( (int)(slot % SEGMENT_SLOTS)*SLOT_SIZE + 8*field );
+	}
+
+	private void putLong( long slot, int field, long v ) {
+		getSegment( slot ).putLong( (int)(slot % SEGMENT_SLOTS)*SLOT_SIZE + 8*field, v );
+	}
+
+	private void putDouble( long slot, int field, double v ) {
+		getSegment( slot ).putDouble( (int)(slot % SEGMENT_SLOTS)*SLOT_SIZE + 8*field, v );
+	}
+
+	private static int hash( long key, long context ) {
+		long h = (key * 0x94D049BB133111EBL) ^ context;
+		h *= 0xBF58476D1CE4E5B9L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	private long find( long key, long context ) {
+		for ( int i=hash(key, context) & indexMask; index[i] >= 0; i=(i+1) & indexMask )
+			if ( getLong( index[i], 0 ) == key && getLong( index[i], 1 ) == context )
+				return index[i];
+		return -1;
+	}
+
+	private void addToIndex( long slot ) {
+		if ( 4L*(numResults+1) > 3L*index.length ) {
+			long[] old = index;
+			newIndex( 2*old.length );
+			for ( long s : old )
+				if ( s >= 0 )
+					insert( s );
+		}
+		insert( slot );
+		numResults++;
+	}
+
+	private void insert( long slot ) {
+		int i = hash( getLong( slot, 0 ), getLong( slot, 1 ) ) & indexMask;
+		while ( index[i] >= 0 )
+			i = (i+1) & indexMask;
+		index[i] = slot;
+	}
+
+	private void newIndex( int n ) {
+		index = new long[n];
+		Arrays.fill( index, -1 );
+		indexMask = n-1;
+	}
+}
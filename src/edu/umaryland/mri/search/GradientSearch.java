@@ -0,0 +1,385 @@
+package edu.umaryland.mri.search;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import edu.umaryland.mri.data.EPG_MPRAGE;
+import edu.umaryland.mri.data.SimImage1DRunner;
+
+/*
+ * Minimizes the energy of SimParams.getEnergy() over continuous flip angle, TD1 and TD2 within the
+ * search ranges, using the exact derivatives of the tissue means (SimImage1DRunner.runDerivatives()),
+ * so each iteration costs one simulation instead of the many steps of annealing.
+ *
+ * The method is L-BFGS with bounds in the manner of L-BFGS-B: variables at a bound whose gradient
+ * points out of the box are held there, the quasi-Newton step is taken in the others, and the step
+ * is projected back into the box during a backtracking line search. The variables are scaled to the
+ * unit box so flip angles and delays are comparable. The energy has local minima, so several starts
+ * can be run at once on a ForkJoinPool; the best end point is then rounded to the grid by trying the
+ * grid protocols around it, since scanners take whole degrees and milliseconds.
+ */
+public class GradientSearch {
+
+	private static final int NUM_VARS = 3;
+
+	private final SimParams params;
+	private final double[] lo, hi;
+	private int maxIterations = 100;
+	private int history = 5;
+	private double tolerance = 1e-6;
+	private boolean bRoundToGrid = true;
+	private EvalCache cache;
+
+	private long numEvaluations, numIterations;
+	private ParallelTempering.State continuousBest;
+
+	public GradientSearch( SimParams params ) {
+		this.params = params;
+		lo = new double[] { params.getFAst(), params.getTD1st(), params.getTD2st() };
+		hi = new double[] { params.getFAen(), params.getTD1en(), params.getTD2en() };
+	}
+
+	/**
+	 * Sets the largest number of iterations of each start [default is 100]
+	 * @param maxIterations
+	 */
+	public void setMaxIterations( int maxIterations ) { this.maxIterations = maxIterations; }
+
+	/**
+	 * Sets the number of steps kept for the quasi-Newton approximation [default is 5]
+	 * @param history
+	 */
+	public void setHistory( int history ) { this.history = Math.max( 1, history ); }
+
+	/**
+	 * Sets the relative change of the energy, and the size of the projected gradient in the unit
+	 * box, below which a start stops [default is 1e-6]
+	 * @param tolerance
+	 */
+	public void setTolerance( double tolerance ) { this.tolerance = tolerance; }
+
+	/**
+	 * Sets whether the result is the best grid protocol around the continuous optimum [default is true]
+	 * @param bRoundToGrid
+	 */
+	public void setRoundToGrid( boolean bRoundToGrid ) { this.bRoundToGrid = bRoundToGrid; }
+	public boolean isRoundToGrid() { return bRoundToGrid; }
+
+	/**
+	 * Sets a cache for the grid protocols tried when rounding [default is none]
+	 * @param cache
+	 */
+	public void setCache( EvalCache cache ) { this.cache = cache; }
+
+	/*
+	 * Simulations with derivatives done by the last run
+	 */
+	public long getNumEvaluations() { return numEvaluations; }
+	public long getNumIterations() { return numIterations; }
+
+	/*
+	 * Best continuous protocol of the last run, before rounding
+	 */
+	public ParallelTempering.State getContinuousBest() { return continuousBest; }
+
+	/**
+	 * Runs one start from the given protocol
+	 * @param fa
+	 * @param td1
+	 * @param td2
+	 * @return
+	 */
+	public ParallelTempering.State run( double fa, double td1, double td2 ) {
+		Start start = new Start( new double[] { fa, td1, td2 } );
+		start.compute();
+		return finish( start.best, start.numEvaluations, start.numIterations );
+	}
+
+	/**
+	 * Runs numStarts starts at the same time on pool, from the corner doSimAnneal starts from and
+	 * then from points spread over the box (a Latin hypercube drawn from seed), and returns the best
+	 * @param pool
+	 * @param numStarts
+	 * @param seed
+	 * @return
+	 */
+	public ParallelTempering.State run( ForkJoinPool pool, int numStarts, long seed ) {
+		numStarts = Math.max( 1, numStarts );
+		SplittableRandom rand = new SplittableRandom( seed );
+		double[][] points = new double[numStarts][NUM_VARS];
+		points[0] = hi.clone();
+		for ( int i=0; i<NUM_VARS; i++ ) {
+			// stratum j of variable i goes to a random start
+			int[] perm = new int[numStarts-1];
+			for ( int j=0; j<perm.length; j++ ) {
+				int k = rand.nextInt( j+1 );
+				perm[j] = perm[k];
+				perm[k] = j;
+			}
+			for ( int j=0; j<perm.length; j++ )
+				points[j+1][i] = lo[i] + (hi[i]-lo[i]) * (perm[j] + rand.nextDouble()) / perm.length;
+		}
+
+		final ArrayList<Start> starts = new ArrayList<Start>();
+		for ( double[] p : points )
+			starts.add( new Start( p ) );
+		pool.invoke( new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected void compute() {
+				invokeAll( starts );
+			}
+		});
+
+		// the first start with the lowest energy wins, whatever order they finished in
+		Start best = starts.get(0);
+		long evaluations = 0, iterations = 0;
+		for ( Start s : starts ) {
+			if ( s.best.energy < best.best.energy )
+				best = s;
+			evaluations += s.numEvaluations;
+			iterations += s.numIterations;
+		}
+		return finish( best.best, evaluations, iterations );
+	}
+
+	private ParallelTempering.State finish( ParallelTempering.State best, long evaluations, long iterations ) {
+		numEvaluations = evaluations;
+		numIterations = iterations;
+		continuousBest = best;
+		return bRoundToGrid ? roundToGrid( best ) : best;
+	}
+
+	/*
+	 * Best of the up to 8 grid protocols around s
+	 */
+	private ParallelTempering.State roundToGrid( ParallelTempering.State s ) {
+		SimImage1DRunner sim = new SimImage1DRunner();
+		setTissues( sim );
+		sim.setClosedFormSpoiling( true );
+		double[] x = { s.fa, s.td1, s.td2 };
+		double[] inc = { params.getFAinc(), params.getTD1inc(), params.getTD2inc() };
+		long context = (cache != null) ? cache.getContext( params, params.getTR(), params.getNP(), params.getSpoil() ) : 0;
+		double[] signals = new double[2];
+		ParallelTempering.State best = null;
+		for ( int corner=0; corner<8; corner++ ) {
+			double[] g = new double[NUM_VARS];
+			for ( int i=0; i<NUM_VARS; i++ ) {
+				double steps = Math.floor( (x[i]-lo[i])/inc[i] + 1e-9 );
+				if ( (corner & (1<<i)) != 0 )
+					steps++;
+				g[i] = Math.min( lo[i] + steps*inc[i], hi[i] );
+			}
+			long key = EvalCache.getKey( g[0], g[1], g[2] );
+			double meanA, meanB;
+			if ( cache != null && cache.get( key, context, signals ) ) {
+				meanA = signals[0];
+				meanB = signals[1];
+			} else {
+				sim.setSeqParams( g[0], params.getSpoil(), params.getTR(), g[1], g[2], params.getNP() );
+				sim.run();
+				meanA = sim.get1DTissueMean()[0]/params.getNP(); // note ifft is unnormalized, fix it here
+				meanB = sim.get1DTissueMean()[1]/params.getNP();
+				if ( cache != null )
+					cache.put( key, context, meanA, meanB );
+			}
+			ParallelTempering.State t = new ParallelTempering.State();
+			t.fa = g[0];
+			t.td1 = g[1];
+			t.td2 = g[2];
+			t.signal = (meanA < meanB) ? meanA : meanB;
+			t.contrast = meanB/meanA;
+			t.time = params.getNP()*params.getTR() + g[1] + g[2];
+			t.energy = params.getEnergy( t.signal, t.contrast, t.time );
+			if ( best == null || t.energy < best.energy )
+				best = t;
+		}
+		return best;
+	}
+
+	private void setTissues( SimImage1DRunner sim ) {
+		sim.setTissueAParams( params.getPDa(), params.getT1a(), params.getT2a() );
+		sim.setTissueBParams( params.getPDb(), params.getT1b(), params.getT2b() );
+		sim.setIdealSpoiling( params.getIdealSpoil() );
+	}
+
+	/*
+	 * One run of the bounded L-BFGS from a starting point, in the variables u = (x-lo)/(hi-lo)
+	 */
+	private class Start extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final double[] start;
+		private final SimImage1DRunner sim = new SimImage1DRunner();
+		ParallelTempering.State best;
+		long numEvaluations, numIterations;
+
+		Start( double[] start ) {
+			this.start = start;
+			setTissues( sim );
+		}
+
+		@Override
+		protected void compute() {
+			int m = history;
+			double[][] S = new double[m][NUM_VARS], Y = new double[m][NUM_VARS];
+			double[] rho = new double[m];
+			int numPairs = 0, newest = -1;
+
+			double[] u = new double[NUM_VARS];
+			for ( int i=0; i<NUM_VARS; i++ )
+				u[i] = (hi[i] > lo[i]) ? clamp( (start[i]-lo[i])/(hi[i]-lo[i]) ) : 0;
+			double[] g = new double[NUM_VARS];
+			ParallelTempering.State s = new ParallelTempering.State();
+			double f = evaluate( u, s, g );
+			best = s;
+
+			double[] d = new double[NUM_VARS], un = new double[NUM_VARS], gn = new double[NUM_VARS], alpha = new double[m];
+			boolean[] free = new boolean[NUM_VARS];
+			while ( numIterations < maxIterations ) {
+				// variables held at a bound, and the projected gradient
+				double pg = 0;
+				for ( int i=0; i<NUM_VARS; i++ ) {
+					free[i] = hi[i] > lo[i] && !(u[i] <= 0 && g[i] > 0) && !(u[i] >= 1 && g[i] < 0);
+					if ( free[i] )
+						pg = Math.max( pg, Math.abs(g[i]) );
+				}
+				if ( pg < tolerance )
+					break;
+				numIterations++;
+
+				// two-loop recursion on the free variables
+				for ( int i=0; i<NUM_VARS; i++ )
+					d[i] = free[i] ? -g[i] : 0;
+				for ( int j=0, k=newest; j<numPairs; j++, k=(k-1+m)%m ) {
+					alpha[k] = rho[k]*dot( S[k], d, free );
+					for ( int i=0; i<NUM_VARS; i++ )
+						if ( free[i] )
+							d[i] -= alpha[k]*Y[k][i];
+				}
+				if ( numPairs > 0 ) {
+					double gamma = dot( S[newest], Y[newest], free ) / dot( Y[newest], Y[newest], free );
+					if ( gamma > 0 && !Double.isInfinite(gamma) )
+						for ( int i=0; i<NUM_VARS; i++ )
+							d[i] *= gamma;
+				}
+				for ( int j=0, k=(newest-numPairs+1+m)%m; j<numPairs; j++, k=(k+1)%m ) {
+					double beta = rho[k]*dot( Y[k], d, free );
+					for ( int i=0; i<NUM_VARS; i++ )
+						if ( free[i] )
+							d[i] += (alpha[k]-beta)*S[k][i];
+				}
+				// fall back to steepest descent when the approximation does not point downhill
+				double slope = dot( g, d, free );
+				if ( !(slope < 0) ) {
+					for ( int i=0; i<NUM_VARS; i++ )
+						d[i] = free[i] ? -g[i] : 0;
+					numPairs = 0;
+				}
+
+				// projected backtracking line search, the first step at most a tenth of the box
+				double t = 1;
+				if ( numPairs == 0 ) {
+					double dMax = 0;
+					for ( int i=0; i<NUM_VARS; i++ )
+						dMax = Math.max( dMax, Math.abs(d[i]) );
+					t = Math.min( 1, 0.1/dMax );
+				}
+				ParallelTempering.State sn = new ParallelTempering.State();
+				double fn = 0;
+				boolean bAccepted = false;
+				for ( int tries=0; tries<30 && !bAccepted; tries++, t*=0.5 ) {
+					double decrease = 0;
+					for ( int i=0; i<NUM_VARS; i++ ) {
+						un[i] = clamp( u[i] + t*d[i] );
+						decrease += g[i]*(un[i]-u[i]);
+					}
+					fn = evaluate( un, sn, gn );
+					bAccepted = fn <= f + 1e-4*decrease;
+				}
+				if ( !bAccepted )
+					break;
+
+				// keep the step if it has positive curvature
+				double sy = 0, yy = 0;
+				for ( int i=0; i<NUM_VARS; i++ ) {
+					sy += (un[i]-u[i])*(gn[i]-g[i]);
+					yy += (gn[i]-g[i])*(gn[i]-g[i]);
+				}
+				if ( sy > 1e-12*yy ) {
+					int k = (newest+1)%m;
+					for ( int i=0; i<NUM_VARS; i++ ) {
+						S[k][i] = un[i]-u[i];
+						Y[k][i] = gn[i]-g[i];
+					}
+					rho[k] = 1/sy;
+					newest = k;
+					numPairs = Math.min( numPairs+1, m );
+				}
+
+				boolean bConverged = Math.abs(f-fn) <= tolerance*Math.max( 1, Math.abs(f) );
+				System.arraycopy( un, 0, u, 0, NUM_VARS );
+				System.arraycopy( gn, 0, g, 0, NUM_VARS );
+				f = fn;
+				best = sn;
+				if ( bConverged )
+					break;
+			}
+		}
+
+		/*
+		 * Energy at u, with the protocol in s and the gradient with respect to u in g
+		 */
+		private double evaluate( double[] u, ParallelTempering.State s, double[] g ) {
+			int NP = params.getNP();
+			double TR = params.getTR();
+			double[] x = new double[NUM_VARS];
+			for ( int i=0; i<NUM_VARS; i++ )
+				x[i] = lo[i] + u[i]*(hi[i]-lo[i]);
+			sim.setSeqParams( x[0], params.getSpoil(), TR, x[1], x[2], NP );
+			sim.runDerivatives();
+			numEvaluations++;
+			double[] meanSignal = sim.get1DTissueMean();
+			double[][] dMean = sim.get1DTissueMeanDerivatives();
+			double meanA = meanSignal[0]/NP; // note ifft is unnormalized, fix it here
+			double meanB = meanSignal[1]/NP; // note ifft is unnormalized, fix it here
+
+			s.fa = x[0];
+			s.td1 = x[1];
+			s.td2 = x[2];
+			s.signal = (meanA < meanB) ? meanA : meanB;
+			s.contrast = meanB/meanA;
+			s.time = NP*TR + x[1] + x[2];
+			s.energy = params.getEnergy( s.signal, s.contrast, s.time );
+
+			// chain rule through the energy, the min signal, the contrast B/A and the time
+			double sMin = params.getSMin(), cMin = params.getCMin(), timeMin = params.getTimeMin();
+			double dEds = 2*params.getSFactor()*(s.signal-sMin)/(sMin*sMin);
+			double dEdc = 2*params.getCFactor()*(s.contrast-cMin)/(cMin*cMin);
+			double dEdt = 2*(s.time-timeMin)/(timeMin*timeMin);
+			int[] param = { EPG_MPRAGE.D_FA, EPG_MPRAGE.D_TD1, EPG_MPRAGE.D_TD2 };
+			for ( int i=0; i<NUM_VARS; i++ ) {
+				double dA = dMean[0][param[i]]/NP;
+				double dB = dMean[1][param[i]]/NP;
+				double ds = (meanA < meanB) ? dA : dB;
+				double dc = (dB*meanA - meanB*dA)/(meanA*meanA);
+				double dt = (i == 0) ? 0 : 1;
+				g[i] = (dEds*ds + dEdc*dc + dEdt*dt) * (hi[i]-lo[i]);
+			}
+			return s.energy;
+		}
+	}
+
+	private static double clamp( double u ) {
+		return Math.max( 0, Math.min( 1, u ) );
+	}
+
+	private static double dot( double[] a, double[] b, boolean[] free ) {
+		double sum = 0;
+		for ( int i=0; i<a.length; i++ )
+			if ( free[i] )
+				sum += a[i]*b[i];
+		return sum;
+	}
+}
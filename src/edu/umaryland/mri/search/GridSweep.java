@@ -0,0 +1,795 @@
+package edu.umaryland.mri.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.umaryland.mri.data.EchoTrainOperator;
+import edu.umaryland.mri.data.SimImage1DRunner;
+
+/*
+ * Full search over the grid of a SimParams on a work-stealing ForkJoinPool. The grid is split into
+ * chunks of consecutive protocols, each worker thread has its own simulator, and the best protocols
+ * of the chunks are merged as the tasks join, so there is no barrier between batches and no single
+ * thread that handles every result. The protocols are never stored, each task only knows its range
+ * of grid indices.
+ *
+ * Protocols are numbered as in SimParams.getGrid(), with TD2 varying fastest.
+ *
+ * With setCoarseToFine() only part of the grid is simulated. For each NP, TR and spoiling the FA,
+ * TD1 and TD2 axes are first sampled every few steps, and a cell of that lattice is only split in
+ * halves (on each axis) when the signal or contrast at its corners crosses or comes close to its
+ * minimum, or when it has a usable corner and could hold a protocol no slower than the best one so
+ * far. Since the time only grows with TD1 and TD2, the fastest protocol of a cell that meets both
+ * minimums everywhere is one of its corners. The rest of the grid is skipped, which is a guess: a
+ * region of usable protocols smaller than a cell that does not reach any corner is missed.
+ *
+ * With setTimeOrdered() the protocols are visited by total time TD1+NP*TR+TD2 instead, all of one
+ * time at once, and the sweep stops after the first time with a protocol that meets both minimums.
+ * That one is the fastest, as in a full sweep, but the closest contrast and signal are only those
+ * of the protocols visited.
+ */
+public class GridSweep {
+
+	/*
+	 * Receives results while the sweep runs. Both methods are called from the worker threads.
+	 */
+	public interface Listener {
+		/*
+		 * Called for every protocol, in no particular order, with its values at the SimParams.AXIS_
+		 * positions of point and the mean signals of tissue A and B
+		 */
+		void result( long index, double[] point, double signalA, double signalB, double contrast, double time );
+
+		/*
+		 * Called when a chunk is done with the best protocols of that chunk, which must not be kept
+		 * as the sweep merges other chunks into it
+		 */
+		void chunkDone( long numDone, BestParamSearch chunkBest );
+	}
+
+	private final SimParams params;
+	private final ParamGrid grid;
+	private final boolean bReuseEchoTrain;
+	private int chunkSize;
+	private long windowSize = Long.MAX_VALUE;
+	private Listener listener;
+	private boolean bParetoFront = false;
+	private ParetoFront front;
+	private EvalCache cache;
+	private boolean bCoarseToFine = false;
+	private int coarseIntervals = 4;
+	private double boundaryMargin = 0.05;
+	private boolean bTimeOrdered = false;
+	private SweepCheckpoint checkpoint;
+	// chunks of each worker in a window when there is a checkpoint
+	private static final int CHECKPOINT_CHUNKS = 64;
+	// most pulse train operators kept while refining or in time order
+	private static final int MAX_OPERATORS = 64;
+	// least TD1/TD2 protocols for each pulse train to build an operator for them, one costs about
+	// as much as 40 iterated calculations
+	private static final long MIN_REUSE_PROTOCOLS = 64;
+
+	private final AtomicLong numDone = new AtomicLong();
+	private final AtomicLong numLoops = new AtomicLong();
+
+	// simulators owned by each worker thread, and those kept from earlier sweeps if there are any
+	private final ThreadLocal<SimImage1DRunner> localSimulator = new ThreadLocal<SimImage1DRunner>();
+	private ThreadLocal<SimImage1DRunner> simulators;
+	// Pareto fronts of each worker thread, merged at the end of the sweep
+	private ThreadLocal<ParetoFront> localFront;
+	private final ConcurrentLinkedQueue<ParetoFront> localFronts = new ConcurrentLinkedQueue<ParetoFront>();
+
+	public GridSweep( SimParams params ) {
+		this.params = params;
+		grid = params.getGrid();
+		chunkSize = 64;
+		bReuseEchoTrain = grid.getAxis( SimParams.AXIS_TD1 ).getCount()*grid.getAxis( SimParams.AXIS_TD2 ).getCount() >= MIN_REUSE_PROTOCOLS;
+	}
+
+	/**
+	 * Runs the sweep on pool and returns the best protocols
+	 * @param pool
+	 * @return
+	 */
+	public BestParamSearch run( ForkJoinPool pool ) {
+		return run( pool, 0, getNumProtocols() );
+	}
+
+	/**
+	 * Runs the sweep over the protocols first..last-1 of the grid and returns their best protocols.
+	 * Time order and coarse to fine always run the whole grid.
+	 * @param pool
+	 * @param first
+	 * @param last
+	 * @return
+	 */
+	public BestParamSearch run( ForkJoinPool pool, long first, long last ) {
+		numDone.set( 0 );
+		numLoops.set( 0 );
+		front = null;
+		localFront = new ThreadLocal<ParetoFront>();
+		localFronts.clear();
+		BestParamSearch best = null;
+		long lo = first;
+		if ( bTimeOrdered ) {
+			best = runTimeOrdered( pool );
+		} else if ( bCoarseToFine ) {
+			best = runCoarseToFine( pool );
+		} else {
+			long window = windowSize;
+			if ( checkpoint != null ) {
+				// between windows every protocol before the next one is done, which is all a checkpoint needs
+				window = Math.min( window, (long)CHECKPOINT_CHUNKS*chunkSize*pool.getParallelism() );
+				if ( checkpoint.getNext() > lo && checkpoint.getBest() != null ) {
+					lo = Math.min( checkpoint.getNext(), last );
+					best = checkpoint.getBest();
+					numDone.set( lo-first );
+					if ( bParetoFront && checkpoint.getFront() != null )
+						localFronts.add( checkpoint.getFront() );
+				}
+			}
+			while ( lo < last ) {
+				long hi = (last-lo <= window) ? last : lo+window;
+				BestParamSearch windowBest = pool.invoke( new SweepTask( lo, hi ) );
+				if ( best == null )
+					best = windowBest;
+				else
+					best.merge( windowBest );
+				lo = hi;
+				if ( checkpoint != null && lo < last && checkpoint.isDue() ) {
+					try {
+						checkpoint.save( lo, best, bParetoFront ? mergeFronts() : null );
+					} catch (IOException e) {
+						// the sweep goes on, the next checkpoint may work
+						e.printStackTrace();
+					}
+				}
+			}
+			if ( best == null )
+				best = params.newBest();
+		}
+
+		if ( bParetoFront ) {
+			front = mergeFronts();
+			localFronts.clear();
+		}
+		return best;
+	}
+
+	/*
+	 * The Pareto fronts of the workers as one, while no tasks run
+	 */
+	private ParetoFront mergeFronts() {
+		ParetoFront f = new ParetoFront();
+		for ( ParetoFront t : localFronts )
+			f.merge( t );
+		return f;
+	}
+
+	/**
+	 * Sets the listener that receives every result [default is none]
+	 * @param listener
+	 */
+	public void setListener( Listener listener ) { this.listener = listener; }
+
+	/**
+	 * Sets the number of protocols below which a range is not split further [default is 64]
+	 * @param chunkSize
+	 */
+	public void setChunkSize( int chunkSize ) { this.chunkSize = Math.max( 1, chunkSize ); }
+	public int getChunkSize() { return chunkSize; }
+
+	/**
+	 * Sets the number of consecutive protocols that are run at the same time [default is all of
+	 * them]. Workers that split the grid in halves are far apart in it, so a listener that needs
+	 * the results roughly in order (e.g. an OrderedWriter) should limit them to a window smaller
+	 * than what it can hold.
+	 * @param windowSize
+	 */
+	public void setWindowSize( long windowSize ) { this.windowSize = Math.max( 1, windowSize ); }
+	public long getWindowSize() { return windowSize; }
+
+	/**
+	 * Sets whether to keep the Pareto front of (min signal, contrast, time) [default is false]
+	 * @param bParetoFront
+	 */
+	public void setParetoFront( boolean bParetoFront ) { this.bParetoFront = bParetoFront; }
+	public boolean isParetoFront() { return bParetoFront; }
+
+	/*
+	 * The Pareto front of the last run, or null if it was not kept
+	 */
+	public ParetoFront getParetoFront() { return front; }
+
+	/**
+	 * Sets a cache of protocols that were already simulated, which is looked up before simulating
+	 * and filled with the new ones [default is none]
+	 * @param cache
+	 */
+	public void setCache( EvalCache cache ) { this.cache = cache; }
+	public EvalCache getCache() { return cache; }
+
+	/**
+	 * Sets whether to refine a coarse lattice of the grid near the signal and contrast minimums
+	 * instead of simulating every protocol [default is false]. The listener then gets the results
+	 * of the protocols that were simulated, in grid order, after each NP, TR and spoiling is done.
+	 * @param bCoarseToFine
+	 */
+	public void setCoarseToFine( boolean bCoarseToFine ) { this.bCoarseToFine = bCoarseToFine; }
+	public boolean isCoarseToFine() { return bCoarseToFine; }
+
+	/**
+	 * Sets the number of intervals that the FA, TD1 and TD2 axes are at least split into by the
+	 * coarse lattice [default is 4]. The steps are powers of two of the grid increments.
+	 * @param coarseIntervals
+	 */
+	public void setCoarseIntervals( int coarseIntervals ) { this.coarseIntervals = Math.max( 1, coarseIntervals ); }
+	public int getCoarseIntervals() { return coarseIntervals; }
+
+	/**
+	 * Sets how close, relative to the minimum, the signal or contrast at the corners of a cell must
+	 * come to refine it when they do not cross the minimum [default is 0.05]. Boundaries that curve
+	 * between the corners are found with a larger margin at the cost of more simulations.
+	 * @param boundaryMargin
+	 */
+	public void setBoundaryMargin( double boundaryMargin ) { this.boundaryMargin = Math.max( 0, boundaryMargin ); }
+	public double getBoundaryMargin() { return boundaryMargin; }
+
+	/**
+	 * Sets whether to visit the protocols from the shortest total time on and stop at the first time
+	 * that has one meeting both minimums [default is false]. This comes before coarse to fine. The
+	 * listener gets the results of the protocols that were simulated, in no particular order.
+	 * @param bTimeOrdered
+	 */
+	public void setTimeOrdered( boolean bTimeOrdered ) { this.bTimeOrdered = bTimeOrdered; }
+	public boolean isTimeOrdered() { return bTimeOrdered; }
+
+	/**
+	 * Sets a checkpoint that the full sweep resumes from, when it has one, and saves its progress to
+	 * between windows [default is none]. The windows are then kept small enough to lose little work.
+	 * Not used with time order or coarse to fine, which are over soon enough.
+	 * @param checkpoint
+	 */
+	public void setCheckpoint( SweepCheckpoint checkpoint ) { this.checkpoint = checkpoint; }
+	public SweepCheckpoint getCheckpoint() { return checkpoint; }
+
+	/**
+	 * Sets the simulators of the pool threads to take over from, and leave to, other sweeps, so a
+	 * long-lived pool keeps its FFTs and pulse trains [default is new ones for each sweep]. Sweeps
+	 * that share simulators must not run at the same time.
+	 * @param simulators
+	 */
+	public void setSimulators( ThreadLocal<SimImage1DRunner> simulators ) { this.simulators = simulators; }
+	public ThreadLocal<SimImage1DRunner> getSimulators() { return simulators; }
+
+	public ParamGrid getGrid() { return grid; }
+	public long getNumProtocols() { return grid.getNumPoints(); }
+	public long getNumDone() { return numDone.get(); }
+
+	/*
+	 * Protocols of the grid that the last run did not simulate (with coarse to fine or time order)
+	 */
+	public long getNumSkipped() { return getNumProtocols() - numDone.get(); }
+
+	/*
+	 * MPRAGE cycles used by all simulations so far, 0 when the steady state comes from the pulse train
+	 * operator
+	 */
+	public long getNumLoops() { return numLoops.get(); }
+
+	/*
+	 * Returns the simulator of the calling thread
+	 */
+	private SimImage1DRunner getSimulator() {
+		SimImage1DRunner sim = localSimulator.get();
+		if ( sim == null ) {
+			sim = (simulators != null) ? simulators.get() : null;
+			if ( sim == null ) {
+				sim = new SimImage1DRunner();
+				if ( simulators != null )
+					simulators.set( sim );
+			}
+			sim.setTissueAParams( params.getPDa(), params.getT1a(), params.getT2a() );
+			sim.setTissueBParams( params.getPDb(), params.getT1b(), params.getT2b() );
+			sim.setIdealSpoiling( params.getIdealSpoil() );
+			sim.setClosedFormSpoiling( true );
+			// only TD1 and TD2 change within a flip angle, so the pulse train is shared if there are
+			// enough of them
+			sim.setReuseEchoTrain( bReuseEchoTrain );
+			// otherwise the cycles start from the steady state of the protocol before, the last TD2
+			// step of the same flip angle within a chunk
+			sim.setWarmStart( !bReuseEchoTrain );
+			localSimulator.set( sim );
+		}
+		return sim;
+	}
+
+	/*
+	 * Puts the mean signals of tissue A and B of the protocol at point in meanSignal, from the cache
+	 * if it is there, and returns the number of MPRAGE cycles simulated
+	 */
+	private long evaluate( SimImage1DRunner sim, double[] point, long context, double[] meanSignal ) {
+		int NP = (int)point[SimParams.AXIS_NP];
+		double TR = point[SimParams.AXIS_TR];
+		double spoilInc = point[SimParams.AXIS_SPOIL];
+		double currFA = point[SimParams.AXIS_FA];
+		double currTD1 = point[SimParams.AXIS_TD1];
+		double currTD2 = point[SimParams.AXIS_TD2];
+
+		long key = 0;
+		if ( cache != null ) {
+			key = EvalCache.getKey( currFA, currTD1, currTD2 );
+			if ( cache.get( key, context, meanSignal ) )
+				return 0;
+		}
+		sim.setSeqParams( currFA, spoilInc, TR, currTD1, currTD2, NP );
+		sim.run();
+
+		double[] tissueMean = sim.get1DTissueMean();
+		meanSignal[0] = tissueMean[0]/NP; // note ifft is unnormalized, fix it here
+		meanSignal[1] = tissueMean[1]/NP; // note ifft is unnormalized, fix it here
+		if ( cache != null )
+			cache.put( key, context, meanSignal[0], meanSignal[1] );
+		return sim.getNumLoops();
+	}
+
+	/*
+	 * Keeps the pulse train operators of both tissues for every flip angle (up to MAX_OPERATORS) for
+	 * sweeps that keep coming back to all of them. The limit is shared by every sweep in the JVM, so
+	 * it is only ever raised: lowering it again could thrash another sweep that is still running.
+	 */
+	private void keepOperators() {
+		EchoTrainOperator.raiseMaxCached( Math.min( MAX_OPERATORS, 2*(int)grid.getAxis( SimParams.AXIS_FA ).getCount() ) );
+	}
+
+	/*
+	 * Refines each NP, TR and spoiling in turn, in grid order
+	 */
+	private BestParamSearch runCoarseToFine( ForkJoinPool pool ) {
+		long numFine = grid.getAxis( SimParams.AXIS_FA ).getCount() * grid.getAxis( SimParams.AXIS_TD1 ).getCount() * grid.getAxis( SimParams.AXIS_TD2 ).getCount();
+		if ( numFine > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Too many FA, TD1 and TD2 values to refine: " + numFine );
+		// every level comes back to all flip angles
+		keepOperators();
+		BestParamSearch best = params.newBest();
+		for ( long base=0; base<getNumProtocols(); base+=numFine )
+			best.merge( new Refinement( base ).run( pool ) );
+		return best;
+	}
+
+	/*
+	 * Simulates the protocols of one total time after the other, from the shortest, until one meets
+	 * both minimums. A cursor for each NP, TR, spoiling and TD1 walks up its TD2 values and the queue
+	 * gives the cursors with the shortest time.
+	 */
+	private BestParamSearch runTimeOrdered( ForkJoinPool pool ) {
+		int nFA = (int)grid.getAxis( SimParams.AXIS_FA ).getCount();
+		int nTD1 = (int)grid.getAxis( SimParams.AXIS_TD1 ).getCount();
+		int nTD2 = (int)grid.getAxis( SimParams.AXIS_TD2 ).getCount();
+		long numFine = (long)nFA*nTD1*nTD2;
+		PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>( 11, new Comparator<Cursor>() {
+			@Override
+			public int compare( Cursor a, Cursor b ) {
+				return Double.compare( a.time, b.time );
+			}
+		});
+		for ( long base=0; base<getNumProtocols(); base+=numFine )
+			for ( int td1=0; td1<nTD1; td1++ )
+				queue.add( new Cursor( base, td1 ) );
+
+		// every time has all flip angles
+		keepOperators();
+		return runTimeOrdered( pool, queue, nFA, nTD1, nTD2 );
+	}
+
+	private BestParamSearch runTimeOrdered( ForkJoinPool pool, PriorityQueue<Cursor> queue, int nFA, int nTD1, int nTD2 ) {
+		BestParamSearch best = params.newBest();
+		while ( !queue.isEmpty() ) {
+			double time = queue.peek().time;
+			LongList points = new LongList();
+			while ( !queue.isEmpty() && queue.peek().time == time ) {
+				Cursor c = queue.poll();
+				for ( int fa=0; fa<nFA; fa++ )
+					points.add( c.base + ((long)fa*nTD1 + c.td1)*nTD2 + c.td2 );
+				if ( c.next() )
+					queue.add( c );
+			}
+			long[] p = points.toArray();
+			// grid order within the time, for the simulators and for ties
+			Arrays.sort( p );
+			BestParamSearch timeBest = pool.invoke( new PointsTask( p, new double[p.length], new double[p.length], true, pool ) );
+			best.merge( timeBest );
+			if ( timeBest.isBestFound() )
+				break;
+		}
+		return best;
+	}
+
+	/*
+	 * The TD2 values of one NP, TR, spoiling and TD1, with the total time of the current one computed
+	 * as in BestParamSearch.tryBest()
+	 */
+	private class Cursor {
+		final long base;
+		final int td1;
+		int td2 = -1;
+		double time;
+		private final double partTime;
+
+		Cursor( long base, int td1 ) {
+			this.base = base;
+			this.td1 = td1;
+			double[] point = grid.getPoint( base, null );
+			partTime = grid.getAxis( SimParams.AXIS_TD1 ).getValue( td1 ) + ((int)point[SimParams.AXIS_NP])*point[SimParams.AXIS_TR];
+			next();
+		}
+
+		/*
+		 * Moves to the next TD2, returns false past the last one
+		 */
+		boolean next() {
+			ParamGrid.Axis axis = grid.getAxis( SimParams.AXIS_TD2 );
+			if ( ++td2 >= axis.getCount() )
+				return false;
+			time = partTime + axis.getValue( td2 );
+			return true;
+		}
+	}
+
+	/*
+	 * The FA, TD1 and TD2 values of one NP, TR and spoiling, from the protocol at base on. Points are
+	 * numbered from 0 in grid order and cells are given by their first and last point on each axis
+	 * as { fa0, fa1, td1_0, td1_1, td2_0, td2_1 }.
+	 */
+	private class Refinement {
+		private final long base;
+		private final int nFA, nTD1, nTD2;
+		private final double time0, td1Inc, td2Inc;
+		private final double sMin = params.getSMin(), cMin = params.getCMin();
+		private final double[] signalA, signalB;
+		private final BitSet done = new BitSet();
+		private double bestTime = Double.MAX_VALUE;
+		// points closest to the minimum contrast and signal so far
+		private int closestC = -1, closestS = -1;
+		private double errC = Double.MAX_VALUE, errS = Double.MAX_VALUE;
+
+		Refinement( long base ) {
+			this.base = base;
+			nFA = (int)grid.getAxis( SimParams.AXIS_FA ).getCount();
+			nTD1 = (int)grid.getAxis( SimParams.AXIS_TD1 ).getCount();
+			nTD2 = (int)grid.getAxis( SimParams.AXIS_TD2 ).getCount();
+			signalA = new double[nFA*nTD1*nTD2];
+			signalB = new double[signalA.length];
+			double[] point = grid.getPoint( base, null );
+			time0 = point[SimParams.AXIS_TD1] + point[SimParams.AXIS_TR]*point[SimParams.AXIS_NP] + point[SimParams.AXIS_TD2];
+			td1Inc = grid.getAxis( SimParams.AXIS_TD1 ).getInc();
+			td2Inc = grid.getAxis( SimParams.AXIS_TD2 ).getInc();
+		}
+
+		BestParamSearch run( ForkJoinPool pool ) {
+			int[] fa = getLattice( nFA ), td1 = getLattice( nTD1 ), td2 = getLattice( nTD2 );
+			ArrayList<int[]> cells = new ArrayList<int[]>();
+			for ( int i=0; i<Math.max( 1, fa.length-1 ); i++ )
+				for ( int j=0; j<Math.max( 1, td1.length-1 ); j++ )
+					for ( int k=0; k<Math.max( 1, td2.length-1 ); k++ )
+						cells.add( new int[] { fa[i], fa[Math.min( i+1, fa.length-1 )], td1[j], td1[Math.min( j+1, td1.length-1 )], td2[k], td2[Math.min( k+1, td2.length-1 )] } );
+			LongList points = new LongList();
+			for ( int[] cell : cells )
+				addCorners( cell, points );
+			evaluate( pool, points );
+
+			while ( !cells.isEmpty() ) {
+				ArrayList<int[]> finer = new ArrayList<int[]>();
+				points = new LongList();
+				for ( int[] cell : cells ) {
+					if ( (cell[1]-cell[0] <= 1 && cell[3]-cell[2] <= 1 && cell[5]-cell[4] <= 1) || !isRefined( cell ) )
+						continue;
+					// halves on each axis that still has points inside the cell
+					int[] a = split( cell[0], cell[1] ), b = split( cell[2], cell[3] ), c = split( cell[4], cell[5] );
+					for ( int i=0; i<a.length-1; i++ )
+						for ( int j=0; j<b.length-1; j++ )
+							for ( int k=0; k<c.length-1; k++ ) {
+								int[] sub = { a[i], a[i+1], b[j], b[j+1], c[k], c[k+1] };
+								addCorners( sub, points );
+								finer.add( sub );
+							}
+				}
+				evaluate( pool, points );
+				cells = finer;
+			}
+			return replay();
+		}
+
+		/*
+		 * Points of an axis with n values on the coarse lattice, always with the first and last
+		 */
+		private int[] getLattice( int n ) {
+			int step = Integer.highestOneBit( Math.max( 1, (n-1)/coarseIntervals ) );
+			int[] lattice = new int[(n-1)/step + ((n-1)%step != 0 ? 2 : 1)];
+			for ( int i=0; i<lattice.length; i++ )
+				lattice[i] = Math.min( i*step, n-1 );
+			return lattice;
+		}
+
+		private int[] split( int lo, int hi ) {
+			return (hi-lo > 1) ? new int[] { lo, (lo+hi) >>> 1, hi } : new int[] { lo, hi };
+		}
+
+		private int getIndex( int fa, int td1, int td2 ) {
+			return (fa*nTD1 + td1)*nTD2 + td2;
+		}
+
+		/*
+		 * Adds the corners of cell that were not simulated or added yet
+		 */
+		private void addCorners( int[] cell, LongList points ) {
+			for ( int i=0; i<2; i++ )
+				for ( int j=2; j<4; j++ )
+					for ( int k=4; k<6; k++ ) {
+						int index = getIndex( cell[i], cell[j], cell[k] );
+						if ( !done.get( index ) ) {
+							done.set( index );
+							points.add( index );
+						}
+					}
+		}
+
+		/*
+		 * True if the signal or contrast at the corners crosses or comes close to its minimum, if a
+		 * corner meets both and the cell could hold a protocol as fast as the best one so far, or if
+		 * a corner is the closest to the minimum contrast or signal so far
+		 */
+		private boolean isRefined( int[] cell ) {
+			double sLo = Double.MAX_VALUE, sHi = -Double.MAX_VALUE, cLo = Double.MAX_VALUE, cHi = -Double.MAX_VALUE;
+			boolean bUsable = false;
+			for ( int i=0; i<2; i++ )
+				for ( int j=2; j<4; j++ )
+					for ( int k=4; k<6; k++ ) {
+						int index = getIndex( cell[i], cell[j], cell[k] );
+						if ( index == closestC || index == closestS )
+							return true;
+						double s = Math.min( signalA[index], signalB[index] );
+						double c = signalB[index] / signalA[index];
+						sLo = Math.min( sLo, s );
+						sHi = Math.max( sHi, s );
+						cLo = Math.min( cLo, c );
+						cHi = Math.max( cHi, c );
+						bUsable |= s >= sMin && c >= cMin;
+					}
+			if ( sLo < sMin*(1+boundaryMargin) && sHi >= sMin*(1-boundaryMargin) )
+				return true;
+			if ( cLo < cMin*(1+boundaryMargin) && cHi >= cMin*(1-boundaryMargin) )
+				return true;
+			return bUsable && getTime( cell[2], cell[4] ) <= bestTime;
+		}
+
+		private double getTime( int td1, int td2 ) {
+			return time0 + td1*td1Inc + td2*td2Inc;
+		}
+
+		/*
+		 * Simulates points in parallel and updates the best time and the closest points
+		 */
+		private void evaluate( ForkJoinPool pool, LongList points ) {
+			if ( points.size() == 0 )
+				return;
+			long[] p = points.toArray();
+			// in grid order the echo train and warm start of the simulators are reused the most
+			Arrays.sort( p );
+			long[] indices = new long[p.length];
+			for ( int i=0; i<p.length; i++ )
+				indices[i] = base + p[i];
+			double[] a = new double[p.length], b = new double[p.length];
+			pool.invoke( new PointsTask( indices, a, b, false, pool ) );
+			for ( int i=0; i<p.length; i++ ) {
+				int index = (int)p[i];
+				signalA[index] = a[i];
+				signalB[index] = b[i];
+				double s = Math.min( signalA[index], signalB[index] );
+				double c = signalB[index] / signalA[index];
+				if ( s >= sMin && c >= cMin )
+					bestTime = Math.min( bestTime, getTime( (index/nTD2) % nTD1, index % nTD2 ) );
+				if ( (c-cMin)*(c-cMin) < errC ) {
+					errC = (c-cMin)*(c-cMin);
+					closestC = index;
+				}
+				if ( (s-sMin)*(s-sMin) < errS ) {
+					errS = (s-sMin)*(s-sMin);
+					closestS = index;
+				}
+			}
+		}
+
+		/*
+		 * Passes the simulated protocols to the best protocols, the Pareto front and the listener in
+		 * grid order, so ties are broken as in a full sweep
+		 */
+		private BestParamSearch replay() {
+			BestParamSearch best = params.newBest();
+			ParetoFront f = bParetoFront ? getFront() : null;
+			for ( int index=done.nextSetBit( 0 ); index>=0; index=done.nextSetBit( index+1 ) )
+				addResult( best, f, true, base+index, grid.getPoint( base+index, null ), signalA[index], signalB[index] );
+			return best;
+		}
+	}
+
+	/*
+	 * Simulates the protocols indices[lo..hi-1] and puts their mean signals at the same positions of
+	 * signalA and signalB. With bReport they are also passed to the Pareto front and the listener.
+	 */
+	private class PointsTask extends RecursiveTask<BestParamSearch> {
+		private static final long serialVersionUID = 1L;
+		private final long[] indices;
+		private final double[] signalA, signalB;
+		private final boolean bReport;
+		private final int lo, hi;
+		private final int leafSize;
+
+		/*
+		 * The leaves are small enough to give every worker of pool a part of the points, so the small
+		 * batches of time order and refinement run in parallel too
+		 */
+		PointsTask( long[] indices, double[] signalA, double[] signalB, boolean bReport, ForkJoinPool pool ) {
+			this( indices, signalA, signalB, bReport, 0, indices.length,
+					Math.max( 1, Math.min( chunkSize, (indices.length + pool.getParallelism()-1) / pool.getParallelism() ) ) );
+		}
+
+		PointsTask( long[] indices, double[] signalA, double[] signalB, boolean bReport, int lo, int hi, int leafSize ) {
+			this.indices = indices;
+			this.signalA = signalA;
+			this.signalB = signalB;
+			this.bReport = bReport;
+			this.lo = lo;
+			this.hi = hi;
+			this.leafSize = leafSize;
+		}
+
+		@Override
+		protected BestParamSearch compute() {
+			if ( hi-lo > leafSize ) {
+				int mid = (lo+hi) >>> 1;
+				PointsTask left = new PointsTask( indices, signalA, signalB, bReport, lo, mid, leafSize );
+				PointsTask right = new PointsTask( indices, signalA, signalB, bReport, mid, hi, leafSize );
+				left.fork();
+				BestParamSearch best = right.compute();
+				BestParamSearch leftBest = left.join();
+				leftBest.merge( best );
+				return leftBest;
+			}
+
+			return runLeaf( indices, lo, hi, signalA, signalB, bReport );
+		}
+	}
+
+	/*
+	 * Growable list of longs
+	 */
+	private static class LongList {
+		private long[] values = new long[64];
+		private int size;
+
+		void add( long v ) {
+			if ( size == values.length )
+				values = Arrays.copyOf( values, 2*size );
+			values[size++] = v;
+		}
+
+		int size() { return size; }
+		long[] toArray() { return Arrays.copyOf( values, size ); }
+	}
+
+	/*
+	 * Returns the Pareto front of the calling thread
+	 */
+	private ParetoFront getFront() {
+		ParetoFront f = localFront.get();
+		if ( f == null ) {
+			f = new ParetoFront();
+			localFront.set( f );
+			localFronts.add( f );
+		}
+		return f;
+	}
+
+	/*
+	 * Evaluates the protocols lo..hi-1, splitting the range while it is larger than a chunk
+	 */
+	private class SweepTask extends RecursiveTask<BestParamSearch> {
+		private static final long serialVersionUID = 1L;
+		private final long lo, hi;
+
+		SweepTask( long lo, long hi ) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected BestParamSearch compute() {
+			if ( hi-lo > chunkSize ) {
+				long mid = (lo+hi) >>> 1;
+				SweepTask left = new SweepTask( lo, mid );
+				SweepTask right = new SweepTask( mid, hi );
+				left.fork();
+				BestParamSearch best = right.compute();
+				BestParamSearch leftBest = left.join();
+				// left comes first in the grid
+				leftBest.merge( best );
+				return leftBest;
+			}
+
+			return runLeaf( null, lo, hi, null, null, true );
+		}
+	}
+
+	/*
+	 * Simulates the protocols lo..hi-1, those at these positions of indices or of the grid itself
+	 * if indices is null, and puts their mean signals at the same positions of signalA and signalB
+	 * if they are given. Returns their best protocols, see addResult() for bReport.
+	 */
+	private BestParamSearch runLeaf( long[] indices, long lo, long hi, double[] signalA, double[] signalB, boolean bReport ) {
+		BestParamSearch best = params.newBest();
+		SimImage1DRunner sim = getSimulator();
+		ParetoFront chunkFront = (bReport && bParetoFront) ? getFront() : null;
+		double[] meanSignal = new double[2];
+		long loops = 0;
+		// the context only changes with TR, NP or spoiling, which vary slowest
+		double contextTR = 0, contextSpoil = 0;
+		int contextNP = -1;
+		long context = 0;
+		for ( long i=lo; i<hi; i++ ) {
+			long index = (indices != null) ? indices[(int)i] : i;
+			double[] point = grid.getPoint( index, null );
+			int NP = (int)point[SimParams.AXIS_NP];
+			double TR = point[SimParams.AXIS_TR];
+			double spoilInc = point[SimParams.AXIS_SPOIL];
+			if ( cache != null && (NP != contextNP || TR != contextTR || spoilInc != contextSpoil) ) {
+				context = cache.getContext( params, TR, NP, spoilInc );
+				contextNP = NP;
+				contextTR = TR;
+				contextSpoil = spoilInc;
+			}
+			loops += evaluate( sim, point, context, meanSignal );
+			if ( signalA != null ) {
+				signalA[(int)i] = meanSignal[0];
+				signalB[(int)i] = meanSignal[1];
+			}
+			addResult( best, chunkFront, bReport, index, point, meanSignal[0], meanSignal[1] );
+		}
+		numLoops.addAndGet( loops );
+		long done = numDone.addAndGet( hi-lo );
+		if ( listener != null )
+			listener.chunkDone( done, best );
+		return best;
+	}
+
+	/*
+	 * Passes one simulated protocol to best and front (if not null), and with bReport to the listener
+	 */
+	private void addResult( BestParamSearch best, ParetoFront front, boolean bReport, long index, double[] point, double meanA, double meanB ) {
+		double currFA = point[SimParams.AXIS_FA];
+		double currTD1 = point[SimParams.AXIS_TD1];
+		double currTD2 = point[SimParams.AXIS_TD2];
+		double TR = point[SimParams.AXIS_TR];
+		int NP = (int)point[SimParams.AXIS_NP];
+		double currMinSignal = (meanA < meanB ) ? meanA : meanB;
+		double currContrast = meanB / meanA;
+		double currTime = currTD1+TR*NP+currTD2;
+
+		best.setSeqParams( TR, NP, point[SimParams.AXIS_SPOIL] );
+		best.tryContrast(currMinSignal, currContrast, currFA, currTD1, currTD2);
+		best.trySignal(currMinSignal, currContrast, currFA, currTD1, currTD2);
+		best.tryBest(currMinSignal, currContrast, currFA, currTD1, currTD2);
+		if ( front != null )
+			front.add( index, point, currMinSignal, currContrast, currTime );
+		if ( bReport && listener != null )
+			listener.result( index, point, meanA, meanB, currContrast, currTime );
+	}
+}
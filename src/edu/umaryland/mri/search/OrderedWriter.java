@@ -0,0 +1,236 @@
+package edu.umaryland.mri.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Formatter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Writes numbered rows of text from its own thread, in the order of their numbers whatever order they
+ * arrive in. Rows wait in a ring buffer indexed by their number until all earlier rows are there,
+ * and are then formatted and written in batches. A row that is too far ahead of the next one to
+ * write blocks the thread putting it until the writer catches up, so a slow disk slows the sweep
+ * down instead of filling memory; on a ForkJoinPool the block is managed so the pool can keep its
+ * other workers busy.
+ */
+public class OrderedWriter implements Closeable {
+
+	/*
+	 * Formats one row; called only from the writer thread
+	 */
+	public interface RowFormat {
+		void format( long index, double[] row, Formatter out );
+	}
+
+	public static final String CSV_HEADER = "count,fa,ti,td,min_signal,contrast,total_time,np,tr,spoil\n";
+
+	/*
+	 * The CSV rows the sweeps have always written, from fa, td1, td2, min signal, contrast and time,
+	 * followed by NP, TR and the spoiling increment since a sweep can range over them
+	 */
+	public static final RowFormat CSV_ROW = new RowFormat() {
+		@Override
+		public void format( long index, double[] row, Formatter out ) {
+			out.format("%-6d,%-3d,%-4d,%-4d,%-6.6f,%6.6f,%-8.3f,%-4d,%-4.4f,%-4.4f\n", index, (int) row[0], (int) row[1], (int) row[2], row[3], row[4], row[5], (int) row[6], row[7], row[8]);
+		}
+	};
+
+	private final Writer out;
+	private final RowFormat format;
+	private final double[][] slots;
+	private final int mask;
+	private final int batchSize;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final Condition notEmpty = lock.newCondition();
+	// next row to write, only changed by the writer thread with the lock held
+	private volatile long next;
+	private boolean closed;
+	private IOException error;
+
+	private final Thread thread;
+
+	/**
+	 * Starts a writer of the rows first, first+1, ... to out, holding at most capacity rows (rounded
+	 * up to a power of two)
+	 * @param out
+	 * @param format
+	 * @param first
+	 * @param capacity
+	 */
+	public OrderedWriter( Writer out, RowFormat format, long first, int capacity ) {
+		this.out = out;
+		this.format = format;
+		int size = Integer.highestOneBit( Math.max(2, capacity-1) ) << 1;
+		slots = new double[size][];
+		mask = size-1;
+		batchSize = Math.max( 1, Math.min(256, size/4) );
+		next = first;
+
+		thread = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				writeRows();
+			}
+		}, "OrderedWriter" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	public int getCapacity() { return slots.length; }
+
+	/*
+	 * Row number of the next row to be written
+	 */
+	public long getNext() { return next; }
+
+	/**
+	 * Queues row number index, waiting while it is capacity or more rows ahead of the next row to be
+	 * written. Each number must be put once; row must not be changed afterwards.
+	 * @param index
+	 * @param row
+	 */
+	public void put( final long index, double[] row ) {
+		if ( index >= next + slots.length ) {
+			boolean interrupted = false;
+			ForkJoinPool.ManagedBlocker blocker = new ForkJoinPool.ManagedBlocker() {
+				@Override
+				public boolean isReleasable() {
+					return index < next + slots.length;
+				}
+
+				@Override
+				public boolean block() throws InterruptedException {
+					lock.lock();
+					try {
+						while ( index >= next + slots.length && !closed )
+							notFull.await();
+					} finally {
+						lock.unlock();
+					}
+					return true;
+				}
+			};
+			// the row is needed for the output to continue, so keep waiting and interrupt afterwards
+			while ( true ) {
+				try {
+					ForkJoinPool.managedBlock( blocker );
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if ( interrupted )
+				Thread.currentThread().interrupt();
+		}
+
+		lock.lock();
+		try {
+			if ( closed )
+				return;
+			slots[(int)index & mask] = row;
+			if ( index == next )
+				notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Loop of the writer thread: takes the rows that are ready, in order, and writes them
+	 */
+	private void writeRows() {
+		StringBuilder sb = new StringBuilder();
+		Formatter formatter = new Formatter( sb );
+		double[][] batch = new double[batchSize][];
+		while ( true ) {
+			long first;
+			int n = 0;
+			lock.lock();
+			try {
+				while ( slots[(int)next & mask] == null && !closed )
+					notEmpty.awaitUninterruptibly();
+				first = next;
+				while ( n < batchSize && slots[(int)(first+n) & mask] != null ) {
+					batch[n] = slots[(int)(first+n) & mask];
+					n++;
+				}
+				if ( n == 0 )
+					return; // closed, and any rows still missing will not come
+			} finally {
+				lock.unlock();
+			}
+
+			// format and write without the lock so rows keep coming in
+			if ( error == null ) {
+				sb.setLength( 0 );
+				for ( int i=0; i<n; i++ )
+					format.format( first+i, batch[i], formatter );
+				try {
+					out.write( sb.toString() );
+				} catch (IOException e) {
+					// keep taking rows so nobody waits forever, close() reports the error
+					error = e;
+				}
+			}
+
+			lock.lock();
+			try {
+				for ( int i=0; i<n; i++ ) {
+					slots[(int)(first+i) & mask] = null;
+					batch[i] = null;
+				}
+				next = first + n;
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Waits until every row before row was written and flushes out. The rows must all have been put.
+	 * @param row
+	 * @throws IOException
+	 */
+	public void sync( long row ) throws IOException {
+		lock.lock();
+		try {
+			while ( next < row && !closed )
+				notFull.awaitUninterruptibly();
+		} finally {
+			lock.unlock();
+		}
+		if ( error != null )
+			throw error;
+		out.flush();
+	}
+
+	/**
+	 * Writes the rows that are still queued, up to the first one that was never put, and closes out
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		out.close();
+		if ( error != null )
+			throw error;
+	}
+}
@@ -0,0 +1,441 @@
+package edu.umaryland.mri.search;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import edu.umaryland.mri.data.SimImage1DRunner;
+
+/*
+ * Simulated annealing with several chains at fixed temperatures from tMin to tMax (parallel
+ * tempering). In each round every chain takes a number of Metropolis steps to neighbouring
+ * protocols of the FA, TD1, TD2 grid, all chains at the same time on a ForkJoinPool, and then
+ * chains at neighbouring temperatures may swap protocols. Hot chains wander the whole grid and hand
+ * good regions down to the cold ones, which refine them.
+ *
+ * The energy is the one RunSimulation.doSimAnneal() has always used. Each chain has its own
+ * simulator and its own SplittableRandom split from the seed, and swaps are decided after all chains
+ * have finished the round, so a seed gives the same run whatever the number of threads.
+ */
+public class ParallelTempering {
+
+	/*
+	 * A protocol and how it did
+	 */
+	public static class State {
+		public double fa, td1, td2;
+		public double signal, contrast, time, energy = Double.MAX_VALUE;
+
+		void set( State that ) {
+			fa = that.fa;
+			td1 = that.td1;
+			td2 = that.td2;
+			signal = that.signal;
+			contrast = that.contrast;
+			time = that.time;
+			energy = that.energy;
+		}
+	}
+
+	/*
+	 * Called after every round from the thread that called run()
+	 */
+	public interface Listener {
+		void roundDone( int round, ParallelTempering pt );
+	}
+
+	private final SimParams params;
+	private final int numChains;
+	private final long seed;
+	private double tMin = 0.001, tMax = 100;
+	private int stepsPerRound = 10;
+	private int maxRounds = 10000;
+	private int patience = 100;
+	private Listener listener;
+	private boolean bSpeculative = false;
+	private int cacheSize = 1<<16;
+	private EvalCache cache;
+	// cache used by the current run, and the hash of the settings its protocols are stored under
+	private EvalCache runCache;
+	private long context;
+	// simulators of the workers that evaluate neighbours in speculative mode
+	private final ThreadLocal<SimImage1DRunner> localSimulator = new ThreadLocal<SimImage1DRunner>();
+
+	private Chain[] chains;
+	private final State best = new State();
+	private int numRounds;
+
+	/**
+	 * Sets up numChains chains over the grid of params, with all random numbers drawn from seed
+	 * @param params
+	 * @param numChains
+	 * @param seed
+	 */
+	public ParallelTempering( SimParams params, int numChains, long seed ) {
+		this.params = params;
+		this.numChains = Math.max( 1, numChains );
+		this.seed = seed;
+	}
+
+	/**
+	 * Sets the temperatures of the coldest and hottest chain [default is 0.001 and 100]
+	 * @param tMin
+	 * @param tMax
+	 */
+	public void setTemperatures( double tMin, double tMax ) {
+		this.tMin = tMin;
+		this.tMax = tMax;
+	}
+
+	/**
+	 * Sets the number of steps of each chain between swaps [default is 10]
+	 * @param stepsPerRound
+	 */
+	public void setStepsPerRound( int stepsPerRound ) { this.stepsPerRound = Math.max( 1, stepsPerRound ); }
+
+	/**
+	 * Sets the number of rounds without a better protocol after which the search stops [default is 100]
+	 * @param patience
+	 */
+	public void setPatience( int patience ) { this.patience = patience; }
+
+	/**
+	 * Sets the largest number of rounds [default is 10000]
+	 * @param maxRounds
+	 */
+	public void setMaxRounds( int maxRounds ) { this.maxRounds = maxRounds; }
+
+	/**
+	 * Sets whether a chain evaluates all neighbours of its protocol at the same time when it needs
+	 * one it has not seen [default is false]. The chain then takes its steps from those results, so
+	 * rejected moves cost nothing more, which pays off when the pool has more threads than chains.
+	 * @param bSpeculative
+	 */
+	public void setSpeculative( boolean bSpeculative ) { this.bSpeculative = bSpeculative; }
+	public boolean isSpeculative() { return bSpeculative; }
+
+	/**
+	 * Sets the number of protocols kept in speculative mode when no cache is set [default is 65536]
+	 * @param cacheSize
+	 */
+	public void setCacheSize( int cacheSize ) { this.cacheSize = Math.max( 27*numChains, cacheSize ); }
+
+	/**
+	 * Sets a cache of evaluated protocols shared by all chains, which can be kept for later runs
+	 * [default is null, a cache of its own in speculative mode and none otherwise]
+	 * @param cache
+	 */
+	public void setCache( EvalCache cache ) { this.cache = cache; }
+	public EvalCache getCache() { return cache; }
+
+	public void setListener( Listener listener ) { this.listener = listener; }
+
+	public int getNumChains() { return numChains; }
+	public int getNumRounds() { return numRounds; }
+
+	/*
+	 * Best protocol found so far
+	 */
+	public State getBest() { return best; }
+
+	/*
+	 * Current protocol of chain k, 0 being the coldest
+	 */
+	public State getChainState( int k ) { return chains[k].curr; }
+	public double getTemperature( int k ) { return chains[k].temp; }
+
+	public long getNumEvaluations() {
+		long n = 0;
+		for ( Chain c : chains )
+			n += c.numEvals;
+		return n;
+	}
+
+	/*
+	 * Number of evaluations each chain had to wait for, one per batch of neighbours in speculative
+	 * mode, which is how long the search takes with enough threads
+	 */
+	public long getNumSequentialEvaluations() {
+		long n = 0;
+		for ( Chain c : chains )
+			n = Math.max( n, bSpeculative ? c.numBatches+1 : c.numEvals );
+		return n;
+	}
+
+	public long getNumLoops() {
+		long n = 0;
+		for ( Chain c : chains )
+			n += c.numLoops;
+		return n;
+	}
+
+	/*
+	 * Fraction of proposed swaps that were made
+	 */
+	public double getSwapRate() {
+		long tried = 0, made = 0;
+		for ( Chain c : chains ) {
+			tried += c.swapsTried;
+			made += c.swapsMade;
+		}
+		return (tried > 0) ? 1.0*made/tried : 0;
+	}
+
+	/**
+	 * Runs the search on pool and returns the best protocol
+	 * @param pool
+	 * @return
+	 */
+	public State run( ForkJoinPool pool ) {
+		SplittableRandom root = new SplittableRandom( seed );
+		SplittableRandom swapRand = root.split();
+		chains = new Chain[numChains];
+		for ( int k=0; k<numChains; k++ ) {
+			double temp = (numChains == 1) ? tMin : tMin * Math.pow( tMax/tMin, 1.0*k/(numChains-1) );
+			chains[k] = new Chain( temp, root.split() );
+		}
+		best.energy = Double.MAX_VALUE;
+		runCache = cache;
+		if ( runCache == null && bSpeculative )
+			runCache = new EvalCache( cacheSize );
+		if ( runCache != null )
+			context = runCache.getContext( params, params.getTR(), params.getNP(), params.getSpoil() );
+
+		// start every chain where doSimAnneal starts, the hot ones leave quickly
+		ArrayList<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for ( final Chain c : chains )
+			tasks.add( new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					c.evaluate( params.getFAen(), params.getTD1en(), params.getTD2en(), c.curr );
+				}
+			});
+		pool.invoke( new Batch( tasks ) );
+		updateBest();
+
+		tasks.clear();
+		for ( final Chain c : chains )
+			tasks.add( new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				protected void compute() {
+					for ( int i=0; i<stepsPerRound; i++ )
+						c.step();
+				}
+			});
+
+		int sinceBetter = 0;
+		for ( numRounds=1; numRounds<=maxRounds && sinceBetter<patience; numRounds++ ) {
+			for ( RecursiveAction t : tasks )
+				t.reinitialize();
+			pool.invoke( new Batch( tasks ) );
+
+			if ( updateBest() )
+				sinceBetter = 0;
+			else
+				sinceBetter++;
+
+			// swap neighbouring temperatures, alternating even and odd pairs
+			for ( int k=numRounds%2; k+1<numChains; k+=2 ) {
+				Chain cold = chains[k], hot = chains[k+1];
+				double a = (1/cold.temp - 1/hot.temp) * (cold.curr.energy - hot.curr.energy);
+				cold.swapsTried++;
+				if ( a >= 0 || swapRand.nextDouble() < Math.exp(a) ) {
+					State s = cold.curr;
+					cold.curr = hot.curr;
+					hot.curr = s;
+					cold.swapsMade++;
+				}
+			}
+
+			if ( listener != null )
+				listener.roundDone( numRounds, this );
+		}
+		numRounds--;
+		return best;
+	}
+
+	private boolean updateBest() {
+		boolean better = false;
+		for ( Chain c : chains )
+			if ( c.curr.energy < best.energy ) {
+				best.set( c.curr );
+				better = true;
+			}
+		return better;
+	}
+
+	private SimImage1DRunner newSimulator() {
+		SimImage1DRunner sim = new SimImage1DRunner();
+		sim.setTissueAParams( params.getPDa(), params.getT1a(), params.getT2a() );
+		sim.setTissueBParams( params.getPDb(), params.getT1b(), params.getT2b() );
+		sim.setIdealSpoiling( params.getIdealSpoil() );
+		sim.setClosedFormSpoiling( true );
+		// no echo train reuse: the chains keep moving to new flip angles, and building an operator
+		// for each costs far more than the cycles it saves
+		// each chain moves one grid step at a time, so its steady state starts from the last one
+		sim.setWarmStart( true );
+		return sim;
+	}
+
+	/*
+	 * Simulates a protocol into s, stores it in the cache, and returns the MPRAGE cycles it took
+	 */
+	private long evaluate( SimImage1DRunner sim, double fa, double td1, double td2, State s ) {
+		int NP = params.getNP();
+		sim.setSeqParams( fa, params.getSpoil(), params.getTR(), td1, td2, NP );
+		sim.run();
+		double[] meanSignal = sim.get1DTissueMean();
+		double meanA = meanSignal[0]/NP; // note ifft is unnormalized, fix it here
+		double meanB = meanSignal[1]/NP; // note ifft is unnormalized, fix it here
+		if ( runCache != null )
+			runCache.put( EvalCache.getKey(fa, td1, td2), context, meanA, meanB );
+		set( s, fa, td1, td2, meanA, meanB );
+		return sim.getNumLoops();
+	}
+
+	/*
+	 * Fills s from the cache, returns false if the protocol is not there
+	 */
+	private boolean lookup( double fa, double td1, double td2, State s ) {
+		if ( runCache == null )
+			return false;
+		double[] signals = new double[2];
+		if ( !runCache.get( EvalCache.getKey(fa, td1, td2), context, signals ) )
+			return false;
+		set( s, fa, td1, td2, signals[0], signals[1] );
+		return true;
+	}
+
+	private void set( State s, double fa, double td1, double td2, double meanA, double meanB ) {
+		int NP = params.getNP();
+		double TR = params.getTR();
+		s.fa = fa;
+		s.td1 = td1;
+		s.td2 = td2;
+		s.signal = (meanA < meanB) ? meanA : meanB;
+		s.contrast = meanB/meanA;
+		s.time = NP*TR + td1 + td2;
+		s.energy = params.getEnergy( s.signal, s.contrast, s.time );
+	}
+
+	private boolean isInGrid( double fa, double td1, double td2 ) {
+		return fa >= params.getFAst() && fa <= params.getFAen() && td1 >= params.getTD1st() && td1 <= params.getTD1en() && td2 >= params.getTD2st() && td2 <= params.getTD2en();
+	}
+
+	/*
+	 * Runs a list of tasks and waits for all of them
+	 */
+	private static class Batch extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ArrayList<RecursiveAction> tasks;
+
+		Batch( ArrayList<RecursiveAction> tasks ) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			invokeAll( tasks );
+		}
+	}
+
+	private class Chain {
+		final double temp;
+		final SplittableRandom rand;
+		final SimImage1DRunner sim;
+		State curr = new State();
+		final State next = new State();
+		long numEvals, numLoops, swapsTried, swapsMade, numBatches;
+
+		Chain( double temp, SplittableRandom rand ) {
+			this.temp = temp;
+			this.rand = rand;
+			sim = newSimulator();
+		}
+
+		void evaluate( double fa, double td1, double td2, State s ) {
+			if ( lookup( fa, td1, td2, s ) )
+				return;
+			numLoops += ParallelTempering.this.evaluate( sim, fa, td1, td2, s );
+			numEvals++;
+		}
+
+		/*
+		 * One Metropolis step to one of the up to 26 neighbours on the grid
+		 */
+		void step() {
+			double fa, td1, td2;
+			do {
+				int d = rand.nextInt( 26 );
+				if ( d >= 13 )
+					d++; // skip the protocol itself
+				fa  = curr.fa  + (d/9 - 1)*params.getFAinc();
+				td1 = curr.td1 + ((d/3)%3 - 1)*params.getTD1inc();
+				td2 = curr.td2 + (d%3 - 1)*params.getTD2inc();
+			} while ( !isInGrid( fa, td1, td2 ) );
+
+			if ( !bSpeculative )
+				evaluate( fa, td1, td2, next );
+			else if ( !lookup( fa, td1, td2, next ) )
+				evaluateNeighbours( fa, td1, td2 );
+			double deltaE = curr.energy - next.energy;
+			if ( deltaE > 0 || rand.nextDouble() < Math.exp(deltaE/temp) )
+				curr.set( next );
+		}
+
+		/*
+		 * Evaluates all neighbours of the current protocol that are not cached at the same time, as
+		 * subtasks of this chain's task on the pool, and puts the one that was asked for in next
+		 */
+		void evaluateNeighbours( double faNext, double td1Next, double td2Next ) {
+			ArrayList<Neighbour> tasks = new ArrayList<Neighbour>( 26 );
+			for ( int d=0; d<27; d++ ) {
+				double fa  = curr.fa  + (d/9 - 1)*params.getFAinc();
+				double td1 = curr.td1 + ((d/3)%3 - 1)*params.getTD1inc();
+				double td2 = curr.td2 + (d%3 - 1)*params.getTD2inc();
+				boolean asked = fa == faNext && td1 == td1Next && td2 == td2Next;
+				// the one asked for was just missed in the cache
+				if ( d != 13 && isInGrid(fa, td1, td2) && (asked || !runCache.contains( EvalCache.getKey(fa, td1, td2), context )) )
+					tasks.add( new Neighbour( fa, td1, td2 ) );
+			}
+			ForkJoinTask.invokeAll( tasks );
+			for ( Neighbour t : tasks ) {
+				if ( t.fa == faNext && t.td1 == td1Next && t.td2 == td2Next )
+					next.set( t.state );
+				numLoops += t.loops;
+			}
+			numEvals += tasks.size();
+			numBatches++;
+		}
+	}
+
+	/*
+	 * Evaluation of one neighbour on the simulator of whichever worker runs it
+	 */
+	private class Neighbour extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final State state = new State();
+		final double fa, td1, td2;
+		long loops;
+
+		Neighbour( double fa, double td1, double td2 ) {
+			this.fa = fa;
+			this.td1 = td1;
+			this.td2 = td2;
+		}
+
+		@Override
+		protected void compute() {
+			SimImage1DRunner sim = localSimulator.get();
+			if ( sim == null ) {
+				sim = newSimulator();
+				localSimulator.set( sim );
+			}
+			loops = evaluate( sim, fa, td1, td2, state );
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package edu.umaryland.mri.search;
+
+import java.util.ArrayList;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+ * A regular grid over any number of parameters that is never stored. Every point has an index, with
+ * the last axis varying fastest, and its values are found from the index by arithmetic, so a sweep
+ * of any size only needs the index range it is working on. Ranges of indices can be split for
+ * threads either directly or with the Spliterator.
+ */
+public class ParamGrid {
+
+	/*
+	 * One parameter: start, start+inc, ... up to and including end
+	 */
+	public static class Axis {
+		private final String name;
+		private final double start, inc;
+		private final long count;
+
+		Axis( String name, double start, double end, double inc ) {
+			this.name = name;
+			this.start = start;
+			this.inc = inc;
+			if ( end == start )
+				count = 1;
+			else if ( inc <= 0 || end < start )
+				throw new IllegalArgumentException("The range of " + name + " is empty");
+			else
+				// the small tolerance keeps end in the grid when inc is not exact in binary
+				count = (long)Math.floor( (end-start)/inc + 1e-9 ) + 1;
+		}
+
+		public String getName() { return name; }
+		public double getStart() { return start; }
+		public double getInc() { return inc; }
+		public long getCount() { return count; }
+		public double getEnd() { return getValue( count-1 ); }
+		public double getValue( long i ) { return start + i*inc; }
+	}
+
+	private final ArrayList<Axis> axes = new ArrayList<Axis>();
+	// number of points for one step of each axis
+	private long[] stride = new long[0];
+	private long numPoints = 1;
+
+	/**
+	 * Adds an axis after the existing ones, so it will vary fastest, and returns its position
+	 * @param name
+	 * @param start
+	 * @param end
+	 * @param inc
+	 * @return
+	 */
+	public int addAxis( String name, double start, double end, double inc ) {
+		Axis axis = new Axis( name, start, end, inc );
+		if ( numPoints > Long.MAX_VALUE / axis.getCount() )
+			throw new IllegalArgumentException("The grid has too many points");
+		axes.add( axis );
+		numPoints *= axis.getCount();
+
+		int n = axes.size();
+		stride = new long[n];
+		stride[n-1] = 1;
+		for ( int i=n-2; i>=0; i-- )
+			stride[i] = stride[i+1]*axes.get(i+1).getCount();
+		return n-1;
+	}
+
+	/*
+	 * Adds an axis with a single value
+	 */
+	public int addAxis( String name, double value ) {
+		return addAxis( name, value, value, 1 );
+	}
+
+	public int getNumAxes() { return axes.size(); }
+	public Axis getAxis( int axis ) { return axes.get(axis); }
+	public long getNumPoints() { return numPoints; }
+
+	/*
+	 * Returns the position of the named axis, or -1
+	 */
+	public int findAxis( String name ) {
+		for ( int i=0; i<axes.size(); i++ )
+			if ( axes.get(i).getName().equals(name) )
+				return i;
+		return -1;
+	}
+
+	/*
+	 * Step of the given axis at point index
+	 */
+	public long getStep( long index, int axis ) {
+		return (index/stride[axis]) % axes.get(axis).getCount();
+	}
+
+	public double getValue( long index, int axis ) {
+		return axes.get(axis).getValue( getStep(index, axis) );
+	}
+
+	/**
+	 * Fills point with the values of every axis at index and returns it, a new array if point is
+	 * null
+	 * @param index
+	 * @param point
+	 * @return
+	 */
+	public double[] getPoint( long index, double[] point ) {
+		if ( point == null )
+			point = new double[axes.size()];
+		for ( int i=0; i<axes.size(); i++ )
+			point[i] = getValue( index, i );
+		return point;
+	}
+
+	/*
+	 * Spliterator over the points lo..hi-1; each point is a new array
+	 */
+	public Spliterator<double[]> spliterator( long lo, long hi ) {
+		return new PointSpliterator( lo, hi );
+	}
+
+	public Spliterator<double[]> spliterator() {
+		return spliterator( 0, numPoints );
+	}
+
+	/*
+	 * Stream of all points in index order, parallel if asked for
+	 */
+	public Stream<double[]> stream( boolean parallel ) {
+		return StreamSupport.stream( spliterator(), parallel );
+	}
+
+	private class PointSpliterator implements Spliterator<double[]> {
+		private long lo;
+		private final long hi;
+
+		PointSpliterator( long lo, long hi ) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		public boolean tryAdvance( Consumer<? super double[]> action ) {
+			if ( lo >= hi )
+				return false;
+			action.accept( getPoint(lo++, null) );
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining( Consumer<? super double[]> action ) {
+			for ( ; lo<hi; lo++ )
+				action.accept( getPoint(lo, null) );
+		}
+
+		@Override
+		public Spliterator<double[]> trySplit() {
+			long mid = (lo+hi) >>> 1;
+			if ( mid <= lo )
+				return null;
+			// the first half goes to the new spliterator to keep the encounter order
+			Spliterator<double[]> prefix = new PointSpliterator( lo, mid );
+			lo = mid;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() { return hi-lo; }
+
+		@Override
+		public int characteristics() {
+			return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+		}
+	}
+}
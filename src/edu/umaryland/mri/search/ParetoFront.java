@@ -0,0 +1,339 @@
+package edu.umaryland.mri.search;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * The protocols of a search that are not dominated in (min signal, contrast, total time): no other
+ * protocol has at least the signal and contrast in at most the time. Every question of the form
+ * "fastest protocol with S >= sMin and C >= cMin" (or the best contrast or signal within a time)
+ * has its answer on the front, so one sweep answers them for all thresholds.
+ *
+ * The front is a k-d tree over the three values. Each subtree knows the bounds of its points, so
+ * checking a new protocol against the front and removing the protocols it dominates only visit the
+ * parts of the tree that can hold them. Removed protocols are only marked, and the tree is rebuilt
+ * balanced once they make up half of it or it gets too deep.
+ *
+ * Identical values are broken by the grid index, the lower index stays, which makes the front the
+ * same whatever order protocols are added or fronts merged in. Not thread safe, each worker keeps its
+ * own and they are merged at the end.
+ */
+public class ParetoFront {
+
+	public static class Entry {
+		private final long index;
+		private final double[] point;
+		private final double signal, contrast, time;
+
+		Entry( long index, double[] point, double signal, double contrast, double time ) {
+			this.index = index;
+			this.point = point;
+			this.signal = signal;
+			this.contrast = contrast;
+			this.time = time;
+		}
+
+		public long getIndex() { return index; }
+		public double[] getPoint() { return point; }
+		public double getSignal() { return signal; }
+		public double getContrast() { return contrast; }
+		public double getTime() { return time; }
+
+		/*
+		 * True if this is at least as good as that everywhere and either better somewhere or first
+		 * in the grid
+		 */
+		boolean dominates( Entry that ) {
+			if ( signal < that.signal || contrast < that.contrast || time > that.time )
+				return false;
+			if ( signal > that.signal || contrast > that.contrast || time < that.time )
+				return true;
+			return index < that.index;
+		}
+
+		double get( int axis ) {
+			return (axis == SIGNAL) ? signal : (axis == CONTRAST) ? contrast : time;
+		}
+	}
+
+	private static final int SIGNAL = 0;
+	private static final int CONTRAST = 1;
+	private static final int TIME = 2;
+
+	private static class Node {
+		final Entry entry;
+		final int axis;
+		Node left, right;
+		boolean removed;
+		// bounds of the entries in this subtree, removed ones included
+		double minS, maxS, minC, maxC, minT, maxT;
+
+		Node( Entry entry, int axis ) {
+			this.entry = entry;
+			this.axis = axis;
+			minS = maxS = entry.signal;
+			minC = maxC = entry.contrast;
+			minT = maxT = entry.time;
+		}
+
+		void include( Entry e ) {
+			minS = Math.min( minS, e.signal ); maxS = Math.max( maxS, e.signal );
+			minC = Math.min( minC, e.contrast ); maxC = Math.max( maxC, e.contrast );
+			minT = Math.min( minT, e.time ); maxT = Math.max( maxT, e.time );
+		}
+
+		void include( Node n ) {
+			if ( n == null )
+				return;
+			minS = Math.min( minS, n.minS ); maxS = Math.max( maxS, n.maxS );
+			minC = Math.min( minC, n.minC ); maxC = Math.max( maxC, n.maxC );
+			minT = Math.min( minT, n.minT ); maxT = Math.max( maxT, n.maxT );
+		}
+	}
+
+	private Node root;
+	private int size, numRemoved, depth;
+
+	/**
+	 * Adds a protocol unless the front already dominates it, removing the protocols it dominates.
+	 * Returns true if it was added.
+	 * @param index grid index of the protocol
+	 * @param point its parameters, kept as they are
+	 * @param signal
+	 * @param contrast
+	 * @param time
+	 * @return
+	 */
+	public boolean add( long index, double[] point, double signal, double contrast, double time ) {
+		return add( new Entry( index, point, signal, contrast, time ) );
+	}
+
+	private boolean add( Entry e ) {
+		if ( isDominated( root, e ) )
+			return false;
+		removeDominated( root, e );
+		insert( e );
+		if ( numRemoved > size || depth > 2*(32-Integer.numberOfLeadingZeros(size)) + 8 )
+			rebuild();
+		return true;
+	}
+
+	/*
+	 * Adds every protocol of that
+	 */
+	public void merge( ParetoFront that ) {
+		for ( Entry e : that.getEntries() )
+			add( e );
+	}
+
+	/**
+	 * Writes the protocols of the front to out, to be added back with read()
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write( DataOutput out ) throws IOException {
+		List<Entry> entries = getEntries();
+		out.writeInt( entries.size() );
+		for ( Entry e : entries ) {
+			out.writeLong( e.index );
+			out.writeInt( e.point.length );
+			for ( double v : e.point )
+				out.writeDouble( v );
+			out.writeDouble( e.signal );
+			out.writeDouble( e.contrast );
+			out.writeDouble( e.time );
+		}
+	}
+
+	/**
+	 * Adds the protocols written by write()
+	 * @param in
+	 * @throws IOException
+	 */
+	public void read( DataInput in ) throws IOException {
+		int n = in.readInt();
+		for ( int i=0; i<n; i++ ) {
+			long index = in.readLong();
+			double[] point = new double[in.readInt()];
+			for ( int j=0; j<point.length; j++ )
+				point[j] = in.readDouble();
+			add( index, point, in.readDouble(), in.readDouble(), in.readDouble() );
+		}
+	}
+
+	/*
+	 * Number of protocols on the front
+	 */
+	public int size() { return size; }
+
+	/*
+	 * The protocols on the front, by increasing time
+	 */
+	public List<Entry> getEntries() {
+		ArrayList<Entry> list = new ArrayList<Entry>( size );
+		collect( root, list );
+		Collections.sort( list, new Comparator<Entry>() {
+			@Override
+			public int compare( Entry a, Entry b ) {
+				int c = Double.compare( a.time, b.time );
+				return (c != 0) ? c : Long.compare( a.index, b.index );
+			}
+		});
+		return list;
+	}
+
+	/*
+	 * Fastest protocol with at least sMin signal and cMin contrast, or null
+	 */
+	public Entry getFastest( double sMin, double cMin ) {
+		return findBest( TIME, sMin, cMin, Double.MAX_VALUE );
+	}
+
+	/*
+	 * Protocol with the highest contrast with at least sMin signal and at most tMax time, or null
+	 */
+	public Entry getMaxContrast( double sMin, double tMax ) {
+		return findBest( CONTRAST, sMin, -Double.MAX_VALUE, tMax );
+	}
+
+	/*
+	 * Protocol with the highest signal with at least cMin contrast and at most tMax time, or null
+	 */
+	public Entry getMaxSignal( double cMin, double tMax ) {
+		return findBest( SIGNAL, -Double.MAX_VALUE, cMin, tMax );
+	}
+
+	private Entry findBest( int objective, double sMin, double cMin, double tMax ) {
+		Entry[] best = new Entry[1];
+		findBest( root, objective, sMin, cMin, tMax, best );
+		return best[0];
+	}
+
+	private void findBest( Node n, int objective, double sMin, double cMin, double tMax, Entry[] best ) {
+		if ( n == null || n.maxS < sMin || n.maxC < cMin || n.minT > tMax )
+			return;
+		Entry b = best[0];
+		if ( b != null ) {
+			// nothing in here can beat the best so far
+			if ( objective == TIME && n.minT > b.time )
+				return;
+			if ( objective == SIGNAL && n.maxS < b.signal )
+				return;
+			if ( objective == CONTRAST && n.maxC < b.contrast )
+				return;
+		}
+		Entry e = n.entry;
+		if ( !n.removed && e.signal >= sMin && e.contrast >= cMin && e.time <= tMax )
+			if ( b == null || isBetter( objective, e, b ) )
+				best[0] = e;
+		findBest( n.left, objective, sMin, cMin, tMax, best );
+		findBest( n.right, objective, sMin, cMin, tMax, best );
+	}
+
+	private static boolean isBetter( int objective, Entry e, Entry b ) {
+		double d = (objective == TIME) ? b.time - e.time : e.get(objective) - b.get(objective);
+		return d > 0 || (d == 0 && e.index < b.index);
+	}
+
+	/*
+	 * True if an entry in the subtree dominates e
+	 */
+	private boolean isDominated( Node n, Entry e ) {
+		if ( n == null || n.maxS < e.signal || n.maxC < e.contrast || n.minT > e.time )
+			return false;
+		if ( !n.removed && n.entry.dominates(e) )
+			return true;
+		return isDominated( n.left, e ) || isDominated( n.right, e );
+	}
+
+	/*
+	 * Marks the entries in the subtree that e dominates as removed
+	 */
+	private void removeDominated( Node n, Entry e ) {
+		if ( n == null || n.minS > e.signal || n.minC > e.contrast || n.maxT < e.time )
+			return;
+		if ( !n.removed && e.dominates(n.entry) ) {
+			n.removed = true;
+			size--;
+			numRemoved++;
+		}
+		removeDominated( n.left, e );
+		removeDominated( n.right, e );
+	}
+
+	private void insert( Entry e ) {
+		size++;
+		if ( root == null ) {
+			root = new Node( e, SIGNAL );
+			depth = 1;
+			return;
+		}
+		Node n = root;
+		int d = 1;
+		while ( true ) {
+			n.include( e );
+			d++;
+			boolean goLeft = e.get(n.axis) < n.entry.get(n.axis);
+			Node child = goLeft ? n.left : n.right;
+			if ( child == null ) {
+				child = new Node( e, (n.axis+1)%3 );
+				if ( goLeft )
+					n.left = child;
+				else
+					n.right = child;
+				break;
+			}
+			n = child;
+		}
+		depth = Math.max( depth, d );
+	}
+
+	private void collect( Node n, List<Entry> list ) {
+		if ( n == null )
+			return;
+		if ( !n.removed )
+			list.add( n.entry );
+		collect( n.left, list );
+		collect( n.right, list );
+	}
+
+	/*
+	 * Builds a balanced tree of the entries that are left
+	 */
+	private void rebuild() {
+		ArrayList<Entry> list = new ArrayList<Entry>( size );
+		collect( root, list );
+		Entry[] entries = list.toArray( new Entry[list.size()] );
+		depth = 0;
+		numRemoved = 0;
+		root = build( entries, 0, entries.length, 0, 1 );
+	}
+
+	private Node build( Entry[] entries, int lo, int hi, final int axis, int d ) {
+		if ( lo >= hi )
+			return null;
+		Arrays.sort( entries, lo, hi, new Comparator<Entry>() {
+			@Override
+			public int compare( Entry a, Entry b ) {
+				return Double.compare( a.get(axis), b.get(axis) );
+			}
+		});
+		int mid = (lo+hi) >>> 1;
+		// equal values go right, as in insert()
+		while ( mid > lo && entries[mid-1].get(axis) == entries[mid].get(axis) )
+			mid--;
+		Node n = new Node( entries[mid], axis );
+		n.left = build( entries, lo, mid, (axis+1)%3, d+1 );
+		n.right = build( entries, mid+1, hi, (axis+1)%3, d+1 );
+		n.include( n.left );
+		n.include( n.right );
+		depth = Math.max( depth, d );
+		return n;
+	}
+}
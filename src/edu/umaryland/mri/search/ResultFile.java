@@ -0,0 +1,218 @@
+package edu.umaryland.mri.search;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Formatter;
+
+/*
+ * Binary results of a sweep in a memory-mapped file, one row per protocol of the grid. Each value is
+ * stored in its own column of little-endian doubles at an offset found from the row, so workers can
+ * write any row at any time without locks or formatting, and the file can be read directly (e.g.
+ * numpy.memmap) or turned into the usual CSV with writeCSV().
+ *
+ * Layout: a 64 byte header (magic, version, number of columns, flags, number of rows), the columns
+ * one after the other, then one byte per row that is set once the row has been written. NP, TR and
+ * spoiling increment are columns as they can change from row to row; ideal spoiling is the same for
+ * the whole sweep and is bit 0 of the flags.
+ */
+public class ResultFile implements Closeable {
+
+	public static final int FA = 0;
+	public static final int TD1 = 1;
+	public static final int TD2 = 2;
+	public static final int SIGNAL_A = 3;
+	public static final int SIGNAL_B = 4;
+	public static final int CONTRAST = 5;
+	public static final int TIME = 6;
+	public static final int NP = 7;
+	public static final int TR = 8;
+	public static final int SPOIL = 9;
+	public static final int NUM_COLUMNS = 10;
+
+	private static final int MAGIC = 0x5352504D; // "MPRS" in little-endian
+	private static final int VERSION = 2;
+	private static final int FLAG_IDEAL_SPOILING = 1;
+	private static final int HEADER_SIZE = 64;
+	// a mapping holds at most 2GB, so columns are mapped in segments of this many rows
+	private static final int SEGMENT_ROWS = 1<<27;
+
+	private final FileChannel channel;
+	private final long numRows;
+	private final boolean bIdealSpoiling;
+	private final MappedByteBuffer[][] columns;
+	private final MappedByteBuffer[] written;
+
+	private ResultFile( FileChannel channel, long numRows, boolean bIdealSpoiling ) throws IOException {
+		this.channel = channel;
+		this.numRows = numRows;
+		this.bIdealSpoiling = bIdealSpoiling;
+
+		int numSegments = (int)((numRows + SEGMENT_ROWS - 1) / SEGMENT_ROWS);
+		columns = new MappedByteBuffer[NUM_COLUMNS][numSegments];
+		written = new MappedByteBuffer[numSegments];
+		for ( int s=0; s<numSegments; s++ ) {
+			long first = (long)s*SEGMENT_ROWS;
+			long rows = Math.min( SEGMENT_ROWS, numRows-first );
+			for ( int c=0; c<NUM_COLUMNS; c++ ) {
+				columns[c][s] = channel.map( FileChannel.MapMode.READ_WRITE, HEADER_SIZE + 8*(c*numRows + first), 8*rows );
+				columns[c][s].order( ByteOrder.LITTLE_ENDIAN );
+			}
+			written[s] = channel.map( FileChannel.MapMode.READ_WRITE, HEADER_SIZE + 8*NUM_COLUMNS*numRows + first, rows );
+		}
+	}
+
+	/**
+	 * Creates (or replaces) file with room for numRows rows, none of them written
+	 * @param file
+	 * @param numRows
+	 * @param bIdealSpoiling whether the sweep used ideal spoiling
+	 * @return
+	 * @throws IOException
+	 */
+	public static ResultFile create( File file, long numRows, boolean bIdealSpoiling ) throws IOException {
+		FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+		try {
+			ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+			header.putInt( MAGIC ).putInt( VERSION ).putInt( NUM_COLUMNS ).putInt( bIdealSpoiling ? FLAG_IDEAL_SPOILING : 0 ).putLong( numRows );
+			header.rewind();
+			channel.write( header, 0 );
+			// the rest of the file reads as zeros, so no row is marked as written
+			channel.write( ByteBuffer.allocate(1), getFileSize(numRows)-1 );
+			return new ResultFile( channel, numRows, bIdealSpoiling );
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a file made by create() to read it or to write more rows
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static ResultFile open( File file ) throws IOException {
+		FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE );
+		try {
+			ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+			channel.read( header, 0 );
+			header.rewind();
+			if ( header.getInt() != MAGIC )
+				throw new IOException( file + " is not a result file" );
+			// version 1 had no NP, TR and spoiling columns
+			if ( header.getInt() != VERSION || header.getInt() != NUM_COLUMNS )
+				throw new IOException( file + " was written by another version" );
+			int flags = header.getInt();
+			long numRows = header.getLong();
+			if ( channel.size() < getFileSize(numRows) )
+				throw new IOException( file + " is truncated" );
+			return new ResultFile( channel, numRows, (flags & FLAG_IDEAL_SPOILING) != 0 );
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static long getFileSize( long numRows ) {
+		return HEADER_SIZE + (8L*NUM_COLUMNS+1)*numRows;
+	}
+
+	public long getNumRows() { return numRows; }
+
+	public boolean isIdealSpoiling() { return bIdealSpoiling; }
+
+	/*
+	 * Stores one row, the protocol at point (axes at the SimParams.AXIS_ positions); different rows
+	 * can be written from different threads at the same time
+	 */
+	public void write( long row, double[] point, double signalA, double signalB, double contrast, double time ) {
+		int s = (int)(row / SEGMENT_ROWS);
+		int i = (int)(row % SEGMENT_ROWS);
+		columns[FA][s].putDouble( 8*i, point[SimParams.AXIS_FA] );
+		columns[TD1][s].putDouble( 8*i, point[SimParams.AXIS_TD1] );
+		columns[TD2][s].putDouble( 8*i, point[SimParams.AXIS_TD2] );
+		columns[SIGNAL_A][s].putDouble( 8*i, signalA );
+		columns[SIGNAL_B][s].putDouble( 8*i, signalB );
+		columns[CONTRAST][s].putDouble( 8*i, contrast );
+		columns[TIME][s].putDouble( 8*i, time );
+		columns[NP][s].putDouble( 8*i, point[SimParams.AXIS_NP] );
+		columns[TR][s].putDouble( 8*i, point[SimParams.AXIS_TR] );
+		columns[SPOIL][s].putDouble( 8*i, point[SimParams.AXIS_SPOIL] );
+		written[s].put( i, (byte)1 );
+	}
+
+	public double get( long row, int column ) {
+		return columns[column][(int)(row / SEGMENT_ROWS)].getDouble( 8*(int)(row % SEGMENT_ROWS) );
+	}
+
+	public boolean isWritten( long row ) {
+		return written[(int)(row / SEGMENT_ROWS)].get( (int)(row % SEGMENT_ROWS) ) != 0;
+	}
+
+	/**
+	 * Writes the rows that have been written as CSV, in the format the sweeps used to write, and
+	 * returns the number of rows
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public long writeCSV( File file ) throws IOException {
+		long count = 0;
+		BufferedWriter bw = new BufferedWriter( new FileWriter( file ) );
+		Formatter formatter = new Formatter( bw );
+		try {
+			bw.write( OrderedWriter.CSV_HEADER );
+			double[] row = new double[9];
+			for ( long i=0; i<numRows; i++ ) {
+				if ( !isWritten(i) )
+					continue;
+				double signalA = get( i, SIGNAL_A );
+				double signalB = get( i, SIGNAL_B );
+				row[0] = get( i, FA );
+				row[1] = get( i, TD1 );
+				row[2] = get( i, TD2 );
+				row[3] = (signalA < signalB) ? signalA : signalB;
+				row[4] = get( i, CONTRAST );
+				row[5] = get( i, TIME );
+				row[6] = get( i, NP );
+				row[7] = get( i, TR );
+				row[8] = get( i, SPOIL );
+				OrderedWriter.CSV_ROW.format( i, row, formatter );
+				count++;
+			}
+			if ( formatter.ioException() != null )
+				throw formatter.ioException();
+		} finally {
+			formatter.close();
+		}
+		return count;
+	}
+
+	/*
+	 * Writes the mapped rows out to the file
+	 */
+	public void force() {
+		for ( int s=0; s<written.length; s++ ) {
+			for ( int c=0; c<NUM_COLUMNS; c++ )
+				columns[c][s].force();
+			written[s].force();
+		}
+	}
+
+	/*
+	 * Forces the rows to the file and closes it; the mappings are released when they are collected
+	 */
+	@Override
+	public void close() throws IOException {
+		force();
+		channel.close();
+	}
+}
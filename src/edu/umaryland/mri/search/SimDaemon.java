@@ -0,0 +1,395 @@
+package edu.umaryland.mri.search;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import edu.umaryland.mri.data.EchoTrainOperator;
+import edu.umaryland.mri.data.SimImage1DRunner;
+
+/*
+ * Keeps one JVM with its pool, simulators, pulse train operators and result cache warm for many
+ * studies, which would otherwise each pay for class loading, JIT compilation and a cold cache. It
+ * listens on a port of the loopback address only; start it with
+ *   java -cp <classes> edu.umaryland.mri.search.SimDaemon [port=5151] [threads=<n>] [store=<file>]
+ *
+ * Requests are lines of text, a command and name=value pairs as for SweepRunner:
+ *   EVAL FA=<deg> TD1=<ms> TD2=<ms> [parameters]  one protocol
+ *   SWEEP [parameters and options]                a sweep like SweepRunner, printing its output
+ *   STATS                                         requests served and cache counts
+ *   QUIT                                          closes the connection
+ *   SHUTDOWN                                      stops the daemon
+ * The answer ends with a line "OK <milliseconds> [values]" or "ERROR <message>", where EVAL gives
+ * the signals of tissue A and B, the contrast and the total time. Requests from all connections
+ * are run one at a time, as they share the simulators and would only compete for the pool.
+ */
+public class SimDaemon {
+
+	private final ForkJoinPool pool;
+	private final EvalCache cache;
+	// simulators of the pool threads, kept from one request to the next
+	private final ThreadLocal<SimImage1DRunner> simulators = new ThreadLocal<SimImage1DRunner>();
+	private final Object lock = new Object();
+	private long numRequests;
+	private boolean bStopping;
+
+	private ServerSocket server;
+	private ExecutorService es;
+	private final ConcurrentLinkedQueue<Socket> sockets = new ConcurrentLinkedQueue<Socket>();
+
+	public SimDaemon( ForkJoinPool pool, EvalCache cache ) {
+		this.pool = pool;
+		this.cache = cache;
+	}
+
+	public EvalCache getCache() { return cache; }
+	public synchronized long getNumRequests() { return numRequests; }
+
+	/**
+	 * Serves requests on port of the loopback address (0 for any free port, see getPort()) until a
+	 * SHUTDOWN. Blocks the calling thread.
+	 * @param port
+	 * @throws IOException
+	 */
+	public void run( int port ) throws IOException {
+		start( port );
+		try {
+			waitFor();
+		} finally {
+			stop();
+		}
+	}
+
+	/**
+	 * Starts serving requests on port without waiting, see waitFor()
+	 * @param port
+	 * @throws IOException
+	 */
+	public synchronized void start( int port ) throws IOException {
+		bStopping = false;
+		server = new ServerSocket( port, 50, InetAddress.getLoopbackAddress() );
+		es = Executors.newCachedThreadPool();
+		es.execute( new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		});
+	}
+
+	/*
+	 * The port the daemon listens on
+	 */
+	public synchronized int getPort() { return server.getLocalPort(); }
+
+	/*
+	 * Waits until a SHUTDOWN request or shutdown()
+	 */
+	public synchronized void waitFor() {
+		while ( !bStopping ) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Makes waitFor() return, the request that is running finishes first
+	 */
+	public synchronized void shutdown() {
+		bStopping = true;
+		notifyAll();
+	}
+
+	/*
+	 * Stops listening and disconnects the clients
+	 */
+	public void stop() {
+		synchronized ( this ) {
+			if ( server == null )
+				return;
+			bStopping = true;
+			try {
+				server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		// a request that is running is not cut off
+		synchronized ( lock ) {
+			es.shutdown();
+		}
+		for ( Socket socket : sockets )
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		try {
+			es.awaitTermination( 1, TimeUnit.SECONDS );
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		es.shutdownNow();
+	}
+
+	/**
+	 * Runs small sweeps of the default parameters with and without ideal spoiling, so the JIT has
+	 * compiled the simulation and every pool thread has a simulator before the first request
+	 * @return the time it took in milliseconds
+	 */
+	public long warmUp() {
+		long st = System.currentTimeMillis();
+		for ( boolean bIdeal : new boolean[] { true, false } ) {
+			SimParams params = new SimParams();
+			params.setIdealSpoil( bIdeal );
+			params.setFARange( 5, 15, 5 );
+			params.setTD1Range( 200, 1000, 400 );
+			params.setTD2Range( 500, 1500, 500 );
+			GridSweep sweep = new GridSweep( params );
+			sweep.setSimulators( simulators );
+			sweep.setChunkSize( 1 );
+			synchronized ( lock ) {
+				sweep.run( pool );
+			}
+		}
+		return System.currentTimeMillis() - st;
+	}
+
+	private void accept() {
+		while ( !server.isClosed() ) {
+			try {
+				final Socket socket = server.accept();
+				sockets.add( socket );
+				es.execute( new Runnable() {
+					@Override
+					public void run() {
+						serve( socket );
+					}
+				});
+			} catch (SocketException e) {
+				// closed by stop()
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Answers the requests of one client until it disconnects or sends QUIT
+	 */
+	private void serve( Socket socket ) {
+		try {
+			BufferedReader in = new BufferedReader( new InputStreamReader( socket.getInputStream(), "UTF-8" ) );
+			PrintStream out = new PrintStream( socket.getOutputStream(), false, "UTF-8" );
+			String line;
+			while ( (line = in.readLine()) != null ) {
+				String[] words = line.trim().split( "\\s+" );
+				String command = words[0].toUpperCase( Locale.ROOT );
+				if ( command.length() == 0 )
+					continue;
+				if ( command.equals( "QUIT" ) )
+					break;
+				long st = System.nanoTime();
+				boolean bShutdown = false;
+				String answer;
+				try {
+					Properties props = new Properties();
+					for ( int i=1; i<words.length; i++ ) {
+						int j = words[i].indexOf( '=' );
+						if ( j <= 0 )
+							throw new IllegalArgumentException( "not name=value: " + words[i] );
+						props.setProperty( words[i].substring( 0, j ), words[i].substring( j+1 ) );
+					}
+					if ( command.equals( "EVAL" ) )
+						answer = eval( props );
+					else if ( command.equals( "SWEEP" ) )
+						answer = sweep( props, out );
+					else if ( command.equals( "STATS" ) )
+						answer = stats();
+					else if ( command.equals( "SHUTDOWN" ) ) {
+						answer = "";
+						bShutdown = true;
+					} else
+						throw new IllegalArgumentException( "unknown command " + words[0] );
+					double millis = (System.nanoTime() - st)/1e6;
+					out.print( String.format( Locale.ROOT, "OK %.3f%s\n", millis, answer ) );
+					System.out.println( String.format( Locale.ROOT, "%s %s %.3f ms", socket.getRemoteSocketAddress(), command, millis ) );
+				} catch (IllegalArgumentException e) {
+					fail( socket, command, st, e.getMessage(), out );
+				} catch (IOException e) {
+					fail( socket, command, st, e.toString(), out );
+				} catch (RuntimeException e) {
+					// a bug rather than a bad request, the daemon goes on
+					e.printStackTrace();
+					fail( socket, command, st, e.toString(), out );
+				}
+				out.flush();
+				synchronized ( this ) {
+					numRequests++;
+				}
+				// after the answer, which stop() could cut off
+				if ( bShutdown ) {
+					shutdown();
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// the client left
+		} finally {
+			sockets.remove( socket );
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Answers ERROR with message, and logs the request with its latency like those that succeed
+	 */
+	private static void fail( Socket socket, String command, long st, String message, PrintStream out ) {
+		double millis = (System.nanoTime() - st)/1e6;
+		out.print( "ERROR " + message + "\n" );
+		System.out.println( String.format( Locale.ROOT, "%s %s %.3f ms ERROR %s", socket.getRemoteSocketAddress(), command, millis, message ) );
+	}
+
+	/*
+	 * Simulates the protocol FA, TD1, TD2 of props as the one point of a GridSweep, so it goes
+	 * through the cache and the warm simulators like any other
+	 */
+	private String eval( Properties props ) {
+		String[] axes = { "FA", "TD1", "TD2" };
+		for ( String axis : axes ) {
+			String value = props.getProperty( axis );
+			if ( value == null )
+				throw new IllegalArgumentException( "missing " + axis );
+			props.remove( axis );
+			props.setProperty( axis + "st", value );
+			props.setProperty( axis + "en", value );
+			props.setProperty( axis + "inc", "1" );
+		}
+		for ( String key : props.stringPropertyNames() )
+			if ( !SimParams.isKey( key ) )
+				throw new IllegalArgumentException( "unknown parameter: " + key );
+		SimParams params = SimParams.read( props );
+		if ( params.getGrid().getNumPoints() != 1 )
+			throw new IllegalArgumentException( "EVAL takes one protocol, use SWEEP for ranges" );
+		GridSweep sweep = new GridSweep( params );
+		sweep.setCache( cache );
+		sweep.setSimulators( simulators );
+		final double[] result = new double[4];
+		sweep.setListener( new GridSweep.Listener() {
+			@Override
+			public void result( long index, double[] point, double signalA, double signalB, double contrast, double time ) {
+				result[0] = signalA;
+				result[1] = signalB;
+				result[2] = contrast;
+				result[3] = time;
+			}
+
+			@Override
+			public void chunkDone( long numDone, BestParamSearch chunkBest ) {
+			}
+		});
+		synchronized ( lock ) {
+			sweep.run( pool );
+		}
+		return String.format( Locale.ROOT, " %.9g %.9g %.9g %.3f", result[0], result[1], result[2], result[3] );
+	}
+
+	/*
+	 * Runs a SweepRunner with its output going to the client. A config file is read by the daemon,
+	 * relative to where it was started.
+	 */
+	private String sweep( Properties props, PrintStream out ) throws IOException {
+		props = SweepRunner.withConfig( props );
+		// the pool and store are the daemon's
+		for ( String key : new String[] { "threads", "store" } )
+			if ( props.getProperty( key ) != null )
+				throw new IllegalArgumentException( key + " is set when the daemon is started" );
+		SweepRunner runner = SweepRunner.create( props, pool );
+		runner.setCache( cache );
+		runner.setSimulators( simulators );
+		runner.setLog( out );
+		synchronized ( lock ) {
+			runner.run();
+		}
+		return "";
+	}
+
+	private String stats() {
+		String s = String.format( " requests=%d cached=%d hits=%d misses=%d", getNumRequests(), cache.size(), cache.getHits(), cache.getMisses() );
+		if ( cache.getStore() != null )
+			s += String.format( " stored=%d", cache.getStore().size() );
+		return s;
+	}
+
+	/**
+	 * @param args name=value pairs: port [5151], threads [all processors] and store [none]
+	 */
+	public static void main( String[] args ) {
+		Properties props = new Properties();
+		for ( String arg : args ) {
+			int i = arg.indexOf( '=' );
+			if ( i <= 0 ) {
+				System.err.println( "usage: SimDaemon [port=<port>] [threads=<n>] [store=<file>]" );
+				System.exit( 1 );
+			}
+			props.setProperty( arg.substring( 0, i ).trim(), arg.substring( i+1 ) );
+		}
+		int port = Integer.parseInt( props.getProperty( "port", "5151" ).trim() );
+		int threads = Integer.parseInt( props.getProperty( "threads", String.valueOf( Runtime.getRuntime().availableProcessors() ) ).trim() );
+		if ( threads < 1 ) {
+			System.err.println( "threads: must be at least 1: " + threads );
+			System.err.println( "usage: SimDaemon [port=<port>] [threads=<n>] [store=<file>]" );
+			System.exit( 1 );
+		}
+		ForkJoinPool pool = new ForkJoinPool( threads );
+		EvalCache cache = new EvalCache( 1<<18 );
+		if ( props.getProperty( "store" ) != null )
+			try {
+				cache.setStore( EvalStore.open( new File( props.getProperty( "store" ) ) ) );
+			} catch (IOException e) {
+				System.err.println( "Results are not kept, " + e.getMessage() );
+			}
+		// the sweeps of a session come back to the same flip angles
+		EchoTrainOperator.raiseMaxCached( 64 );
+
+		SimDaemon daemon = new SimDaemon( pool, cache );
+		System.out.println( String.format( "Warmed up in %d ms", daemon.warmUp() ) );
+		try {
+			daemon.start( port );
+			System.out.println( "Listening on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + daemon.getPort() + " with " + threads + " threads" );
+			daemon.waitFor();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			daemon.stop();
+		}
+		pool.shutdown();
+		if ( cache.getStore() != null )
+			try {
+				cache.getStore().close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+	}
+}
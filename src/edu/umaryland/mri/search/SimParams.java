@@ -0,0 +1,266 @@
+package edu.umaryland.mri.search;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/*
+ * Tissue, sequence and search parameters of a simulation, with the same names and defaults as the
+ * parameter dialog of RunSimulation, so searches can run without the GUI. TR, NP and the spoiling
+ * increment have a single value unless a range is set for them.
+ */
+public class SimParams {
+
+	// positions of the parameters in the points of getGrid()
+	public static final int AXIS_NP = 0;
+	public static final int AXIS_TR = 1;
+	public static final int AXIS_SPOIL = 2;
+	public static final int AXIS_FA = 3;
+	public static final int AXIS_TD1 = 4;
+	public static final int AXIS_TD2 = 5;
+
+	// names of the parameters in read(Properties), those of the fields
+	private static final List<String> KEYS = Arrays.asList( "PDa", "T1a", "T2a", "PDb", "T1b", "T2b",
+			"TR", "TRen", "TRinc", "NP", "NPen", "NPinc", "spoil", "spoilEn", "spoilInc", "idealSpoil",
+			"FAst", "FAen", "FAinc", "TD1st", "TD1en", "TD1inc", "TD2st", "TD2en", "TD2inc",
+			"sMin", "cMin", "sFactor", "cFactor" );
+
+	// tissue parameters
+	private double PDa = 1.0;
+	private int T1a = 1450;
+	private int T2a = 100;
+	private double PDb = 0.92;
+	private int T1b = 750;
+	private int T2b = 75;
+	// sequence parameters
+	private double TR = 7.12;
+	private double TRen = TR;
+	private double TRinc = 1;
+	private int NP = 160;
+	private int NPen = NP;
+	private int NPinc = 1;
+	private double spoil = 50;
+	private double spoilEn = spoil;
+	private double spoilInc = 1;
+	private boolean idealSpoil = false;
+	// search ranges
+	private int FAst = 5;
+	private int FAen = 15;
+	private int FAinc = 1;
+	private int TD1st = 200;
+	private int TD1en = 1000;
+	private int TD1inc = 25;
+	private int TD2st = 500;
+	private int TD2en = 1500;
+	private int TD2inc = 25;
+	// search goals
+	private double sMin = 0.02;
+	private double cMin = 2;
+	private double sFactor = 10;
+	private double cFactor = 15;
+
+	public double getPDa() { return PDa; }
+	public int getT1a() { return T1a; }
+	public int getT2a() { return T2a; }
+	public double getPDb() { return PDb; }
+	public int getT1b() { return T1b; }
+	public int getT2b() { return T2b; }
+	public double getTR() { return TR; }
+	public int getNP() { return NP; }
+	public double getSpoil() { return spoil; }
+	public double getTRen() { return TRen; }
+	public double getTRinc() { return TRinc; }
+	public int getNPen() { return NPen; }
+	public int getNPinc() { return NPinc; }
+	public double getSpoilEn() { return spoilEn; }
+	public double getSpoilInc() { return spoilInc; }
+	public boolean getIdealSpoil() { return idealSpoil; }
+	public int getFAst() { return FAst; }
+	public int getFAen() { return FAen; }
+	public int getFAinc() { return FAinc; }
+	public int getTD1st() { return TD1st; }
+	public int getTD1en() { return TD1en; }
+	public int getTD1inc() { return TD1inc; }
+	public int getTD2st() { return TD2st; }
+	public int getTD2en() { return TD2en; }
+	public int getTD2inc() { return TD2inc; }
+	public double getSMin() { return sMin; }
+	public double getCMin() { return cMin; }
+	public double getSFactor() { return sFactor; }
+	public double getCFactor() { return cFactor; }
+
+	public void setTissueAParams( double pd, int t1, int t2 ) { PDa = pd; T1a = t1; T2a = t2; }
+	public void setTissueBParams( double pd, int t1, int t2 ) { PDb = pd; T1b = t1; T2b = t2; }
+	public void setTR( double tr ) { TR = tr; TRen = tr; }
+	public void setNP( int np ) { NP = np; NPen = np; }
+	public void setSpoil( double s ) { spoil = s; spoilEn = s; }
+	public void setTRRange( double st, double en, double inc ) { TR = st; TRen = en; TRinc = inc; }
+	public void setNPRange( int st, int en, int inc ) { NP = st; NPen = en; NPinc = inc; }
+	public void setSpoilRange( double st, double en, double inc ) { spoil = st; spoilEn = en; spoilInc = inc; }
+	public void setIdealSpoil( boolean b ) { idealSpoil = b; }
+	public void setFARange( int st, int en, int inc ) { FAst = st; FAen = en; FAinc = inc; }
+	public void setTD1Range( int st, int en, int inc ) { TD1st = st; TD1en = en; TD1inc = inc; }
+	public void setTD2Range( int st, int en, int inc ) { TD2st = st; TD2en = en; TD2inc = inc; }
+	public void setSMin( double s ) { sMin = s; }
+	public void setCMin( double c ) { cMin = c; }
+	public void setSFactor( double f ) { sFactor = f; }
+	public void setCFactor( double f ) { cFactor = f; }
+
+	/**
+	 * Energy of a protocol that the annealing and gradient searches minimize, lower is better. It is
+	 * the one RunSimulation.doSimAnneal() has always used.
+	 * @param signal
+	 * @param contrast
+	 * @param time
+	 * @return
+	 */
+	public double getEnergy( double signal, double contrast, double time ) {
+		double timeMin = getTimeMin();
+		return sFactor*Math.pow( (signal-sMin)/sMin, 2)  +  cFactor*Math.pow( (contrast-cMin)/cMin, 2)  +  Math.pow( (time-timeMin)/timeMin, 2);
+	}
+
+	/*
+	 * Time the energy measures scan times against; the product is far above any scan time, so the
+	 * time term stays near 1
+	 */
+	public double getTimeMin() {
+		return NP*TR * TD1st * TD2st;
+	}
+
+	/**
+	 * Returns an empty BestParamSearch for Smin and Cmin, which every search of these parameters
+	 * merges its best protocols into
+	 * @return
+	 */
+	public BestParamSearch newBest() {
+		return new BestParamSearch( sMin, cMin, sMin, cMin, TR, NP );
+	}
+
+	/**
+	 * Returns the grid of protocols to search, with the axes at the AXIS_ positions. NP, TR and the
+	 * spoiling increment vary slowest since they change the pulse train, then FA, TD1 and TD2.
+	 * @return
+	 */
+	public ParamGrid getGrid() {
+		ParamGrid grid = new ParamGrid();
+		grid.addAxis( "NP", NP, NPen, NPinc );
+		grid.addAxis( "TR", TR, TRen, TRinc );
+		grid.addAxis( "spoil", spoil, spoilEn, spoilInc );
+		grid.addAxis( "FA", FAst, FAen, FAinc );
+		grid.addAxis( "TD1", TD1st, TD1en, TD1inc );
+		grid.addAxis( "TD2", TD2st, TD2en, TD2inc );
+		return grid;
+	}
+
+	/**
+	 * Writes every parameter to out, to be read back with read()
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write( DataOutput out ) throws IOException {
+		out.writeDouble( PDa ); out.writeInt( T1a ); out.writeInt( T2a );
+		out.writeDouble( PDb ); out.writeInt( T1b ); out.writeInt( T2b );
+		out.writeDouble( TR ); out.writeDouble( TRen ); out.writeDouble( TRinc );
+		out.writeInt( NP ); out.writeInt( NPen ); out.writeInt( NPinc );
+		out.writeDouble( spoil ); out.writeDouble( spoilEn ); out.writeDouble( spoilInc );
+		out.writeBoolean( idealSpoil );
+		out.writeInt( FAst ); out.writeInt( FAen ); out.writeInt( FAinc );
+		out.writeInt( TD1st ); out.writeInt( TD1en ); out.writeInt( TD1inc );
+		out.writeInt( TD2st ); out.writeInt( TD2en ); out.writeInt( TD2inc );
+		out.writeDouble( sMin ); out.writeDouble( cMin );
+		out.writeDouble( sFactor ); out.writeDouble( cFactor );
+	}
+
+	/**
+	 * Reads parameters written by write()
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static SimParams read( DataInput in ) throws IOException {
+		SimParams p = new SimParams();
+		p.PDa = in.readDouble(); p.T1a = in.readInt(); p.T2a = in.readInt();
+		p.PDb = in.readDouble(); p.T1b = in.readInt(); p.T2b = in.readInt();
+		p.TR = in.readDouble(); p.TRen = in.readDouble(); p.TRinc = in.readDouble();
+		p.NP = in.readInt(); p.NPen = in.readInt(); p.NPinc = in.readInt();
+		p.spoil = in.readDouble(); p.spoilEn = in.readDouble(); p.spoilInc = in.readDouble();
+		p.idealSpoil = in.readBoolean();
+		p.FAst = in.readInt(); p.FAen = in.readInt(); p.FAinc = in.readInt();
+		p.TD1st = in.readInt(); p.TD1en = in.readInt(); p.TD1inc = in.readInt();
+		p.TD2st = in.readInt(); p.TD2en = in.readInt(); p.TD2inc = in.readInt();
+		p.sMin = in.readDouble(); p.cMin = in.readDouble();
+		p.sFactor = in.readDouble(); p.cFactor = in.readDouble();
+		return p;
+	}
+
+	/**
+	 * Reads parameters from properties named like the fields, e.g. "TD2st=500" or "idealSpoil=true";
+	 * the others keep their defaults. TR, NP and spoil end where they start unless TRen, NPen or
+	 * spoilEn are given. Properties that are not parameters are left alone, see isKey().
+	 * @param props
+	 * @return
+	 * @throws IllegalArgumentException naming the parameter, if a value is not a number or idealSpoil
+	 * is not true or false
+	 */
+	public static SimParams read( Properties props ) {
+		SimParams p = new SimParams();
+		p.PDa = getDouble( props, "PDa", p.PDa ); p.T1a = getInt( props, "T1a", p.T1a ); p.T2a = getInt( props, "T2a", p.T2a );
+		p.PDb = getDouble( props, "PDb", p.PDb ); p.T1b = getInt( props, "T1b", p.T1b ); p.T2b = getInt( props, "T2b", p.T2b );
+		p.TR = getDouble( props, "TR", p.TR ); p.TRen = getDouble( props, "TRen", p.TR ); p.TRinc = getDouble( props, "TRinc", p.TRinc );
+		p.NP = getInt( props, "NP", p.NP ); p.NPen = getInt( props, "NPen", p.NP ); p.NPinc = getInt( props, "NPinc", p.NPinc );
+		p.spoil = getDouble( props, "spoil", p.spoil ); p.spoilEn = getDouble( props, "spoilEn", p.spoil ); p.spoilInc = getDouble( props, "spoilInc", p.spoilInc );
+		p.idealSpoil = getBoolean( props, "idealSpoil", p.idealSpoil );
+		p.FAst = getInt( props, "FAst", p.FAst ); p.FAen = getInt( props, "FAen", p.FAen ); p.FAinc = getInt( props, "FAinc", p.FAinc );
+		p.TD1st = getInt( props, "TD1st", p.TD1st ); p.TD1en = getInt( props, "TD1en", p.TD1en ); p.TD1inc = getInt( props, "TD1inc", p.TD1inc );
+		p.TD2st = getInt( props, "TD2st", p.TD2st ); p.TD2en = getInt( props, "TD2en", p.TD2en ); p.TD2inc = getInt( props, "TD2inc", p.TD2inc );
+		p.sMin = getDouble( props, "sMin", p.sMin ); p.cMin = getDouble( props, "cMin", p.cMin );
+		p.sFactor = getDouble( props, "sFactor", p.sFactor ); p.cFactor = getDouble( props, "cFactor", p.cFactor );
+		return p;
+	}
+
+	/*
+	 * True if key is the name of a parameter in read(Properties)
+	 */
+	public static boolean isKey( String key ) {
+		return KEYS.contains( key );
+	}
+
+	private static double getDouble( Properties props, String key, double def ) {
+		String value = props.getProperty( key );
+		if ( value == null )
+			return def;
+		try {
+			return Double.parseDouble( value.trim() );
+		} catch (NumberFormatException e) {
+			throw new NumberFormatException( key + ": not a number: " + value );
+		}
+	}
+
+	private static int getInt( Properties props, String key, int def ) {
+		String value = props.getProperty( key );
+		if ( value == null )
+			return def;
+		try {
+			return Integer.parseInt( value.trim() );
+		} catch (NumberFormatException e) {
+			throw new NumberFormatException( key + ": not an integer: " + value );
+		}
+	}
+
+	/*
+	 * Only true and false are taken, any other value is more likely a typo than a false
+	 */
+	static boolean getBoolean( Properties props, String key, boolean def ) {
+		String value = props.getProperty( key );
+		if ( value == null )
+			return def;
+		if ( value.trim().equalsIgnoreCase( "true" ) )
+			return true;
+		if ( value.trim().equalsIgnoreCase( "false" ) )
+			return false;
+		throw new IllegalArgumentException( key + ": not true or false: " + value );
+	}
+}
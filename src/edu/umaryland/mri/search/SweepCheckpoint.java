@@ -0,0 +1,197 @@
+package edu.umaryland.mri.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/*
+ * Progress of a GridSweep kept in a file, so a long sweep that dies can go on from where it was
+ * instead of starting over. The sweep saves it between windows (see GridSweep.setCheckpoint()),
+ * where every protocol before the next window is done and merged in grid order, so the completed
+ * part of the grid is given by one index. With it go the best protocols and Pareto front up to that
+ * index and the position the output file has to be cut back to, after the output was made to write
+ * everything before it.
+ *
+ * The file is written next to the old one and renamed over it, so there is always a complete
+ * checkpoint. It only resumes a sweep with the same parameters and output file.
+ */
+public class SweepCheckpoint {
+
+	/*
+	 * The output of a sweep, which has to be on disk up to the checkpoint
+	 */
+	public interface Output {
+		/*
+		 * Writes out the results of every protocol before next and returns the position to resume
+		 * the output from
+		 */
+		long sync( long next ) throws IOException;
+	}
+
+	private static final int MAGIC = 0x43525043; // "CPRC" in big-endian
+	private static final int VERSION = 1;
+
+	private final File file;
+	private final byte[] config;
+	private long interval = 60000;
+	private long lastSave = System.currentTimeMillis();
+	private Output output;
+
+	// state of the last checkpoint
+	private long next;
+	private long outputPosition;
+	private BestParamSearch best;
+	private ParetoFront front;
+
+	/**
+	 * Starts a new checkpoint in file for a sweep over params that writes to outputName ("" if the
+	 * sweep has no output)
+	 * @param file
+	 * @param params
+	 * @param outputName
+	 */
+	public SweepCheckpoint( File file, SimParams params, String outputName ) {
+		this.file = file;
+		config = getConfig( params, outputName );
+	}
+
+	/**
+	 * Returns the checkpoint in file if it was saved by a sweep with the same parameters and output,
+	 * otherwise null
+	 * @param file
+	 * @param params
+	 * @param outputName
+	 * @return
+	 * @throws IOException if the file cannot be read
+	 */
+	public static SweepCheckpoint resume( File file, SimParams params, String outputName ) throws IOException {
+		if ( !file.exists() )
+			return null;
+		SweepCheckpoint c = new SweepCheckpoint( file, params, outputName );
+		DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+		try {
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION )
+				throw new IOException( file + ": not a sweep checkpoint" );
+			byte[] config = new byte[in.readInt()];
+			in.readFully( config );
+			if ( !Arrays.equals( config, c.config ) )
+				return null;
+			c.next = in.readLong();
+			c.outputPosition = in.readLong();
+			c.best = params.newBest();
+			c.best.read( in );
+			if ( in.readBoolean() ) {
+				c.front = new ParetoFront();
+				c.front.read( in );
+			}
+		} finally {
+			in.close();
+		}
+		return c;
+	}
+
+	private static byte[] getConfig( SimParams params, String outputName ) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		try {
+			params.write( out );
+			out.writeUTF( outputName );
+			out.close();
+		} catch (IOException e) {
+			// not thrown by a byte array
+			throw new IllegalStateException( e );
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Sets the least time in milliseconds between two saves [default is 60000]
+	 * @param interval
+	 */
+	public void setInterval( long interval ) { this.interval = Math.max( 0, interval ); }
+	public long getInterval() { return interval; }
+
+	/**
+	 * Sets the output that is made to write out its results before each save [default is none]
+	 * @param output
+	 */
+	public void setOutput( Output output ) { this.output = output; }
+
+	/*
+	 * First protocol that was not done at the last checkpoint, 0 if there was none
+	 */
+	public long getNext() { return next; }
+
+	/*
+	 * Position to resume the output from
+	 */
+	public long getOutputPosition() { return outputPosition; }
+
+	/*
+	 * Best protocols before getNext(), or null
+	 */
+	public BestParamSearch getBest() { return best; }
+
+	/*
+	 * Pareto front of the protocols before getNext(), or null if it was not kept
+	 */
+	public ParetoFront getFront() { return front; }
+
+	/*
+	 * True if the interval has passed since the last save
+	 */
+	public boolean isDue() {
+		return System.currentTimeMillis() - lastSave >= interval;
+	}
+
+	/**
+	 * Saves that every protocol before next is done, with their best protocols and front (which can
+	 * be null)
+	 * @param next
+	 * @param best
+	 * @param front
+	 * @throws IOException
+	 */
+	public void save( long next, BestParamSearch best, ParetoFront front ) throws IOException {
+		long position = (output != null) ? output.sync( next ) : 0;
+		File tmp = new File( file.getPath() + ".tmp" );
+		FileOutputStream fos = new FileOutputStream( tmp );
+		try {
+			DataOutputStream out = new DataOutputStream( new BufferedOutputStream( fos ) );
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( config.length );
+			out.write( config );
+			out.writeLong( next );
+			out.writeLong( position );
+			best.write( out );
+			out.writeBoolean( front != null );
+			if ( front != null )
+				front.write( out );
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+		this.next = next;
+		this.outputPosition = position;
+		lastSave = System.currentTimeMillis();
+	}
+
+	/*
+	 * Removes the file, once the sweep is done
+	 */
+	public void delete() {
+		file.delete();
+	}
+}
@@ -0,0 +1,342 @@
+package edu.umaryland.mri.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Full search over the grid of a SimParams by SweepWorkers in other JVMs, possibly on other
+ * machines. The grid is cut into leases of consecutive protocols that are handed out over TCP to
+ * the workers as they ask for them. Workers can connect and disconnect at any time: the leases of a
+ * worker that disconnects are handed out again, and so are leases that were not renewed in time,
+ * e.g. of a worker that hangs. The best protocols of the leases are merged in grid order with
+ * BestParamSearch.merge(), so the result is the same as that of a GridSweep on one machine.
+ *
+ * Every message starts with an int type. A worker sends HELLO (magic, version) and gets the
+ * SimParams (SimParams.write()) and the lease timeout, then sends REQUEST until it gets DONE. The answer to a REQUEST is
+ * LEASE (id, first, last protocol) or WAIT (milliseconds) when every lease is out but some are not
+ * done. While it works on a lease the worker sends RENEW (id) now and then, and in the end RESULT
+ * (id, number of MPRAGE cycles, BestParamSearch.write()).
+ */
+public class SweepCoordinator {
+
+	static final int MAGIC = 0x4D505257; // "MPRW"
+	static final int VERSION = 1;
+	static final int HELLO = 1;
+	static final int REQUEST = 2;
+	static final int LEASE = 3;
+	static final int WAIT = 4;
+	static final int DONE = 5;
+	static final int RENEW = 6;
+	static final int RESULT = 7;
+
+	private static final int FREE = 0, LEASED = 1, FINISHED = 2;
+
+	private final SimParams params;
+	private final long numProtocols;
+	private long leaseSize = 4096;
+	private long leaseTimeout = 60000;
+	private GridSweep.Listener listener;
+
+	// state, owner and deadline of every lease and the best protocols of those that are done
+	private int[] state;
+	private Connection[] owner;
+	private long[] deadline;
+	private BestParamSearch[] results;
+	private int numFinished;
+	private long numDone, numLoops;
+	private int numWorkers;
+
+	private ServerSocket server;
+	private ExecutorService es;
+	private final ConcurrentLinkedQueue<Socket> sockets = new ConcurrentLinkedQueue<Socket>();
+
+	public SweepCoordinator( SimParams params ) {
+		this.params = params;
+		numProtocols = params.getGrid().getNumPoints();
+	}
+
+	/**
+	 * Sets the number of protocols in a lease [default is 4096]
+	 * @param leaseSize
+	 */
+	public void setLeaseSize( long leaseSize ) { this.leaseSize = Math.max( 1, leaseSize ); }
+	public long getLeaseSize() { return leaseSize; }
+
+	/**
+	 * Sets the time in milliseconds after which a lease that was not renewed or finished is handed
+	 * out again [default is 60000]. Workers renew their lease every third of it.
+	 * @param leaseTimeout
+	 */
+	public void setLeaseTimeout( long leaseTimeout ) { this.leaseTimeout = Math.max( 100, leaseTimeout ); }
+	public long getLeaseTimeout() { return leaseTimeout; }
+
+	/**
+	 * Sets the listener that is told when a lease is done [default is none]. Only chunkDone() is
+	 * called, with the best protocols of the lease; the single results stay on the workers.
+	 * @param listener
+	 */
+	public void setListener( GridSweep.Listener listener ) { this.listener = listener; }
+
+	public long getNumProtocols() { return numProtocols; }
+	public synchronized long getNumDone() { return numDone; }
+	public synchronized long getNumLoops() { return numLoops; }
+	public synchronized int getNumWorkers() { return numWorkers; }
+
+	/**
+	 * Serves the leases on port (0 for any free port, see getPort()) until every one is done and
+	 * returns the best protocols. Blocks the calling thread.
+	 * @param port
+	 * @return
+	 * @throws IOException
+	 */
+	public BestParamSearch run( int port ) throws IOException {
+		start( port );
+		try {
+			return waitFor();
+		} finally {
+			stop();
+		}
+	}
+
+	/**
+	 * Starts serving the leases on port without waiting, see waitFor()
+	 * @param port
+	 * @throws IOException
+	 */
+	public synchronized void start( int port ) throws IOException {
+		int numLeases = (int)((numProtocols + leaseSize-1) / leaseSize);
+		state = new int[numLeases];
+		owner = new Connection[numLeases];
+		deadline = new long[numLeases];
+		results = new BestParamSearch[numLeases];
+		numFinished = 0;
+		numDone = 0;
+		numLoops = 0;
+		server = new ServerSocket( port );
+		es = Executors.newCachedThreadPool();
+		es.execute( new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		});
+	}
+
+	/*
+	 * The port the coordinator listens on
+	 */
+	public synchronized int getPort() { return server.getLocalPort(); }
+
+	/**
+	 * Waits until every lease is done and returns the best protocols
+	 * @return
+	 */
+	public synchronized BestParamSearch waitFor() {
+		while ( numFinished < state.length ) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		// in grid order, so ties are broken as in a serial sweep
+		BestParamSearch best = params.newBest();
+		for ( BestParamSearch r : results )
+			best.merge( r );
+		return best;
+	}
+
+	/*
+	 * Stops listening and disconnects the workers, after giving those that ask for a lease within a
+	 * second the time to hear that there are no more
+	 */
+	public void stop() {
+		synchronized ( this ) {
+			if ( server == null )
+				return;
+			try {
+				server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		es.shutdown();
+		try {
+			es.awaitTermination( 1, TimeUnit.SECONDS );
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for ( Socket socket : sockets )
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		es.shutdownNow();
+	}
+
+	private void accept() {
+		while ( !server.isClosed() ) {
+			try {
+				final Socket socket = server.accept();
+				sockets.add( socket );
+				es.execute( new Runnable() {
+					@Override
+					public void run() {
+						new Connection( socket ).serve();
+					}
+				});
+			} catch (SocketException e) {
+				// closed by stop()
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Returns the id of the next lease for c: the first free one, else the first whose deadline has
+	 * passed; -1 if every lease is out and -2 if every lease is done
+	 */
+	private synchronized int lease( Connection c ) {
+		if ( numFinished == state.length )
+			return -2;
+		long now = System.currentTimeMillis();
+		int id = -1;
+		for ( int i=0; i<state.length && id < 0; i++ )
+			if ( state[i] == FREE )
+				id = i;
+		for ( int i=0; i<state.length && id < 0; i++ )
+			if ( state[i] == LEASED && deadline[i] < now )
+				id = i;
+		if ( id >= 0 ) {
+			state[id] = LEASED;
+			owner[id] = c;
+			deadline[id] = now + leaseTimeout;
+		}
+		return id;
+	}
+
+	private synchronized void renew( Connection c, int id ) {
+		if ( id >= 0 && id < state.length && state[id] == LEASED && owner[id] == c )
+			deadline[id] = System.currentTimeMillis() + leaseTimeout;
+	}
+
+	/*
+	 * Keeps the first result of a lease, one that was handed out again may come back twice
+	 */
+	private void finish( int id, long loops, BestParamSearch best ) {
+		long done;
+		synchronized ( this ) {
+			if ( id < 0 || id >= state.length || state[id] == FINISHED )
+				return;
+			state[id] = FINISHED;
+			owner[id] = null;
+			results[id] = best;
+			numFinished++;
+			done = numDone += getLast( id ) - getFirst( id );
+			numLoops += loops;
+			notifyAll();
+		}
+		if ( listener != null )
+			listener.chunkDone( done, best );
+	}
+
+	/*
+	 * Hands the unfinished leases of a worker that left to the next ones that ask
+	 */
+	private synchronized void release( Connection c ) {
+		for ( int i=0; i<state.length; i++ )
+			if ( state[i] == LEASED && owner[i] == c ) {
+				state[i] = FREE;
+				owner[i] = null;
+			}
+	}
+
+	private long getFirst( int id ) { return id*leaseSize; }
+	private long getLast( int id ) { return Math.min( numProtocols, (id+1)*leaseSize ); }
+
+	/*
+	 * The connection to one worker
+	 */
+	private class Connection {
+		private final Socket socket;
+
+		Connection( Socket socket ) {
+			this.socket = socket;
+		}
+
+		void serve() {
+			synchronized ( SweepCoordinator.this ) {
+				numWorkers++;
+			}
+			try {
+				socket.setTcpNoDelay( true );
+				DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+				DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+				if ( in.readInt() != HELLO || in.readInt() != MAGIC || in.readInt() != VERSION )
+					throw new IOException( "not a sweep worker: " + socket.getRemoteSocketAddress() );
+				params.write( out );
+				out.writeLong( leaseTimeout );
+				out.flush();
+
+				while ( true ) {
+					int type = in.readInt();
+					if ( type == REQUEST ) {
+						int id = lease( this );
+						if ( id == -2 ) {
+							out.writeInt( DONE );
+							out.flush();
+							break;
+						} else if ( id == -1 ) {
+							out.writeInt( WAIT );
+							out.writeInt( (int)Math.min( 1000, leaseTimeout/10 ) );
+						} else {
+							out.writeInt( LEASE );
+							out.writeInt( id );
+							out.writeLong( getFirst( id ) );
+							out.writeLong( getLast( id ) );
+						}
+						out.flush();
+					} else if ( type == RENEW ) {
+						renew( this, in.readInt() );
+					} else if ( type == RESULT ) {
+						int id = in.readInt();
+						long loops = in.readLong();
+						BestParamSearch best = params.newBest();
+						best.read( in );
+						finish( id, loops, best );
+					} else {
+						throw new IOException( "unknown message " + type + " from " + socket.getRemoteSocketAddress() );
+					}
+				}
+			} catch (IOException e) {
+				// the worker left, its leases go to the others
+				if ( !server.isClosed() )
+					System.err.println( "Worker " + socket.getRemoteSocketAddress() + " left" );
+			} finally {
+				release( this );
+				synchronized ( SweepCoordinator.this ) {
+					numWorkers--;
+				}
+				sockets.remove( socket );
+				try {
+					socket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,560 @@
+package edu.umaryland.mri.search;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Formatter;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.umaryland.mri.data.SimImage1DRunner;
+
+/*
+ * The full search of RunSimulation without the GUI, for batch jobs on machines without a display.
+ * It runs a GridSweep on a ForkJoinPool and prints the progress and the results to a PrintStream;
+ * single results go to a .csv or ResultFile and the Pareto front to a .csv. Run it with
+ *   java -cp <classes> edu.umaryland.mri.search.SweepRunner [config=<file>] [name=value ...]
+ * where the names are those of the parameter dialog (see SimParams.read(Properties)) and the options
+ * below; values on the command line override those in the config file. With serve=<port> the sweep
+ * is handed out to SweepWorkers by a SweepCoordinator instead of running on the pool.
+ */
+public class SweepRunner {
+
+	// options of main() besides the SimParams
+	private static final List<String> OPTIONS = Arrays.asList( "config", "threads", "output", "front",
+			"store", "checkpoint", "checkpointInterval", "progress", "coarseToFine", "timeOrdered", "serve" );
+
+	private final SimParams params;
+	private final ForkJoinPool pool;
+	private PrintStream log = System.out;
+	private EvalCache cache;
+	private ThreadLocal<SimImage1DRunner> simulators;
+	private File output;
+	private File frontFile;
+	private File checkpointFile;
+	private long checkpointInterval = 60000;
+	private long progressInterval = 10000;
+	private boolean bCoarseToFine = false;
+	private boolean bTimeOrdered = false;
+	private int servePort = -1;
+
+	private Listener listener;
+
+	private GridSweep sweep;
+
+	/*
+	 * Called from the worker threads of the sweep, besides what the runner does with the results
+	 */
+	public interface Listener {
+		/*
+		 * Every result, see GridSweep.Listener.result()
+		 */
+		void result( long index, double[] point, double signalA, double signalB, double contrast, double time );
+
+		/*
+		 * After each chunk, with the best protocols of all chunks done so far, bBetter if the chunk
+		 * improved them. The calls do not overlap.
+		 */
+		void chunkDone( long numDone, long total, BestParamSearch best, boolean bBetter );
+	}
+
+	public SweepRunner( SimParams params, ForkJoinPool pool ) {
+		this.params = params;
+		this.pool = pool;
+	}
+
+	/**
+	 * Sets where the progress and results are printed [default is System.out]
+	 * @param log
+	 */
+	public void setLog( PrintStream log ) { this.log = log; }
+	public PrintStream getLog() { return log; }
+
+	/**
+	 * Sets a cache of protocols that were already simulated [default is none]
+	 * @param cache
+	 */
+	public void setCache( EvalCache cache ) { this.cache = cache; }
+	public EvalCache getCache() { return cache; }
+
+	/**
+	 * Sets the simulators kept from one sweep to the next, see GridSweep.setSimulators() [default is
+	 * new ones for each sweep]
+	 * @param simulators
+	 */
+	public void setSimulators( ThreadLocal<SimImage1DRunner> simulators ) { this.simulators = simulators; }
+	public ThreadLocal<SimImage1DRunner> getSimulators() { return simulators; }
+
+	/**
+	 * Sets the file for every single result, a .csv name gets rows of text and anything else a
+	 * ResultFile [default is none]
+	 * @param output
+	 */
+	public void setOutput( File output ) { this.output = output; }
+	public File getOutput() { return output; }
+
+	/**
+	 * Sets the .csv file for the Pareto front [default is none]
+	 * @param frontFile
+	 */
+	public void setFrontFile( File frontFile ) { this.frontFile = frontFile; }
+	public File getFrontFile() { return frontFile; }
+
+	/**
+	 * Sets the checkpoint file of a full sweep, which is resumed from if it is there and was saved
+	 * with the same parameters and output [default is none]
+	 * @param checkpointFile
+	 */
+	public void setCheckpointFile( File checkpointFile ) { this.checkpointFile = checkpointFile; }
+	public File getCheckpointFile() { return checkpointFile; }
+
+	/**
+	 * Sets the least time in milliseconds between two checkpoints [default is 60000]
+	 * @param checkpointInterval
+	 */
+	public void setCheckpointInterval( long checkpointInterval ) { this.checkpointInterval = checkpointInterval; }
+	public long getCheckpointInterval() { return checkpointInterval; }
+
+	/**
+	 * Sets the least time in milliseconds between two progress lines, 0 for none [default is 10000]
+	 * @param progressInterval
+	 */
+	public void setProgressInterval( long progressInterval ) { this.progressInterval = progressInterval; }
+	public long getProgressInterval() { return progressInterval; }
+
+	/**
+	 * Turns on the coarse to fine sweep, see GridSweep.setCoarseToFine() [default is false]
+	 * @param bCoarseToFine
+	 */
+	public void setCoarseToFine( boolean bCoarseToFine ) { this.bCoarseToFine = bCoarseToFine; }
+	public boolean isCoarseToFine() { return bCoarseToFine; }
+
+	/**
+	 * Turns on the sweep in time order, see GridSweep.setTimeOrdered() [default is false]
+	 * @param bTimeOrdered
+	 */
+	public void setTimeOrdered( boolean bTimeOrdered ) { this.bTimeOrdered = bTimeOrdered; }
+	public boolean isTimeOrdered() { return bTimeOrdered; }
+
+	/**
+	 * Sets the port on which the sweep is served to SweepWorkers instead of running on the pool, 0
+	 * for any free port and -1 to run it here [default is -1]. The workers only send back the best
+	 * protocols of their leases, so there are no single results, Pareto front or checkpoints.
+	 * @param servePort
+	 */
+	public void setServePort( int servePort ) { this.servePort = servePort; }
+	public int getServePort() { return servePort; }
+
+	/**
+	 * Sets a listener for the results and progress of the sweep, a GUI shows them with it [default is
+	 * none]
+	 * @param listener
+	 */
+	public void setListener( Listener listener ) { this.listener = listener; }
+	public Listener getListener() { return listener; }
+
+	/*
+	 * The sweep of the last run(), for its counts and Pareto front, null if it was served
+	 */
+	public GridSweep getSweep() { return sweep; }
+
+	/**
+	 * Runs the sweep, printing its progress and results, and returns the best protocols
+	 * @return
+	 * @throws IOException if an output file cannot be written
+	 */
+	public BestParamSearch run() throws IOException {
+		if ( servePort >= 0 )
+			return serve();
+		sweep = new GridSweep( params );
+		sweep.setParetoFront( true );
+		sweep.setCache( cache );
+		sweep.setSimulators( simulators );
+		sweep.setCoarseToFine( bCoarseToFine );
+		sweep.setTimeOrdered( bTimeOrdered );
+		final long total = sweep.getNumProtocols();
+		final boolean bSkips = bCoarseToFine || bTimeOrdered;
+
+		// a full sweep saves its progress and goes on from there when it is run again
+		SweepCheckpoint checkpoint = null;
+		if ( checkpointFile != null && !bSkips ) {
+			String outputName = (output != null) ? output.getAbsolutePath() : "";
+			try {
+				checkpoint = SweepCheckpoint.resume( checkpointFile, params, outputName );
+			} catch (IOException e) {
+				// it is written over by the new sweep
+				log.println( "Starting over, " + e.getMessage() );
+			}
+			if ( checkpoint == null )
+				checkpoint = new SweepCheckpoint( checkpointFile, params, outputName );
+			else
+				log.println( String.format("Resuming from protocol %d of %d", checkpoint.getNext(), total) );
+			checkpoint.setInterval( checkpointInterval );
+			sweep.setCheckpoint( checkpoint );
+		}
+		boolean bResume = checkpoint != null && checkpoint.getNext() > 0;
+
+		// a .csv gets the rows in grid order from a writer thread, anything else a binary ResultFile
+		ResultFile rf = null;
+		OrderedWriter ow = null;
+		if ( output != null ) {
+			if ( output.getName().toLowerCase().endsWith(".csv") ) {
+				BufferedWriter bw;
+				if ( bResume ) {
+					// drop the rows written after the checkpoint, they are done again
+					RandomAccessFile raf = new RandomAccessFile( output, "rw" );
+					raf.setLength( checkpoint.getOutputPosition() );
+					raf.close();
+					bw = new BufferedWriter( new FileWriter( output, true ) );
+				} else {
+					bw = new BufferedWriter( new FileWriter( output ) );
+					bw.write( OrderedWriter.CSV_HEADER );
+				}
+				ow = new OrderedWriter( bw, OrderedWriter.CSV_ROW, bResume ? checkpoint.getNext() : 0, 1<<16 );
+				// keep the workers within what the writer can hold
+				sweep.setWindowSize( ow.getCapacity()/2 );
+			} else if ( bResume )
+				rf = ResultFile.open( output );
+			else
+				rf = ResultFile.create( output, total, params.getIdealSpoil() );
+		}
+		if ( checkpoint != null ) {
+			final ResultFile checkpointResults = rf;
+			final OrderedWriter checkpointWriter = ow;
+			checkpoint.setOutput( new SweepCheckpoint.Output() {
+				@Override
+				public long sync( long next ) throws IOException {
+					if ( checkpointResults != null )
+						checkpointResults.force();
+					if ( checkpointWriter == null )
+						return 0;
+					checkpointWriter.sync( next );
+					return output.length();
+				}
+			});
+		}
+
+		// best protocols of the chunks done so far, as they come in
+		final BestParamSearch liveSearch = params.newBest();
+		if ( bResume )
+			liveSearch.merge( checkpoint.getBest() );
+
+		printParams();
+		log.println( "Started sim of " + total + " protocols with " + pool.getParallelism() + " threads..." );
+
+		final long st = System.currentTimeMillis();
+		final ResultFile results = rf;
+		final OrderedWriter csvWriter = ow;
+		// coarse to fine and time order skip protocols, their rows are numbered as they come
+		final AtomicLong csvRow = new AtomicLong();
+		final long[] lastProgress = { st };
+		final Listener runListener = listener;
+		sweep.setListener( new GridSweep.Listener() {
+			@Override
+			public void result( long index, double[] point, double signalA, double signalB, double contrast, double time ) {
+				if ( results != null )
+					results.write( index, point, signalA, signalB, contrast, time );
+				if ( csvWriter != null )
+					csvWriter.put( bSkips ? csvRow.getAndIncrement() : index, new double[] { point[SimParams.AXIS_FA], point[SimParams.AXIS_TD1], point[SimParams.AXIS_TD2], Math.min(signalA, signalB), contrast, time,
+							point[SimParams.AXIS_NP], point[SimParams.AXIS_TR], point[SimParams.AXIS_SPOIL] } );
+				if ( runListener != null )
+					runListener.result( index, point, signalA, signalB, contrast, time );
+			}
+
+			@Override
+			public void chunkDone( long numDone, BestParamSearch chunkBest ) {
+				synchronized ( liveSearch ) {
+					boolean bBetter = liveSearch.merge( chunkBest );
+					if ( bBetter )
+						log.println( "New optimal protocol found:\n" + format( liveSearch.bestParams ) );
+					long now = System.currentTimeMillis();
+					if ( progressInterval > 0 && now - lastProgress[0] >= progressInterval ) {
+						log.println( String.format("Done %d of %d protocols (%.1f%%) in %d s", numDone, total, 100.0*numDone/total, (now-st)/1000) );
+						lastProgress[0] = now;
+					}
+					if ( runListener != null )
+						runListener.chunkDone( numDone, total, liveSearch, bBetter );
+				}
+			}
+		});
+
+		BestParamSearch best;
+		try {
+			// the chunks are merged in grid order, so ties are broken as in a serial sweep
+			best = sweep.run( pool );
+		} finally {
+			if ( rf != null )
+				rf.close();
+			if ( ow != null )
+				ow.close();
+		}
+		// the sweep is done, the next run starts over
+		if ( checkpoint != null )
+			checkpoint.delete();
+		long en = System.currentTimeMillis();
+
+		long count = sweep.getNumDone();
+		String s = String.format("Elapsed time: %d s\nAvg. time per calc (for %d total): %4.4f ms", (en-st)/1000, count, 1.0*(en-st)/Math.max(1, count) );
+		if ( sweep.getNumLoops() > 0 )
+			s += String.format("\nAvg. MPRAGE cycles per calc: %4.2f", 1.0*sweep.getNumLoops()/count );
+		if ( bSkips )
+			s += String.format("\n%s: evaluated %d of %d protocols, skipped %d", bTimeOrdered ? "Time order" : "Coarse to fine", count, total, sweep.getNumSkipped() );
+		log.println( s );
+		printBest( best );
+
+		ParetoFront front = sweep.getParetoFront();
+		if ( front != null ) {
+			log.println( "Pareto front: " + front.size() + " protocols" );
+			if ( frontFile != null )
+				writeFront( front, frontFile );
+		}
+		return best;
+	}
+
+	/*
+	 * Serves the sweep to SweepWorkers on servePort until they have done it, printing the progress
+	 * and the best protocols as run() does
+	 */
+	private BestParamSearch serve() throws IOException {
+		sweep = null;
+		SweepCoordinator coordinator = new SweepCoordinator( params );
+		final long total = coordinator.getNumProtocols();
+		final BestParamSearch liveSearch = params.newBest();
+		final long st = System.currentTimeMillis();
+		final long[] lastProgress = { st };
+		final Listener runListener = listener;
+		coordinator.setListener( new GridSweep.Listener() {
+			@Override
+			public void result( long index, double[] point, double signalA, double signalB, double contrast, double time ) {
+			}
+
+			@Override
+			public void chunkDone( long numDone, BestParamSearch chunkBest ) {
+				synchronized ( liveSearch ) {
+					// leases finish in any order, so this is only a preview of the merged result
+					boolean bBetter = liveSearch.merge( chunkBest );
+					if ( bBetter )
+						log.println( "New optimal protocol found:\n" + format( liveSearch.bestParams ) );
+					long now = System.currentTimeMillis();
+					if ( progressInterval > 0 && now - lastProgress[0] >= progressInterval ) {
+						log.println( String.format("Done %d of %d protocols (%.1f%%) in %d s", numDone, total, 100.0*numDone/total, (now-st)/1000) );
+						lastProgress[0] = now;
+					}
+					if ( runListener != null )
+						runListener.chunkDone( numDone, total, liveSearch, bBetter );
+				}
+			}
+		});
+
+		printParams();
+		BestParamSearch best;
+		coordinator.start( servePort );
+		try {
+			log.println( String.format("Serving %d protocols on port %d, start workers with\n java -cp <classes> edu.umaryland.mri.search.SweepWorker <this host> %d [threads]", total, coordinator.getPort(), coordinator.getPort()) );
+			best = coordinator.waitFor();
+		} finally {
+			coordinator.stop();
+		}
+		long en = System.currentTimeMillis();
+
+		String s = String.format("Elapsed time: %d s\nAvg. time per calc (for %d total): %4.4f ms", (en-st)/1000, total, 1.0*(en-st)/total );
+		if ( coordinator.getNumLoops() > 0 )
+			s += String.format("\nAvg. MPRAGE cycles per calc: %4.2f", 1.0*coordinator.getNumLoops()/total );
+		log.println( s );
+		printBest( best );
+		return best;
+	}
+
+	/*
+	 * Prints the tissue and sequence parameters and the grid
+	 */
+	private void printParams() {
+		log.println( String.format("Tissue A: T1:%1$-4d T2:%2$-4d PD:%3$-4.4f", params.getT1a(), params.getT2a(), params.getPDa()) );
+		log.println( String.format("Tissue B: T1:%1$-4d T2:%2$-4d PD:%3$-4.4f", params.getT1b(), params.getT2b(), params.getPDb()) );
+		log.println( String.format("Seq. params: TR:%1$-4.4f spoil inc:%2$-4.4f NP:%3$-4d ideal spoiling:%4$b", params.getTR(), params.getSpoil(), params.getNP(), params.getIdealSpoil()) );
+		log.println( String.format("FA start:%1$-4d FA incr.:%2$-4d FA end:%3$-4d", params.getFAst(), params.getFAinc(), params.getFAen()) );
+		log.println( String.format("TD1 start:%1$-4d TD1 incr.:%2$-4d TD1 end:%3$-4d", params.getTD1st(), params.getTD1inc(), params.getTD1en()) );
+		log.println( String.format("TD2 start:%1$-4d TD2 incr.:%2$-4d TD2 end:%3$-4d", params.getTD2st(), params.getTD2inc(), params.getTD2en()) );
+		log.println( String.format("S_min:%1$-4.4f C_min:%2$-4.4f", params.getSMin(), params.getCMin()) );
+	}
+
+	/*
+	 * Prints the closest contrast and signal matches and the best protocol, as the GUI does
+	 */
+	private void printBest( BestParamSearch best ) {
+		log.println( "Closest contrast match:\n" + format( best.bestCParams ) );
+		log.println( "Closest signal match:\n" + format( best.bestSParams ) );
+		if ( !best.isBestFound() )
+			log.println( "Sorry, a protocol matching your requirements could not be specified." );
+		else
+			log.println( "Most optimal protocol:\n" + format( best.bestParams ) );
+	}
+
+	private static String format( BestParamSearch.OptParams p ) {
+		String s = String.format(" FA:%1$-2.0f TD1:%2$-4.0f TD2:%3$-4.0f S:%4$-4.4f C:%5$-4.4f T:%6$-5.2f", p.alpha, p.TD1, p.TD2, p.bestSignal, p.bestContrast, p.getTime());
+		s += String.format( "\n TI:%1$-2.0f TR:%2$-4.0f ", p.TD1 + p.TR*p.NP/2, p.getTime() );
+		return s;
+	}
+
+	/*
+	 * Writes the front as rows of the sweep .csv, by grid index
+	 */
+	private static void writeFront( ParetoFront front, File file ) throws IOException {
+		BufferedWriter bw = new BufferedWriter( new FileWriter( file ) );
+		Formatter formatter = new Formatter( bw );
+		try {
+			bw.write( OrderedWriter.CSV_HEADER );
+			for ( ParetoFront.Entry e : front.getEntries() ) {
+				double[] point = e.getPoint();
+				OrderedWriter.CSV_ROW.format( e.getIndex(), new double[] { point[SimParams.AXIS_FA], point[SimParams.AXIS_TD1], point[SimParams.AXIS_TD2], e.getSignal(), e.getContrast(), e.getTime(),
+						point[SimParams.AXIS_NP], point[SimParams.AXIS_TR], point[SimParams.AXIS_SPOIL] }, formatter );
+			}
+			if ( formatter.ioException() != null )
+				throw formatter.ioException();
+		} finally {
+			formatter.close();
+		}
+	}
+
+	/**
+	 * Returns the properties in the config file that command names, if any, overridden by those of
+	 * command
+	 * @param command
+	 * @return
+	 * @throws IOException if the config file cannot be read
+	 */
+	public static Properties withConfig( Properties command ) throws IOException {
+		Properties props = new Properties();
+		String config = command.getProperty( "config" );
+		if ( config != null ) {
+			InputStream in = new FileInputStream( config );
+			try {
+				props.load( in );
+			} finally {
+				in.close();
+			}
+		}
+		props.putAll( command );
+		return props;
+	}
+
+	/**
+	 * Returns a runner on pool for the parameters and options in props (see usage()), other than
+	 * config, threads and store which are up to the caller
+	 * @param props
+	 * @param pool
+	 * @return
+	 * @throws IllegalArgumentException if a name is unknown, a value is not a number or not true or
+	 * false where one is expected, or a range of the grid is empty
+	 */
+	public static SweepRunner create( Properties props, ForkJoinPool pool ) {
+		for ( String key : props.stringPropertyNames() )
+			if ( !SimParams.isKey( key ) && !OPTIONS.contains( key ) )
+				throw new IllegalArgumentException( "unknown parameter: " + key );
+		SimParams params = SimParams.read( props );
+		// the sweep builds the grid again, this only checks the ranges before anything starts
+		params.getGrid();
+		SweepRunner runner = new SweepRunner( params, pool );
+		runner.setCoarseToFine( SimParams.getBoolean( props, "coarseToFine", false ) );
+		runner.setTimeOrdered( SimParams.getBoolean( props, "timeOrdered", false ) );
+		runner.setProgressInterval( (long)(1000*Double.parseDouble( props.getProperty( "progress", "10" ).trim() )) );
+		runner.setCheckpointInterval( (long)(1000*Double.parseDouble( props.getProperty( "checkpointInterval", "60" ).trim() )) );
+		if ( props.getProperty( "output" ) != null )
+			runner.setOutput( new File( props.getProperty( "output" ) ) );
+		if ( props.getProperty( "front" ) != null )
+			runner.setFrontFile( new File( props.getProperty( "front" ) ) );
+		if ( props.getProperty( "checkpoint" ) != null )
+			runner.setCheckpointFile( new File( props.getProperty( "checkpoint" ) ) );
+		if ( props.getProperty( "serve" ) != null ) {
+			int port = Integer.parseInt( props.getProperty( "serve" ).trim() );
+			if ( port < 0 || port > 65535 )
+				throw new IllegalArgumentException( "serve: not a port: " + port );
+			for ( String key : new String[] { "output", "front", "checkpoint", "coarseToFine", "timeOrdered" } )
+				if ( props.getProperty( key ) != null )
+					throw new IllegalArgumentException( "serve: " + key + " only applies to a sweep on this machine" );
+			runner.setServePort( port );
+		}
+		return runner;
+	}
+
+	private static void usage() {
+		System.err.println( "usage: SweepRunner [config=<file>] [name=value ...]" );
+		System.err.println( "  parameters: PDa T1a T2a PDb T1b T2b TR NP spoil idealSpoil FAst FAen FAinc" );
+		System.err.println( "    TD1st TD1en TD1inc TD2st TD2en TD2inc sMin cMin sFactor cFactor, ranges with TRen TRinc NPen NPinc spoilEn spoilInc" );
+		System.err.println( "  options: threads=<n> output=<file> front=<file.csv> store=<file> checkpoint=<file>" );
+		System.err.println( "    checkpointInterval=<s> progress=<s> coarseToFine=true timeOrdered=true" );
+		System.err.println( "    serve=<port> (hand the sweep out to SweepWorkers)" );
+	}
+
+	/**
+	 * @param args name=value pairs, see usage()
+	 */
+	public static void main( String[] args ) {
+		Properties props = null;
+		Properties command = new Properties();
+		for ( String arg : args ) {
+			int i = arg.indexOf( '=' );
+			if ( i <= 0 ) {
+				usage();
+				System.exit( 1 );
+			}
+			command.setProperty( arg.substring( 0, i ).trim(), arg.substring( i+1 ) );
+		}
+		try {
+			props = withConfig( command );
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit( 1 );
+		}
+
+		SweepRunner runner;
+		ForkJoinPool pool;
+		EvalStore store = null;
+		try {
+			int threads = Integer.parseInt( props.getProperty( "threads", String.valueOf( Runtime.getRuntime().availableProcessors() ) ).trim() );
+			if ( threads < 1 )
+				throw new IllegalArgumentException( "threads: must be at least 1: " + threads );
+			pool = new ForkJoinPool( threads );
+			runner = create( props, pool );
+		} catch (IllegalArgumentException e) {
+			System.err.println( e.getMessage() );
+			usage();
+			System.exit( 1 );
+			return;
+		}
+
+		EvalCache cache = new EvalCache( 1<<18 );
+		if ( props.getProperty( "store" ) != null )
+			try {
+				store = EvalStore.open( new File( props.getProperty( "store" ) ) );
+				cache.setStore( store );
+			} catch (IOException e) {
+				System.err.println( "Results are not kept, " + e.getMessage() );
+			}
+		runner.setCache( cache );
+
+		int status = 0;
+		try {
+			runner.run();
+		} catch (IOException e) {
+			e.printStackTrace();
+			status = 1;
+		}
+		pool.shutdown();
+		if ( store != null )
+			try {
+				store.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		System.exit( status );
+	}
+}
@@ -0,0 +1,151 @@
+package edu.umaryland.mri.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Runs the leases of a SweepCoordinator with a GridSweep on the processors of this machine, until
+ * the coordinator has no more. Start one on each node with
+ *   java -cp <classes> edu.umaryland.mri.search.SweepWorker <host> <port> [threads]
+ * It can be stopped at any time, the coordinator then gives its lease to another worker.
+ */
+public class SweepWorker {
+
+	private final String host;
+	private final int port;
+	private final ForkJoinPool pool;
+	private EvalCache cache;
+	private int numLeases;
+	private long numProtocols;
+
+	public SweepWorker( String host, int port, ForkJoinPool pool ) {
+		this.host = host;
+		this.port = port;
+		this.pool = pool;
+	}
+
+	/**
+	 * Sets a cache of protocols that were already simulated, e.g. with a store, for a worker that
+	 * runs many sweeps [default is none]
+	 * @param cache
+	 */
+	public void setCache( EvalCache cache ) { this.cache = cache; }
+	public EvalCache getCache() { return cache; }
+
+	public int getNumLeases() { return numLeases; }
+	public long getNumProtocols() { return numProtocols; }
+
+	/**
+	 * Connects to the coordinator and runs leases until it has no more
+	 * @throws IOException if the connection fails or is lost
+	 */
+	public void run() throws IOException {
+		Socket socket = new Socket( host, port );
+		try {
+			socket.setTcpNoDelay( true );
+			DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+			final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+			out.writeInt( SweepCoordinator.HELLO );
+			out.writeInt( SweepCoordinator.MAGIC );
+			out.writeInt( SweepCoordinator.VERSION );
+			out.flush();
+			SimParams params = SimParams.read( in );
+			final long leaseTimeout = in.readLong();
+			GridSweep sweep = new GridSweep( params );
+			sweep.setCache( cache );
+
+			while ( true ) {
+				synchronized ( out ) {
+					out.writeInt( SweepCoordinator.REQUEST );
+					out.flush();
+				}
+				int type = in.readInt();
+				if ( type == SweepCoordinator.DONE )
+					return;
+				if ( type == SweepCoordinator.WAIT ) {
+					int millis = in.readInt();
+					try {
+						Thread.sleep( millis );
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+					continue;
+				}
+				if ( type != SweepCoordinator.LEASE )
+					throw new IOException( "unknown message " + type );
+				final int id = in.readInt();
+				long first = in.readLong();
+				long last = in.readLong();
+
+				// keep the lease while the sweep runs
+				Thread renew = new Thread( new Runnable() {
+					@Override
+					public void run() {
+						try {
+							while ( true ) {
+								Thread.sleep( leaseTimeout/3 );
+								synchronized ( out ) {
+									out.writeInt( SweepCoordinator.RENEW );
+									out.writeInt( id );
+									out.flush();
+								}
+							}
+						} catch (InterruptedException e) {
+							// the lease is done
+						} catch (IOException e) {
+							// the main loop finds out as well
+						}
+					}
+				});
+				renew.setDaemon( true );
+				renew.start();
+				BestParamSearch best;
+				try {
+					best = sweep.run( pool, first, last );
+				} finally {
+					renew.interrupt();
+				}
+				synchronized ( out ) {
+					out.writeInt( SweepCoordinator.RESULT );
+					out.writeInt( id );
+					out.writeLong( sweep.getNumLoops() );
+					best.write( out );
+					out.flush();
+				}
+				numLeases++;
+				numProtocols += last-first;
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * @param args host, port and optionally the number of threads (all processors by default)
+	 */
+	public static void main( String[] args ) {
+		if ( args.length < 2 ) {
+			System.err.println( "usage: SweepWorker <host> <port> [threads]" );
+			System.exit( 1 );
+		}
+		int threads = (args.length > 2) ? Integer.parseInt( args[2] ) : Runtime.getRuntime().availableProcessors();
+		ForkJoinPool pool = new ForkJoinPool( threads );
+		SweepWorker worker = new SweepWorker( args[0], Integer.parseInt( args[1] ), pool );
+		worker.setCache( new EvalCache( 1<<18 ) );
+		long st = System.currentTimeMillis();
+		try {
+			worker.run();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		long en = System.currentTimeMillis();
+		System.out.println( String.format( "Ran %d leases, %d protocols in %d s", worker.getNumLeases(), worker.getNumProtocols(), (en-st)/1000 ) );
+		pool.shutdown();
+	}
+}